@@ -23,7 +23,9 @@ public class Prompt {
             "\n - challenge: <nickFriend> requests a challenge to nickFriend" +
             "\n - show-score: gets total user score" +
             "\n - show-ranking-list: shows the ranking list including only you and your friends" +
+            "\n - show-summary: shows score, friends and ranking list at once" +
             "\n - wait-challenge" +
+            "\n - matchmaking: requests a challenge against a random opponent" +
             "\n - exit\n";
     private static final String WORD_MACRO = "${WORD}";
     private static final String ASK_WORD = WORD_MACRO + " " + DEFAULT_PROMPT;
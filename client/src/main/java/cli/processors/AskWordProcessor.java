@@ -5,7 +5,6 @@ import cli.CliState;
 import cli.Prompt;
 import connection.TCPHandler;
 import protocol.OperationCode;
-import protocol.WQPacket;
 import protocol.json.PacketPojo;
 
 import java.io.IOException;
@@ -29,9 +28,9 @@ public class AskWordProcessor extends BaseInputProcessor {
 
     @Override
     public void process(String input) throws IOException {
-        TCPHandler.getInstance().send(new WQPacket(
+        TCPHandler.getInstance().send(
                 PacketPojo.buildAskWordResponse(this.word, input)
-        ));
+        );
         PacketPojo packetPojo = TCPHandler.getInstance().receive();
         if (packetPojo.isWellFormedRequestPacket()
             && OperationCode.ASK_WORD.equals(packetPojo.getOperationCode())
@@ -4,6 +4,7 @@ import cli.CliManager;
 import cli.CliState;
 import cli.Prompt;
 
+import protocol.Codec;
 import protocol.Config;
 import connection.TCPHandler;
 import protocol.WQPacket;
@@ -28,10 +29,14 @@ public class LoginProcessor extends BaseInputProcessor {
                         params[1],
                         params[2],
                         LoginProcessor.UDPPort
-                )
+                ).setCodec(Codec.BINARY)
         ));
         this.validateOrPrettyPrintErrorResponse(response);
-        if (response.isSuccessfullResponse()) Prompt.setPrompt(params[1]);
+        if (response.isSuccessfullResponse()) {
+            Prompt.setPrompt(params[1]);
+            // Switch to the binary encoding only if the server accepted it.
+            if (response.getCodec() != null) TCPHandler.getInstance().setCodec(response.getCodec());
+        }
         CliManager.getInstance().setNext(Prompt.MAIN_PROMPT);
     }
 
@@ -4,6 +4,7 @@ import cli.CliManager;
 import cli.CliState;
 import cli.Prompt;
 import connection.TCPHandler;
+import protocol.Codec;
 import protocol.OperationCode;
 import protocol.WQPacket;
 import protocol.json.PacketPojo;
@@ -23,7 +24,10 @@ public class LogoutProcessor extends BaseInputProcessor {
                 new PacketPojo(OperationCode.LOGOUT)
         ));
         this.validateOrPrettyPrintErrorResponse(response);
-        if (response.isSuccessfullResponse()) Prompt.setPrompt(null);
+        if (response.isSuccessfullResponse()) {
+            Prompt.setPrompt(null);
+            TCPHandler.getInstance().setCodec(Codec.JSON);
+        }
         CliManager.getInstance().setNext(Prompt.MAIN_PROMPT);
     }
 
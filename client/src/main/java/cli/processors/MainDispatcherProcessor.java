@@ -44,9 +44,11 @@ public class MainDispatcherProcessor extends BaseInputProcessor {
         ret.put("show-score", new ScoreProcessor());
         ret.put("add-friend", new AddFriendProcessor());
         ret.put("show-ranking-list", new ShowRankingProcessor());
+        ret.put("show-summary", new ShowSummaryProcessor());
         ret.put("register", new RegistrationProcessor());
         ret.put("challenge", new RequestChallengeProcessor());
         ret.put("wait-challenge", new WaitChallengeProcessor());
+        ret.put("matchmaking", new MatchmakingProcessor());
         return ret;
     }
 }
@@ -0,0 +1,24 @@
+package cli.processors;
+
+import connection.TCPHandler;
+import protocol.WQPacket;
+import protocol.json.PacketPojo;
+
+import java.io.IOException;
+
+public class MatchmakingProcessor extends SetupBattleProcessor {
+
+    MatchmakingProcessor() {
+        this.commandName = "matchmaking";
+        this.expectedParameters = 1;
+    }
+
+    @Override
+    public void process(String input) throws IOException {
+        System.out.println("Waiting for an opponent...");
+        PacketPojo response = TCPHandler.getInstance().handle(new WQPacket(
+                PacketPojo.buildMatchmakingRequest()
+        ));
+        this.setupBattle(response);
+    }
+}
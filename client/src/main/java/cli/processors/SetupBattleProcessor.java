@@ -6,7 +6,6 @@ import cli.Prompt;
 import connection.TCPHandler;
 import protocol.OperationCode;
 import protocol.ResponseCode;
-import protocol.WQPacket;
 import protocol.json.PacketPojo;
 
 import java.io.IOException;
@@ -17,10 +16,10 @@ public abstract class SetupBattleProcessor extends BaseInputProcessor {
         if (this.validateOrPrettyPrintErrorResponse(response)) {
             // Display information about the challenge.
             System.out.println(response.getMessage());
-            TCPHandler.getInstance().send(new WQPacket(
+            TCPHandler.getInstance().send(
                     // Synchronize the players in the server.
                     new PacketPojo(OperationCode.SETUP_CHALLENGE, ResponseCode.OK)
-            ));
+            );
             System.out.println("...Entering battle!");
             PacketPojo packetPojo = TCPHandler.getInstance().receive();
             if (packetPojo.isErrorResponse()) {
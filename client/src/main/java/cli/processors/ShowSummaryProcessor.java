@@ -0,0 +1,51 @@
+package cli.processors;
+
+import cli.CliManager;
+import cli.Prompt;
+import connection.TCPHandler;
+import protocol.OperationCode;
+import protocol.json.PacketPojo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shows score, friends and ranking list, requesting them to the server in a single round trip.
+ */
+public class ShowSummaryProcessor extends BaseInputProcessor {
+
+    ShowSummaryProcessor() {
+        this.commandName = "show-summary";
+        this.expectedParameters = 1;
+    }
+
+    @Override
+    public void process(String input) throws IOException {
+        List<PacketPojo> responses = TCPHandler.getInstance().handleAll(Arrays.asList(
+                new PacketPojo(OperationCode.GET_SCORE),
+                new PacketPojo(OperationCode.GET_FRIENDS),
+                new PacketPojo(OperationCode.GET_RANKING)
+        ));
+        PacketPojo score = responses.get(0);
+        PacketPojo friends = responses.get(1);
+        PacketPojo ranking = responses.get(2);
+        // Pretty print
+        if (score.isSuccessfullResponse()) {
+            System.out.println("Score: " + score.getScores());
+        }
+        if (friends.isSuccessfullResponse()) {
+            System.out.println("You have " + friends.getFriends().size() + " friends already:");
+            friends.getFriends().stream()
+                    .sorted()
+                    .forEach(System.out::println);
+        }
+        if (ranking.isSuccessfullResponse()) {
+            System.out.println("Ranking list:");
+            ranking.getRankingList().stream()
+                    .sorted()
+                    .forEach((it -> System.out.println(it.name + " " + it.score)));
+        }
+        CliManager.getInstance().setNext(Prompt.MAIN_PROMPT);
+    }
+}
@@ -1,21 +1,32 @@
 package connection;
 
+import protocol.Codec;
 import protocol.Config;
 import protocol.WQPacket;
 import protocol.json.PacketPojo;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class TCPHandler {
 
     private Socket socket;
     private OutputStream out;
     private InputStream in;
+    /** The encoding of the packets sent, negotiated at login. */
+    private Codec codec = Codec.JSON;
+    /** The correlation id of the next request. */
+    private int nextCorrelationId;
 
     private static TCPHandler instance;
 
@@ -39,9 +50,50 @@ public class TCPHandler {
      * @throws IOException
      */
     public PacketPojo handle(WQPacket wqPacket) throws IOException {
-        // send the request.
-        this.send(wqPacket);
-        return this.receive();
+        return this.handleAll(Collections.singletonList(wqPacket.getDeserializedBody())).get(0);
+    }
+
+    /**
+     * Pipelines the requests: sends all of them at once and then waits for the responses,
+     * which the server may write in any order. Every request is tagged with a new
+     * correlation id, used to match the responses through the pending-request table.
+     * NOTE: the server processes the requests concurrently, do not pipeline
+     * requests which depend on each other.
+     * @param requests
+     * @return the responses, in the same order of the requests.
+     * @throws IOException
+     */
+    public List<PacketPojo> handleAll(List<PacketPojo> requests) throws IOException {
+        // The pending-request table: correlation id -> position of the request.
+        Map<Integer, Integer> pendingRequests = new HashMap<>();
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (int i = 0; i < requests.size(); ++i) {
+            int correlationId = this.nextCorrelationId++;
+            pendingRequests.put(correlationId, i);
+            batch.write(new WQPacket(requests.get(i).setCorrelationId(correlationId), this.codec).toBytes());
+        }
+        // Sends all the requests in a single write.
+        out.write(batch.toByteArray());
+        out.flush();
+        PacketPojo[] responses = new PacketPojo[requests.size()];
+        while (!pendingRequests.isEmpty()) {
+            PacketPojo response = this.receive();
+            Integer position;
+            if (response.getCorrelationId() != null) {
+                position = pendingRequests.remove(response.getCorrelationId());
+            } else if (pendingRequests.size() == 1) {
+                // A response without id can only answer the single request in-flight.
+                position = pendingRequests.values().iterator().next();
+                pendingRequests.clear();
+            } else {
+                position = null;
+            }
+            // Discards a response to a request which is not pending anymore.
+            if (position != null) {
+                responses[position] = response;
+            }
+        }
+        return Arrays.asList(responses);
     }
 
     /**
@@ -77,6 +129,28 @@ public class TCPHandler {
         out.flush();
     }
 
+    /**
+     * Sends a packet to the server, encoded with the negotiated codec.
+     * @param packet
+     * @throws IOException
+     */
+    public void send(PacketPojo packet) throws IOException {
+        this.send(new WQPacket(packet, this.codec));
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the encoding of the packets sent from now on.
+     * The received ones are decoded whatever their encoding is.
+     * @param codec
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
     /**
      * Closes the socket and free resources.
      * @throws IOException
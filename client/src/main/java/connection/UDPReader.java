@@ -9,9 +9,14 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UDPReader implements Runnable {
 
@@ -22,8 +27,26 @@ public class UDPReader implements Runnable {
      * when the user access the waiting room.
      */
     private BlockingQueue<PacketPojo> packets;
+    /**
+     * The sequence numbers of the last notifications received: the server sends
+     * a notification again until it receives the ack, the copies are discarded.
+     */
+    private final Set<Integer> receivedSequences = Collections.newSetFromMap(
+            new LinkedHashMap<Integer, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                    return this.size() > RECEIVED_HISTORY;
+                }
+            }
+    );
+    /** The number of copies of notifications already received. */
+    private final AtomicLong duplicates = new AtomicLong();
+    /** The number of packets discarded because the queue was full. */
+    private final AtomicLong dropped = new AtomicLong();
 
     private static final int TIMEOUT = 1000;
+    /** The number of sequence numbers remembered to discard the copies. */
+    private static final int RECEIVED_HISTORY = 64;
 
     private static UDPReader instance;
 
@@ -64,6 +87,15 @@ public class UDPReader implements Runnable {
                         )
                 ));
                 if (OperationCode.FORWARD_CHALLENGE.equals(wqPacket.getOperationCode())) {
+                    Integer sequence = wqPacket.getCorrelationId();
+                    if (sequence != null) {
+                        // Acknowledges also the copies: the previous ack may be lost.
+                        this.acknowledge(sequence);
+                        if (!this.receivedSequences.add(sequence)) {
+                            this.duplicates.incrementAndGet();
+                            continue;
+                        }
+                    }
                     this.publishPacket(wqPacket);
                 }
             } catch (IOException e) {
@@ -73,6 +105,33 @@ public class UDPReader implements Runnable {
         this.datagramSocket.close();
     }
 
+    /**
+     * Sends the ack of a notification to the server, which stops sending it again.
+     * @param sequence
+     */
+    private void acknowledge(int sequence) {
+        byte[] ack = new WQPacket(PacketPojo.buildNotificationAck(sequence)).toBytes();
+        try {
+            this.datagramSocket.send(new DatagramPacket(ack, ack.length));
+        } catch (IOException e) {
+            // The server sends the notification again and it will be acknowledged then.
+        }
+    }
+
+    /**
+     * @return the number of copies of notifications discarded.
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return the number of notifications discarded because they were not consumed in time.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
     /**
      * Stops the thread and closes the socket.
      */
@@ -106,6 +165,7 @@ public class UDPReader implements Runnable {
     public void publishPacket(PacketPojo packetPojo) {
         if (!this.packets.offer(packetPojo)) {
             // The queue is full, discard the eldest packet
+            this.dropped.incrementAndGet();
             try {
                 // Discard the packet.
                 this.consumePacket(0);
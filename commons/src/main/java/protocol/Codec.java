@@ -0,0 +1,93 @@
+package protocol;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import protocol.json.BinaryMapper;
+import protocol.json.JSONMapper;
+import protocol.json.PacketPojo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The encodings of the body of a WQPacket.
+ * JSON is the default one, BINARY is negotiated at LOGIN (@link PacketPojo).
+ * A receiver always detects the encoding of a body from its first byte,
+ * so it can always decode both.
+ */
+public enum Codec {
+
+    JSON {
+        @Override
+        public byte[] encode(PacketPojo packet) {
+            try {
+                return JSONMapper.objectMapper.writeValueAsBytes(packet);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Not serializable");
+            }
+        }
+
+        @Override
+        public PacketPojo decode(ByteBuffer body) {
+            try {
+                PacketPojo packet;
+                if (body.hasArray()) {
+                    packet = JSONMapper.objectMapper.readValue(
+                            body.array(),
+                            body.arrayOffset() + body.position(),
+                            body.remaining(),
+                            PacketPojo.class
+                    );
+                } else {
+                    packet = JSONMapper.objectMapper.readValue(
+                            new ByteBufferBackedInputStream(body.duplicate()),
+                            PacketPojo.class
+                    );
+                }
+                body.position(body.limit());
+                return packet;
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Not deserializable");
+            }
+        }
+    },
+
+    BINARY {
+        @Override
+        public byte[] encode(PacketPojo packet) {
+            return BinaryMapper.writeValueAsBytes(packet);
+        }
+
+        @Override
+        public PacketPojo decode(ByteBuffer body) {
+            return BinaryMapper.readValue(body);
+        }
+    };
+
+    /**
+     * @param packet
+     * @return the body bytes of the packet in this encoding.
+     * @throws IllegalArgumentException if the packet can't be serialized.
+     */
+    public abstract byte[] encode(PacketPojo packet);
+
+    /**
+     * Parses a body in this encoding. It consumes all the remaining bytes of body.
+     * @param body
+     * @return the packet in its object representation.
+     * @throws IllegalArgumentException if the body is not a valid packet.
+     */
+    public abstract PacketPojo decode(ByteBuffer body);
+
+    /**
+     * A JSON body is an object, so it starts with '{', while a binary body
+     * starts with the operation code byte which is always lower.
+     * @param body
+     * @return the encoding of body.
+     */
+    public static Codec detect(ByteBuffer body) {
+        return body.hasRemaining() && body.get(body.position()) == '{'
+                ? JSON
+                : BINARY;
+    }
+}
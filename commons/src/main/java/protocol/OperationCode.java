@@ -16,7 +16,11 @@ public enum OperationCode {
     FORWARD_CHALLENGE,
     SETUP_CHALLENGE,
     ASK_WORD,
-    STOP_CHALLENGE;
+    STOP_CHALLENGE,
+    // Client acknowledgement of a notification received over UDP.
+    ACK_NOTIFICATION,
+    // Request of a challenge against a random opponent.
+    MATCHMAKING;
 
     private static final OperationCode[] operationCodes = OperationCode.values();
 
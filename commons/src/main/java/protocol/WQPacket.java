@@ -1,14 +1,8 @@
 package protocol;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import protocol.json.PacketPojo;
-import protocol.json.JSONMapper;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.List;
-
 
 /**
  * This is a packet exchanged from the client to the server and vice versa.
@@ -31,8 +25,9 @@ public class WQPacket {
     private int totalLength;
     /**
      * The body of the packet containing the parameters of a request.
-     * It is always a json.
+     * It is a json or its binary encoding.
      * @link PacketPojo.
+     * @link Codec.
      */
     private byte[] body;
 
@@ -50,11 +45,7 @@ public class WQPacket {
             throw new IllegalArgumentException("Invalid opCode or body");
         this.body = body;
         this.totalLength = this.body.length + getHeaderByteNumber();
-        try {
-            this.deserializedBody = JSONMapper.objectMapper.readValue(this.body, PacketPojo.class);
-        } catch (IOException e) {
-            throw new IllegalArgumentException("Not deserializable");
-        }
+        this.deserializedBody = WQPacket.fromBody(ByteBuffer.wrap(this.body));
     }
 
     /**
@@ -66,18 +57,24 @@ public class WQPacket {
     }
 
     /**
-     * Wraps a packetPojo and serializes it to bytes. Adds the header indicating the totalLength.
+     * Wraps a packetPojo and serializes it to json bytes. Adds the header indicating the totalLength.
      * @param commandPojo
      */
     public WQPacket(PacketPojo commandPojo) {
-        if (commandPojo != null) {
-            try {
-                this.deserializedBody = commandPojo;
-                this.body = JSONMapper.objectMapper.writeValueAsBytes(commandPojo);
-                this.totalLength = this.body.length + WQPacket.getHeaderByteNumber();
-            } catch (JsonProcessingException e) {
-                throw new IllegalArgumentException("Not serializable");
-            }
+        this(commandPojo, Codec.JSON);
+    }
+
+    /**
+     * Wraps a packetPojo and serializes it to bytes with the given encoding.
+     * Adds the header indicating the totalLength.
+     * @param commandPojo
+     * @param codec
+     */
+    public WQPacket(PacketPojo commandPojo, Codec codec) {
+        if (commandPojo != null && codec != null) {
+            this.deserializedBody = commandPojo;
+            this.body = codec.encode(commandPojo);
+            this.totalLength = this.body.length + WQPacket.getHeaderByteNumber();
         } else {
             throw new IllegalArgumentException("Invalid parameter.");
         }
@@ -133,18 +130,22 @@ public class WQPacket {
         return wqPacket.getDeserializedBody();
     }
 
-    public static PacketPojo fromBytes(ByteBuffer ...packetBytes) {
-        return WQPacket.fromBytes(concat(packetBytes));
+    /**
+     * Parses the body of a packet (header excluded) directly from a buffer,
+     * without copying it, detecting its encoding.
+     * It consumes all the remaining bytes of body.
+     * @param body
+     * @return the packet in its object representation.
+     * @throws IllegalArgumentException if the body is not a valid packet.
+     */
+    public static PacketPojo fromBody(ByteBuffer body) {
+        return Codec.detect(body).decode(body);
     }
 
-    public static PacketPojo fromBytes(List<ByteBuffer> packetBytes) {
+    public static PacketPojo fromBytes(ByteBuffer ...packetBytes) {
         return WQPacket.fromBytes(concat(packetBytes));
     }
 
-    public static int getPacketLengthFromHeaderBytes(List<ByteBuffer> headerChunks) {
-        return WQPacket.getPacketLengthFromHeaderBytes(concat(headerChunks));
-    }
-
     /**
      * @param header
      * @return the totalLength of a packet; -1 indicates that the header has not yet been read.
@@ -167,11 +168,11 @@ public class WQPacket {
     /**
      * Concatenates one or more byte buffers to one large buffer. The combined
      * size of all buffers must not exceed {@link java.lang.Integer#MAX_VALUE}.
-     * @param bbs list of byte buffers to combine
+     * @param bbs one or more byte buffers to combine
      * @return byte buffer containing the combined content of the supplied byte
      *         buffers
      */
-    public static ByteBuffer concat(List<ByteBuffer> bbs) {
+    private static ByteBuffer concat(ByteBuffer ...bbs) {
         long length = 0;
         // get amount of remaining bytes from all buffers
         for (ByteBuffer bb : bbs) {
@@ -184,7 +185,8 @@ public class WQPacket {
         if (length == 0) {
             return ByteBuffer.allocate(0);
         }
-        ByteBuffer bbNew = ByteBuffer.allocateDirect((int) length);
+        // Short-lived: a heap buffer is cheaper to allocate than a direct one.
+        ByteBuffer bbNew = ByteBuffer.allocate((int) length);
         // put all buffers from list
         for (ByteBuffer bb : bbs) {
             bb.rewind();
@@ -194,15 +196,4 @@ public class WQPacket {
         bbNew.rewind();
         return bbNew;
     }
-
-    /**
-     * Concatenates one or more byte buffers to one large buffer. The combined
-     * size of all buffers must not exceed {@link java.lang.Integer#MAX_VALUE}.
-     * @param bb one or more byte buffers to combine
-     * @return byte buffer containing the combined content of the supplied byte
-     *         buffers
-     */
-    private static ByteBuffer concat(ByteBuffer ...bb) {
-        return concat(Arrays.asList(bb));
-    }
 }
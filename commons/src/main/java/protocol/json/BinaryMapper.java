@@ -0,0 +1,199 @@
+package protocol.json;
+
+import protocol.Codec;
+import protocol.OperationCode;
+import protocol.ResponseCode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Serializes a PacketPojo in the compact binary encoding:
+ * [operation code: 1 byte][response code: 1 byte, 0xFF if absent][presence mask: 2 bytes]
+ * followed by the fields which are not null, in the order of the mask bits.
+ * Strings are UTF-8 bytes prefixed by their length (2 bytes, unsigned),
+ * collections are prefixed by their size (4 bytes).
+ */
+public class BinaryMapper {
+
+    /** The response code byte of a request. */
+    private static final byte NO_RESPONSE_CODE = (byte) 0xFF;
+    /** The maximum length in bytes of a string field. */
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    // The presence mask bits.
+    private static final int TTL = 1;
+    private static final int TIMESTAMP = 1 << 1;
+    private static final int CORRELATION_ID = 1 << 2;
+    private static final int CODEC = 1 << 3;
+    private static final int NICKNAME = 1 << 4;
+    private static final int PASSWORD = 1 << 5;
+    private static final int UDP_PORT = 1 << 6;
+    private static final int FRIEND = 1 << 7;
+    private static final int WORD = 1 << 8;
+    private static final int TRANSLATION = 1 << 9;
+    private static final int MESSAGE = 1 << 10;
+    private static final int RANKING = 1 << 11;
+    private static final int FRIENDS = 1 << 12;
+    private static final int SCORES = 1 << 13;
+
+    private BinaryMapper() { }
+
+    /**
+     * @param packet
+     * @return the binary body of the packet.
+     * @throws IllegalArgumentException if the packet can't be serialized.
+     */
+    public static byte[] writeValueAsBytes(PacketPojo packet) {
+        if (packet.operationCode == null)
+            throw new IllegalArgumentException("Not serializable");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(OperationCode.toOneByte(packet.operationCode));
+            out.writeByte(packet.responseCode == null
+                    ? NO_RESPONSE_CODE
+                    : (byte) packet.responseCode.ordinal()
+            );
+            out.writeShort(mask(packet));
+            if (packet.ttl != null) out.writeInt(packet.ttl);
+            if (packet.timestamp != null) out.writeLong(packet.timestamp);
+            if (packet.correlationId != null) out.writeInt(packet.correlationId);
+            if (packet.codec != null) out.writeByte(packet.codec.ordinal());
+            if (packet.nickName != null) writeString(out, packet.nickName);
+            if (packet.password != null) writeString(out, packet.password);
+            if (packet.UDPPort != null) out.writeInt(packet.UDPPort);
+            if (packet.friend != null) writeString(out, packet.friend);
+            if (packet.word != null) writeString(out, packet.word);
+            if (packet.translation != null) writeString(out, packet.translation);
+            if (packet.message != null) writeString(out, packet.message);
+            if (packet.rankingList != null) {
+                out.writeInt(packet.rankingList.size());
+                for (RankingListItem item : packet.rankingList) {
+                    writeString(out, item.name);
+                    out.writeInt(item.score);
+                }
+            }
+            if (packet.friends != null) {
+                out.writeInt(packet.friends.size());
+                for (String friend : packet.friends) {
+                    writeString(out, friend);
+                }
+            }
+            if (packet.scores != null) out.writeInt(packet.scores);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Not serializable");
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Parses a binary body. It consumes all the remaining bytes of body.
+     * @param body
+     * @return the packet in its object representation.
+     * @throws IllegalArgumentException if the body is not a valid packet.
+     */
+    public static PacketPojo readValue(ByteBuffer body) {
+        try {
+            PacketPojo packet = new PacketPojo();
+            packet.operationCode = OperationCode.fromByte(body.get());
+            byte responseCode = body.get();
+            if (responseCode != NO_RESPONSE_CODE) {
+                packet.responseCode = ResponseCode.values()[responseCode];
+            }
+            int mask = body.getShort() & 0xFFFF;
+            if ((mask & TTL) != 0) packet.ttl = body.getInt();
+            if ((mask & TIMESTAMP) != 0) packet.timestamp = body.getLong();
+            if ((mask & CORRELATION_ID) != 0) packet.correlationId = body.getInt();
+            if ((mask & CODEC) != 0) packet.codec = Codec.values()[body.get()];
+            if ((mask & NICKNAME) != 0) packet.nickName = readString(body);
+            if ((mask & PASSWORD) != 0) packet.password = readString(body);
+            if ((mask & UDP_PORT) != 0) packet.UDPPort = body.getInt();
+            if ((mask & FRIEND) != 0) packet.friend = readString(body);
+            if ((mask & WORD) != 0) packet.word = readString(body);
+            if ((mask & TRANSLATION) != 0) packet.translation = readString(body);
+            if ((mask & MESSAGE) != 0) packet.message = readString(body);
+            if ((mask & RANKING) != 0) {
+                int size = readSize(body);
+                List<RankingListItem> ranking = new ArrayList<>(size);
+                for (int i = 0; i < size; ++i) {
+                    ranking.add(new RankingListItem(readString(body), body.getInt()));
+                }
+                packet.rankingList = ranking;
+            }
+            if ((mask & FRIENDS) != 0) {
+                int size = readSize(body);
+                Set<String> friends = new HashSet<>();
+                for (int i = 0; i < size; ++i) {
+                    friends.add(readString(body));
+                }
+                packet.friends = friends;
+            }
+            if ((mask & SCORES) != 0) packet.scores = body.getInt();
+            if (body.hasRemaining()) {
+                throw new IllegalArgumentException("Not deserializable");
+            }
+            return packet;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Not deserializable");
+        }
+    }
+
+    private static int mask(PacketPojo packet) {
+        int mask = 0;
+        if (packet.ttl != null) mask |= TTL;
+        if (packet.timestamp != null) mask |= TIMESTAMP;
+        if (packet.correlationId != null) mask |= CORRELATION_ID;
+        if (packet.codec != null) mask |= CODEC;
+        if (packet.nickName != null) mask |= NICKNAME;
+        if (packet.password != null) mask |= PASSWORD;
+        if (packet.UDPPort != null) mask |= UDP_PORT;
+        if (packet.friend != null) mask |= FRIEND;
+        if (packet.word != null) mask |= WORD;
+        if (packet.translation != null) mask |= TRANSLATION;
+        if (packet.message != null) mask |= MESSAGE;
+        if (packet.rankingList != null) mask |= RANKING;
+        if (packet.friends != null) mask |= FRIENDS;
+        if (packet.scores != null) mask |= SCORES;
+        return mask;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH)
+            throw new IllegalArgumentException("Not serializable: string too long");
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer body) {
+        int length = body.getShort() & 0xFFFF;
+        if (length > body.remaining()) throw new BufferUnderflowException();
+        String string;
+        if (body.hasArray()) {
+            string = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            body.duplicate().get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        body.position(body.position() + length);
+        return string;
+    }
+
+    /**
+     * @return a collection size, checked against the bytes left (every item takes 2 bytes at least).
+     */
+    private static int readSize(ByteBuffer body) {
+        int size = body.getInt();
+        if (size < 0 || size > body.remaining() / 2) throw new BufferUnderflowException();
+        return size;
+    }
+}
@@ -2,6 +2,7 @@ package protocol.json;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import protocol.Codec;
 import protocol.OperationCode;
 import protocol.ResponseCode;
 
@@ -11,7 +12,7 @@ import java.util.Set;
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class PacketPojo {
 
-    private PacketPojo() { }
+    PacketPojo() { }
 
     public PacketPojo(OperationCode operationCode) {
         this.operationCode = operationCode;
@@ -43,12 +44,25 @@ public class PacketPojo {
                 .setFriend(player2);
     }
 
+    public static PacketPojo buildMatchmakingRequest() {
+        return new PacketPojo(OperationCode.MATCHMAKING);
+    }
+
     public static PacketPojo buildForwardChallengeRequest(String sender, Integer ttl) {
         return new PacketPojo(OperationCode.FORWARD_CHALLENGE)
                 .setFriend(sender)
                 .setTtl(ttl);
     }
 
+    /**
+     * Used to acknowledge a notification received over UDP.
+     * @param sequence the correlation id of the notification.
+     */
+    public static PacketPojo buildNotificationAck(Integer sequence) {
+        return new PacketPojo(OperationCode.ACK_NOTIFICATION, ResponseCode.OK)
+                .setCorrelationId(sequence);
+    }
+
     public static PacketPojo buildAddFriendRequest(String friend) {
         return new PacketPojo(OperationCode.ADD_FRIEND).setFriend(friend);
     }
@@ -115,6 +129,27 @@ public class PacketPojo {
      */
     @JsonProperty("ts")
     Long timestamp;
+
+    /**
+     * The correlation id chosen by the client for a request and echoed by the
+     * server in its response, so that more requests can be in-flight on the same
+     * connection. The server processes pipelined requests concurrently:
+     * a request that depends on the outcome of another (ex. LOGIN) should not be
+     * sent before its response is received.
+     * Packets pushed by the server (ex. during a challenge) have no id.
+     * Notifications sent over UDP have a sequence number as id instead, the client
+     * acknowledges them with an ACK_NOTIFICATION carrying the same id.
+     */
+    @JsonProperty("id")
+    Integer correlationId;
+
+    /**
+     * Login request: the body encoding preferred by the client.
+     * Login response: the encoding accepted by the server for the rest of the session,
+     * if absent the client must keep sending JSON.
+     */
+    @JsonProperty("c")
+    Codec codec;
     /* -------------------------------------------- */
     // Request fields for each operation code.
 
@@ -234,6 +269,38 @@ public class PacketPojo {
         return timestamp;
     }
 
+    public ResponseCode getResponseCode() {
+        return responseCode;
+    }
+
+    public Integer getCorrelationId() {
+        return correlationId;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the body encoding requested in a LOGIN request or accepted in its response.
+     * @param codec
+     * @return this
+     */
+    public PacketPojo setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Sets the correlation id of a request, or of the response to a request.
+     * @param correlationId
+     * @return this
+     */
+    public PacketPojo setCorrelationId(Integer correlationId) {
+        this.correlationId = correlationId;
+        return this;
+    }
+
     public boolean isRequest() {
         return this.responseCode == null;
     }
@@ -277,6 +344,7 @@ public class PacketPojo {
                 // word to be asked
                 return this.word != null;
             case LOGOUT:
+            case MATCHMAKING:
             case GET_FRIENDS:
             case GET_SCORE:
             case GET_RANKING:
@@ -0,0 +1,97 @@
+package protocol;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import protocol.json.PacketPojo;
+import protocol.json.RankingListItem;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class CodecTest {
+
+    @Test
+    void binaryRequestEqualityTest() {
+        PacketPojo loginPacket = PacketPojo.buildLoginRequest("usèr1", "11111", 23)
+                .setCodec(Codec.BINARY)
+                .setCorrelationId(42);
+        WQPacket wqPacket = new WQPacket(loginPacket, Codec.BINARY);
+        PacketPojo deserializedPacket = WQPacket.fromBytes(ByteBuffer.wrap(wqPacket.toBytes()));
+        Assertions.assertTrue(deserializedPacket.isRequest());
+        Assertions.assertTrue(deserializedPacket.isWellFormedRequestPacket());
+        Assertions.assertEquals(OperationCode.LOGIN, deserializedPacket.getOperationCode());
+        Assertions.assertEquals("usèr1", deserializedPacket.getNickName());
+        Assertions.assertEquals("11111", deserializedPacket.getPassword());
+        Assertions.assertEquals(Integer.valueOf(23), deserializedPacket.getUDPPort());
+        Assertions.assertEquals(Codec.BINARY, deserializedPacket.getCodec());
+        Assertions.assertEquals(Integer.valueOf(42), deserializedPacket.getCorrelationId());
+        Assertions.assertEquals(loginPacket.getTimestamp(), deserializedPacket.getTimestamp());
+    }
+
+    @Test
+    void binaryResponseEqualityTest() {
+        List<RankingListItem> ranking = Arrays.asList(
+                new RankingListItem("user1", 10),
+                new RankingListItem("user2", 3)
+        );
+        PacketPojo deserializedPacket = WQPacket.fromBody(ByteBuffer.wrap(
+                Codec.BINARY.encode(PacketPojo.buildRankingResponse(ranking))
+        ));
+        Assertions.assertTrue(deserializedPacket.isSuccessfullResponse());
+        Assertions.assertEquals(2, deserializedPacket.getRankingList().size());
+        Assertions.assertEquals("user2", deserializedPacket.getRankingList().get(1).name);
+        Assertions.assertEquals(3, deserializedPacket.getRankingList().get(1).score);
+
+        Set<String> friends = new HashSet<>(Arrays.asList("a", "b", "c"));
+        deserializedPacket = WQPacket.fromBody(ByteBuffer.wrap(
+                Codec.BINARY.encode(PacketPojo.buildGetFriendsResponse(friends))
+        ));
+        Assertions.assertEquals(friends, deserializedPacket.getFriends());
+    }
+
+    @Test
+    void detectEncodingTest() {
+        PacketPojo packet = PacketPojo.buildAskWordResponse("casa", "house");
+        byte[] json = Codec.JSON.encode(packet);
+        byte[] binary = Codec.BINARY.encode(packet);
+        Assertions.assertEquals(Codec.JSON, Codec.detect(ByteBuffer.wrap(json)));
+        Assertions.assertEquals(Codec.BINARY, Codec.detect(ByteBuffer.wrap(binary)));
+        Assertions.assertTrue(binary.length < json.length);
+        for (byte[] body : Arrays.asList(json, binary)) {
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            PacketPojo deserializedPacket = WQPacket.fromBody(buffer);
+            Assertions.assertFalse(buffer.hasRemaining());
+            Assertions.assertEquals(OperationCode.ASK_WORD, deserializedPacket.getOperationCode());
+            Assertions.assertEquals("casa", deserializedPacket.getWord());
+            Assertions.assertEquals("house", deserializedPacket.getTranslation());
+        }
+    }
+
+    @Test
+    void malformedBinaryTest() {
+        byte[] binary = Codec.BINARY.encode(PacketPojo.buildAskWordRequest("casa"));
+        Assertions.assertThrows(IllegalArgumentException.class, () ->
+                WQPacket.fromBody(ByteBuffer.wrap(Arrays.copyOf(binary, binary.length - 1)))
+        );
+        Assertions.assertThrows(IllegalArgumentException.class, () ->
+                WQPacket.fromBody(ByteBuffer.wrap(new byte[] { 100, 0, 0, 0 }))
+        );
+    }
+
+    @Test
+    void notificationAckTest() {
+        PacketPojo notification = PacketPojo.buildForwardChallengeRequest("user1", 5000)
+                .setCorrelationId(7);
+        for (Codec codec : Codec.values()) {
+            PacketPojo received = WQPacket.fromBytes(ByteBuffer.wrap(new WQPacket(notification, codec).toBytes()));
+            PacketPojo ack = WQPacket.fromBytes(ByteBuffer.wrap(
+                    new WQPacket(PacketPojo.buildNotificationAck(received.getCorrelationId()), codec).toBytes()
+            ));
+            Assertions.assertEquals(OperationCode.ACK_NOTIFICATION, ack.getOperationCode());
+            Assertions.assertEquals(Integer.valueOf(7), ack.getCorrelationId());
+        }
+    }
+}
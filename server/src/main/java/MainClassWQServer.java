@@ -1,8 +1,12 @@
 import RMIRegistrationService.RegistrationRemoteService;
+import challenge.ChallengeEngine;
 import challenge.ChallengeHandler;
+import challenge.Matchmaker;
 import challenge.NotifierService;
-import connection.AsyncRegistrations;
+import connection.Reactor;
+import metrics.Metrics;
 import connection.State;
+import executors.ServerExecutors;
 import protocol.Config;
 import protocol.OperationCode;
 import protocol.ResponseCode;
@@ -11,10 +15,10 @@ import protocol.json.PacketPojo;
 import storage.RegistrationRegistry;
 import storage.UserStorage;
 import translation.BaseTranslationService;
+import translation.DictionaryPool;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -23,22 +27,25 @@ import java.rmi.server.UnicastRemoteObject;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 
 /**
- * The server main thread reads/writes packets to/from the clients
- * through multiplexing via selector.
- * The tasks are instead executed asynchronously by the ForJoinCommonPool.
+ * The server main thread accepts the clients connections and hands each of them
+ * to one of the reactors, which read/write packets to/from the clients
+ * through multiplexing via their own selector.
+ * The blocking tasks are instead executed asynchronously by the bounded
+ * storage and translation executors of ServerExecutors.
  */
 class MainClassWQServer {
 
-    private final int BUFFER_SIZE = 512;
-
     ServerSocketChannel socket;
     Selector selector;
     Registry registry;
-    private AsyncRegistrations asyncRegistrations;
+    /** The event loops serving the clients connections. */
+    private Reactor[] reactors;
+    /** The index of the reactor which will receive the next connection. */
+    private int nextReactor = 0;
 
     MainClassWQServer() throws IOException {
 
@@ -62,8 +69,15 @@ class MainClassWQServer {
         socket.bind(new InetSocketAddress(Config.TCP_PORT));
         socket.configureBlocking(false);
         selector = Selector.open();
-        asyncRegistrations = new AsyncRegistrations();
         socket.register(selector, SelectionKey.OP_ACCEPT);
+        // Starts the reactors.
+        int reactorThreads = configurations.Config.getInstance().getReactorThreads();
+        reactors = new Reactor[reactorThreads];
+        for (int i = 0; i < reactorThreads; i++) {
+            reactors[i] = new Reactor(this::execute);
+            Thread reactorThread = new Thread(reactors[i], "reactor-" + i);
+            reactorThread.start();
+        }
         // Sets up udp socket.
         NotifierService.getInstance();
 
@@ -73,21 +87,10 @@ class MainClassWQServer {
     public void run() {
         while(true) {
             try {
-                this.asyncRegistrations.callAll();
                 selector.select();
                 for (SelectionKey key : selector.selectedKeys()) {
-                    try {
-                        if (key.isAcceptable()) {
-                            accept(key);
-                        }
-                        if (key.isReadable()) {
-                            read(key);
-                        }
-                        if (key.isWritable()) {
-                            write(key);
-                        }
-                    } catch (CancelledKeyException e) {
-                        AsyncRegistrations.deregisterClientSocket(key);
+                    if (key.isAcceptable()) {
+                        accept();
                     }
                 }
                 selector.selectedKeys().clear();
@@ -97,77 +100,48 @@ class MainClassWQServer {
         }
     }
 
-    private void write(SelectionKey key) throws IOException {
-        SocketChannel client = (SocketChannel) key.channel();
-        State state = (State) key.attachment();
-        configurations.Config.getInstance().debugLogger("Write for client " + state.getClientNick());
-        ByteBuffer toSend = state.getPacketToWrite();
-        configurations.Config.getInstance().debugLogger(toSend);
-        client.write(toSend);
-        if (toSend.hasRemaining()) {
-            // Must finish to write the response
-            key.interestOps(SelectionKey.OP_WRITE);
-        } else {
-            state.setPacketToWrite(null);
-            if (state.isMainReadSelectable()) {
-                configurations.Config.getInstance().debugLogger(
-                        "Client registered for reading "
-                                + state.getClientNick()
-                );
-                key.interestOps(SelectionKey.OP_READ);
-            } else {
-                // Rest interests in this selector.
-                key.interestOps(0);
-            }
-        }
-    }
-
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel client = (SocketChannel) key.channel();
-        State clientConnection = (State) key.attachment();
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        int read = client.read(buffer);
-        if (read == -1) {
-            // The client-server direction has been closed.
-            // Close the connection too.
-            client.close();
-        } else {
-            // Prepare buffer to be parsed.
-            buffer.flip();
-            // Add buffer to those that will be parsed and returns true if the packet is
-            // completely arrived.
-            boolean hasReadAllPacket = clientConnection.addChunk(buffer);
-            if (hasReadAllPacket) {
-                PacketPojo packet = clientConnection.buildWQPacketFromChucks();
-                configurations.Config.getInstance().debugLogger("Received packet " + packet.getOperationCode());
-                this.processCommand(packet, key, clientConnection);
-            } else {
-                // Synchronously register read interest for the client
-                // It should finish to read the request packet.
-                key.interestOps(SelectionKey.OP_READ);
-            }
-        }
-    }
-
-    private void accept(SelectionKey key) throws IOException {
+    private void accept() throws IOException {
         SocketChannel client = socket.accept();
+        if (client == null) return;
         configurations.Config.getInstance().debugLogger("New Client connected!");
         client.configureBlocking(false);
-        State state = new State(client);
-        // The server will wait for client's commands
-        SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ, state);
-        state.setMainKey(clientKey);
+        // Round robin assignment of the connection to a reactor.
+        Reactor reactor = this.reactors[this.nextReactor];
+        this.nextReactor = (this.nextReactor + 1) % this.reactors.length;
+        reactor.accept(client);
     }
 
     /**
-     * An async executor of operations.
+     * Executes a command read by a reactor. If the executor in charge of it
+     * is full the client is answered with an ERROR "server busy" packet.
+     * @param packet
+     * @param client
+     * @param state
+     */
+    private void execute(PacketPojo packet, SelectionKey client, State state) {
+        try {
+            this.processCommand(packet, client, state);
+        } catch (RejectedExecutionException e) {
+            configurations.Config.getInstance().debugLogger(e.getMessage());
+            this.respond(client, state, packet, new PacketPojo(
+                    packet.getOperationCode(),
+                    ResponseCode.ERROR,
+                    "server busy"
+            ));
+        }
+    }
+
+    /**
+     * An async executor of operations, called by the reactor owning the client.
      * It executes a command given in a packet and once the computation has finished
      * it may compile a response (based upon the results obtained) and registers the
      * interest to write back to the client or closes the connection.
+     * More requests of the same client can be in-flight: every response carries
+     * the correlation id of its request and may be written out of order.
      * @param packet
      * @param client
      * @param state
-     * @throws ClosedChannelException
+     * @throws RejectedExecutionException if the executor in charge of the command is full.
      */
     private void processCommand(
             final PacketPojo packet,
@@ -182,33 +156,41 @@ class MainClassWQServer {
                 case LOGIN:
                     if (state.isAssigned()) {
                         // If this connection has already a user do not accept login op.
-                        state.setPacketToWrite(new WQPacket(
-                                new PacketPojo(operationCode, ResponseCode.ERROR, "This connection is already assigned to: " + state.getClientNick()))
+                        this.respond(client, state, packet,
+                                new PacketPojo(operationCode, ResponseCode.ERROR, "This connection is already assigned to: " + state.getClientNick())
                         );
-                        client.interestOps(SelectionKey.OP_WRITE);
                     } else {
-                        CompletableFuture.supplyAsync(() -> UserStorage.getInstance()
-                                .logInUser(packet.getNickName(), packet.getPassword())
+                        CompletableFuture.supplyAsync(
+                                () -> UserStorage.getInstance()
+                                        .logInUser(packet.getNickName(), packet.getPassword()),
+                                ServerExecutors.getInstance().getStorageExecutor()
                         ).whenComplete((succeed, ex) -> {
+                            PacketPojo response;
                             if (ex == null && succeed) {
                                 // Set this client connection information.
                                 state.setClientNick(packet.getNickName());
                                 state.setUDPPort(packet.getUDPPort());
                                 NotifierService.getInstance().addConnection(packet.getNickName(), state);
+                                response = new PacketPojo(packet.getOperationCode(), ResponseCode.OK);
+                                if (packet.getCodec() != null) {
+                                    // Accepts the encoding requested by the client, the response
+                                    // confirms it and is already encoded with it.
+                                    state.setCodec(packet.getCodec());
+                                    response.setCodec(packet.getCodec());
+                                }
+                            } else {
+                                response = new PacketPojo(packet.getOperationCode(), ResponseCode.ERROR);
                             }
                             // Prepare the answer.
-                            state.setPacketToWrite(new WQPacket(new PacketPojo(packet.getOperationCode(),
-                                    ex == null && succeed
-                                            ? ResponseCode.OK
-                                            : ResponseCode.ERROR
-                            )));
-                            this.asyncRegistrations.register(client, SelectionKey.OP_WRITE);
+                            this.respondAsync(client, state, packet, response);
                         });
                     }
                     break;
                 case LOGOUT:
-                    CompletableFuture.supplyAsync(() -> UserStorage.getInstance()
-                            .logOutUser(state.getClientNick())
+                    CompletableFuture.supplyAsync(
+                            () -> UserStorage.getInstance()
+                                    .logOutUser(state.getClientNick()),
+                            ServerExecutors.getInstance().getStorageExecutor()
                     ).thenAccept((succeed) -> {
                         if (succeed) {
                             configurations.Config.getInstance().debugLogger("Logging out");
@@ -218,46 +200,42 @@ class MainClassWQServer {
                             state.reset();
                         }
                         // Sets the response packet.
-                        state.setPacketToWrite(new WQPacket(new PacketPojo(
+                        this.respondAsync(client, state, packet, new PacketPojo(
                                 packet.getOperationCode(),
                                 succeed
                                         ? ResponseCode.OK
                                         : ResponseCode.ERROR
-                        )));
-                        this.asyncRegistrations.register(client, SelectionKey.OP_WRITE);
+                        ));
 
                         // Disconnect the client only when the client closes the socket connection.
                     });
                     break;
                 case ADD_FRIEND:
-                    CompletableFuture.supplyAsync(() -> UserStorage.getInstance()
-                            .addFriend(state.getClientNick(), packet.getFriend())
+                    CompletableFuture.supplyAsync(
+                            () -> UserStorage.getInstance()
+                                    .addFriend(state.getClientNick(), packet.getFriend()),
+                            ServerExecutors.getInstance().getStorageExecutor()
                     ).thenAccept(succeed -> {
-                        state.setPacketToWrite(new WQPacket(new PacketPojo(
+                        this.respondAsync(client, state, packet, new PacketPojo(
                                 packet.getOperationCode(),
                                 succeed
                                         ? ResponseCode.OK
                                         : ResponseCode.ERROR
-                        )));
-                        this.asyncRegistrations.register(client, SelectionKey.OP_WRITE);
+                        ));
                     });
                     break;
                 case GET_FRIENDS:
                     try {
                         Set<String> friends =
                                 UserStorage.getInstance().getFriends(state.getClientNick());
-                        state.setPacketToWrite(new WQPacket(
-                                PacketPojo.buildGetFriendsResponse(friends)
-                        ));
-                        client.interestOps(SelectionKey.OP_WRITE);
+                        this.respond(client, state, packet, PacketPojo.buildGetFriendsResponse(friends));
                     } catch (NoSuchElementException | IllegalArgumentException e) {
                         // Answers immediately if an exception occurs.
-                        state.setPacketToWrite(new WQPacket(new PacketPojo(
+                        this.respond(client, state, packet, new PacketPojo(
                                 packet.getOperationCode(),
                                 ResponseCode.ERROR,
                                 e.getMessage()
-                        )));
-                        client.interestOps(SelectionKey.OP_WRITE);
+                        ));
                     }
                     break;
                 case GET_SCORE:
@@ -265,36 +243,36 @@ class MainClassWQServer {
                     // is already loaded from the file.
                     try {
                         int scores = UserStorage.getInstance().getScore(state.getClientNick());
-                        state.setPacketToWrite(new WQPacket(PacketPojo.buildScoreResponse(scores)));
+                        this.respond(client, state, packet, PacketPojo.buildScoreResponse(scores));
                     } catch (NoSuchElementException e) {
-                        state.setPacketToWrite(new WQPacket(new PacketPojo(
+                        this.respond(client, state, packet, new PacketPojo(
                                 packet.getOperationCode(),
                                 ResponseCode.ERROR)
-                        ));
+                        );
                     }
-                    this.asyncRegistrations.register(client, SelectionKey.OP_WRITE);
                     break;
                 case GET_RANKING:
-                    CompletableFuture.supplyAsync(() -> UserStorage.getInstance()
-                                .getRankingList(state.getClientNick())
-                        ).whenComplete((list, ex) -> {
+                    CompletableFuture.supplyAsync(
+                            () -> UserStorage.getInstance()
+                                    .getRankingList(state.getClientNick()),
+                            ServerExecutors.getInstance().getStorageExecutor()
+                    ).whenComplete((list, ex) -> {
                         if (ex == null) {
                             try {
-                                state.setPacketToWrite(new WQPacket(PacketPojo.buildRankingResponse(list)));
+                                this.respondAsync(client, state, packet, PacketPojo.buildRankingResponse(list));
                             } catch (IllegalArgumentException e) {
-                                state.setPacketToWrite(new WQPacket(new PacketPojo(
+                                this.respondAsync(client, state, packet, new PacketPojo(
                                         packet.getOperationCode(),
                                         ResponseCode.ERROR,
                                         e.getMessage()
-                                )));
+                                ));
                             }
                         } else {
-                            state.setPacketToWrite(new WQPacket(new PacketPojo(
+                            this.respondAsync(client, state, packet, new PacketPojo(
                                     packet.getOperationCode(),
                                     ResponseCode.ERROR
-                            )));
+                            ));
                         }
-                        this.asyncRegistrations.register(client, SelectionKey.OP_WRITE);
                     });
                     break;
                 case REQUEST_CHALLENGE:
@@ -312,10 +290,10 @@ class MainClassWQServer {
                                     state.getClientNick()
                                 );
                             if (hasNotified) {
-                                // Run in a separate thread so the whole server doesn't block
-                                CompletableFuture.runAsync(() -> {
-                                    this.setup(client, state.getClientNick(), state);
-                                });
+                                // Starts building the challenge dictionary while the request is pending.
+                                DictionaryPool.getInstance().prefetch(state.getClientNick());
+                                // Answers when the opponent does (or the request expires).
+                                this.setup(client, state.getClientNick(), state, packet);
                             } else {
                                 throw new IOException("Notifier couldn't notify the user.");
                             }
@@ -323,11 +301,36 @@ class MainClassWQServer {
                             throw new NoSuchElementException("Not online!");
                         }
                     } catch (IOException | NoSuchElementException e) {
-                        state.setPacketToWrite(new WQPacket(new PacketPojo(
+                        this.respond(client, state, packet, new PacketPojo(
                                 packet.getOperationCode(),
                                 ResponseCode.ERROR
-                        )));
-                        client.interestOps(SelectionKey.OP_WRITE);
+                        ));
+                    }
+                    break;
+                case MATCHMAKING:
+                    try {
+                        int score = UserStorage.getInstance().getScore(state.getClientNick());
+                        // Answers when an opponent is found (or the wait expires).
+                        boolean enqueued = Matchmaker.getInstance().enqueue(new Matchmaker.Ticket(
+                                state.getClientNick(),
+                                score,
+                                response -> {
+                                    if (response.isSuccessfullResponse()) {
+                                        // Exclude selectable state for reading in the main selector.
+                                        state.setMainReadSelectable(false);
+                                    }
+                                    this.respondAsync(client, state, packet, response);
+                                }
+                        ));
+                        if (!enqueued) {
+                            throw new IllegalStateException("Already waiting for an opponent");
+                        }
+                    } catch (NoSuchElementException | IllegalStateException e) {
+                        this.respond(client, state, packet, new PacketPojo(
+                                packet.getOperationCode(),
+                                ResponseCode.ERROR,
+                                e.getMessage()
+                        ));
                     }
                     break;
                 case FORWARD_CHALLENGE:
@@ -344,19 +347,11 @@ class MainClassWQServer {
                                 ))
                     )) {
                         configurations.Config.getInstance().debugLogger("Accepted " + state.getClientNick() + " " + sender);
-                        CompletableFuture.runAsync(() -> {
-                            // It's a blocking call, we don't want the whole server to stop
-                            this.setup(client, sender, state);
-                            // Run the challenge thread.
-                            try {
-                                ChallengeHandler challenge = new ChallengeHandler(this.asyncRegistrations, sender, state.getClientNick());
-                                Thread executor = new Thread(challenge);
-                                executor.start();
-                            } catch (NoSuchElementException e) {
-                                configurations.Config.getInstance().debugLogger("An error occurred in challenge setup: " + e);
-                                NotifierService.getInstance().clearPendingResponseEntry(sender);
-                            }
-                        });
+                        // The response is already set: both setups are answered now.
+                        this.setup(client, sender, state, packet);
+                        // Run the challenge in the challenge engine once its dictionary is ready.
+                        ChallengeHandler.prepare(sender, state.getClientNick())
+                                .thenAccept(ChallengeEngine.getInstance()::start);
                     } else {
                         // Sets error packet so that the requester does not wait till the timeout.
                         NotifierService.getInstance().setNotificationResponse(
@@ -368,7 +363,7 @@ class MainClassWQServer {
                                 ))
                         );
                         configurations.Config.getInstance().debugLogger("Discarded " + state.getClientNick());
-                        this.setup(client, sender, state);
+                        this.setup(client, sender, state, packet);
                         // Invalidate the original request.
                         NotifierService.getInstance().clearPendingResponseEntry(sender);
                     }
@@ -377,50 +372,97 @@ class MainClassWQServer {
                     configurations.Config.getInstance()
                             .debugLogger("Unhandled command! " + packet.getOperationCode());
                     // Register the client anyway.
-                    client.interestOps(SelectionKey.OP_READ);
+                    client.interestOps(state.getMainInterestOps());
             }
         } else {
-            state.setPacketToWrite(new WQPacket(
-                    new PacketPojo(operationCode, ResponseCode.ERROR, "Malformed request")
-            ));
             configurations.Config.getInstance().debugLogger("Malformed request from " + state.getClient() + " " + packet.getOperationCode());
-            client.interestOps(SelectionKey.OP_WRITE);
+            this.respond(client, state, packet,
+                    new PacketPojo(operationCode, ResponseCode.ERROR, "Malformed request")
+            );
         }
     }
 
     /**
-     * Async blocking call, waits for the timer to get a setup response from the NotifierService
-     * and sets it to be written to the client.
+     * Queues the response to a request and sets the client interests.
+     * It must be called by the reactor thread owning the client.
+     * @param client
+     * @param state
+     * @param request
+     * @param response
+     */
+    private void respond(SelectionKey client, State state, PacketPojo request, PacketPojo response) {
+        state.enqueuePacket(response.setCorrelationId(request.getCorrelationId()));
+        client.interestOps(state.getMainInterestOps());
+    }
+
+    /**
+     * Queues the response to a request and registers the write interest
+     * through the reactor queue. It can be called by any thread.
+     * @param client
+     * @param state
+     * @param request
+     * @param response
+     */
+    private void respondAsync(SelectionKey client, State state, PacketPojo request, PacketPojo response) {
+        state.enqueuePacket(response.setCorrelationId(request.getCorrelationId()));
+        state.getAsyncRegistrations().register(client, SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Answers to a client waiting for the setup of a challenge when the setup response
+     * from the NotifierService is available, no thread waits for it: the response
+     * is written by the thread completing it (i.e. the reactor of the opponent or the timer).
      * It is used to sync the players for a battle and to assure that every one gets the right response
      * according to the setup policy.
      * @param client
      * @param requester
      * @param state
+     * @param request the packet of the client which waits for the setup.
      */
-    private void setup(SelectionKey client, String requester, State state) {
+    private void setup(SelectionKey client, String requester, State state, PacketPojo request) {
+        CompletableFuture<WQPacket> response;
         try {
-            // Waits for the response.
-            WQPacket response = NotifierService.getInstance()
-                    .getResponse(requester);
-            if (OperationCode.SETUP_CHALLENGE.equals(
-                    response.getDeserializedBody().getOperationCode())
-                    && response.getDeserializedBody().isSuccessfullResponse()
-            ) {
-                // Exclude selectable state for reading in the main selector.
-                state.setMainReadSelectable(false);
-            }
-            state.setPacketToWrite(response);
-        } catch ( ExecutionException
-                | InterruptedException
-                | NoSuchElementException e)
-        {
-            state.setPacketToWrite(NotifierService.ERROR_SETUP);
-        } finally {
-            this.asyncRegistrations.register(
-                    client,
-                    SelectionKey.OP_WRITE
-            );
+            response = NotifierService.getInstance().getResponse(requester);
+        } catch (NoSuchElementException e) {
+            response = CompletableFuture.completedFuture(NotifierService.ERROR_SETUP);
+        }
+        response.whenComplete((packet, e) -> this.completeSetup(
+                client,
+                requester,
+                state,
+                request,
+                e == null ? packet.getDeserializedBody() : NotifierService.ERROR_SETUP.getDeserializedBody()
+        ));
+    }
+
+    /**
+     * Sets the setup response to be written to the client.
+     * It can be called by any thread.
+     * @param client
+     * @param requester
+     * @param state
+     * @param request the packet of the client which waits for the setup.
+     * @param setup the setup response.
+     */
+    private void completeSetup(SelectionKey client, String requester, State state, PacketPojo request, PacketPojo setup) {
+        if (OperationCode.SETUP_CHALLENGE.equals(setup.getOperationCode())
+                && setup.isSuccessfullResponse()
+        ) {
+            // Exclude selectable state for reading in the main selector.
+            state.setMainReadSelectable(false);
+        }
+        if (OperationCode.REQUEST_CHALLENGE.equals(request.getOperationCode())
+                && !setup.isSuccessfullResponse()
+        ) {
+            // Declined or expired: the dictionary prefetched for the request won't be used.
+            DictionaryPool.getInstance().recycle(requester);
         }
+        // The setup packet is shared by both players: copies it to set the correlation id.
+        this.respondAsync(client, state, request, new PacketPojo(
+                setup.getOperationCode(),
+                setup.getResponseCode(),
+                setup.getMessage()
+        ));
     }
 
     public static void main(String [] args) throws IOException {
@@ -432,6 +474,15 @@ class MainClassWQServer {
         BaseTranslationService.getChain();
         // Instantiate the UserStorage.
         UserStorage.getInstance();
+        // Instantiate the executors.
+        ServerExecutors.getInstance();
+        // Starts the challenge loops.
+        ChallengeEngine.getInstance();
+        // Starts preparing the challenges dictionaries.
+        DictionaryPool.getInstance();
+        // Instantiate the matchmaking.
+        Matchmaker.getInstance();
+        Metrics.getInstance().startReporting(config.getMetricsInterval());
         MainClassWQServer s = new MainClassWQServer();
         s.run();
     }
@@ -0,0 +1,71 @@
+package challenge;
+
+import configurations.Config;
+import metrics.Metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs all the challenges of the server on a small fixed set of event loops
+ * (see -challengeThreads) instead of a thread and a selector per challenge.
+ * The challenges are distributed round robin among the loops.
+ */
+public class ChallengeEngine {
+
+    /** The event loops running the challenges. */
+    private final ChallengeLoop[] loops;
+    /** The index of the loop which will receive the next challenge. */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    /** The number of challenges started. */
+    private final AtomicLong startedChallenges = new AtomicLong();
+
+    private static ChallengeEngine instance;
+
+    private ChallengeEngine() {
+        int threads = Config.getInstance().getChallengeThreads();
+        this.loops = new ChallengeLoop[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                this.loops[i] = new ChallengeLoop();
+                Thread loopThread = new Thread(this.loops[i], "challenge-loop-" + i);
+                loopThread.start();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new IllegalStateException("Challenge selector error");
+        }
+        Metrics.getInstance().register("challenges.started", this.startedChallenges::get);
+        Metrics.getInstance().register("challenges.running", this::getRunningChallenges);
+    }
+
+    public static synchronized ChallengeEngine getInstance() {
+        if (instance == null) {
+            instance = new ChallengeEngine();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts a challenge in one of the loops, once the reactors of the players
+     * no longer read from them. It returns immediately.
+     * @param challenge
+     */
+    public void start(ChallengeHandler challenge) {
+        this.startedChallenges.incrementAndGet();
+        int loop = Math.floorMod(this.nextLoop.getAndIncrement(), this.loops.length);
+        challenge.leaveReactors(() -> this.loops[loop].submit(challenge));
+    }
+
+    /**
+     * @return the number of challenges running (approximated: read from other threads).
+     */
+    private long getRunningChallenges() {
+        long running = 0;
+        for (ChallengeLoop loop : this.loops) {
+            running += loop.getRunningChallenges();
+        }
+        return running;
+    }
+}
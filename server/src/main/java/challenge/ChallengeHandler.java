@@ -1,221 +1,349 @@
 package challenge;
 
 import configurations.Config;
-import connection.AsyncRegistrations;
 import connection.State;
+import executors.ServerExecutors;
+import metrics.Metrics;
 import protocol.OperationCode;
 import protocol.ResponseCode;
-import protocol.WQPacket;
 import protocol.json.PacketPojo;
 import storage.UserStorage;
-import translation.DictionaryService;
+import translation.Answers;
+import translation.DictionaryPool;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
-public class ChallengeHandler implements Runnable {
+/**
+ * A challenge between two players. It is a plain object driven by the ChallengeLoop
+ * which runs it: the loop registers the players connections in its selector
+ * (each key has the Participant of the player as attachment), calls handle
+ * for every selected key and expire exactly once when the challenge deadline is reached.
+ * All the times are System.nanoTime values taken by the loop when it wakes up.
+ * NOTE: after start it must be used only by the thread of its loop.
+ */
+public class ChallengeHandler {
 
     private static final int PLAYERS = 2;
 
+    /** The number of answers received in time by all the challenges. */
+    private static final AtomicLong answers = new AtomicLong();
+    /** The number of answers received after the challenge deadline. */
+    private static final AtomicLong lateAnswers = new AtomicLong();
+    /** The sum of the latencies in microseconds of the answers received in time. */
+    private static final AtomicLong answersLatencyMicros = new AtomicLong();
+
+    static {
+        Metrics.getInstance().register("challenges.answers", answers::get);
+        Metrics.getInstance().register("challenges.answers.late", lateAnswers::get);
+        Metrics.getInstance().register("challenges.answers.latencyMicros.avg", () -> {
+            long count = answers.get();
+            return count > 0 ? answersLatencyMicros.get() / count : 0;
+        });
+    }
+
     private static final String CHALLENGE_RULES = "You and your opponent will have " + Config.getInstance().getChallengeTime() + " seconds to translate " + Config.getInstance().getWordsForChallenge() + " words.\n" +
             "Every right answer gives you +" + Config.getInstance().getWordBonus() + ", every wrong one -" + Config.getInstance().getWordMalus() + " and every skipped one " + Config.getInstance().getWordSkipPoints() + ". All ungiven answers will be count as skipped ones.";
 
     /**
-     * The registration queue of the main selector: used to reinsert the clients
-     * in the main flow after the challenge.
+     * A player of a challenge: the attachment of its key in the loop selector.
      */
-    private AsyncRegistrations mainRegistrationQueue;
+    static final class Participant {
+
+        private final ChallengeHandler challenge;
+        private final String nick;
+        /** The connection of the player. */
+        private State state;
+        /** The key of the player connection in the loop selector. */
+        private SelectionKey key;
+        /** The words still to be asked to the player. */
+        private Iterator<String> words;
+        /** The temporary score of the player. */
+        private int score;
+        /** Set when the player has answered to all the words. */
+        private boolean completed;
+        /** The time at which the player has completed the challenge (or the deadline). */
+        private long completionTime;
+        /** The time at which the last word has been queued for the player. */
+        private long askedAt;
+
+        private Participant(ChallengeHandler challenge, String nick) {
+            this.challenge = challenge;
+            this.nick = nick;
+        }
+
+        ChallengeHandler getChallenge() {
+            return challenge;
+        }
+    }
+
     /** The dictionary for this challenge. */
-    private Map<String, List<String>> dictionary;
-    /**
-     * The selector for this challenge -> different from the main selector
-     * because the communication starts from the server to the client.
-     */
-    private Selector selector;
-    /** start time of the challenge */
-    private long start;
-    /** Stops the thread selector loop when the timeout is reached */
+    private Map<String, Set<String>> dictionary;
+    /** The time at which the challenge ends, set by start. */
+    private long deadline;
+    /** Stops the challenge when the timeout is reached */
     private boolean ended;
-    /** Stops the thread selector loop if an error occurred */
+    /** Stops the challenge if an error occurred */
     private boolean error;
+    /** Set when the results (or the error) have been sent to the players. */
+    private boolean finished;
     /** The number of users which completes the challenge */
     private int userCompletionNumber = 0;
-    /** Maps players name into words iterators */
-    private Map<String, Iterator<String>> iteratorMap;
-    /** Maps player name into his startTime and after into their completion time */
-    private Map<String, Long> timeMap;
-    /** Maps player name into his temporary scores. */
-    private Map<String, Integer> scores;
-    /** Maps player name in selectionKey */
-    private Map<String, SelectionKey> keys;
-    /** The list of the players for this challenge */
-    private List<String> players;
-
-    public ChallengeHandler(AsyncRegistrations mainRegistrationQueue, String originalRequester, String player2) {
-        this.mainRegistrationQueue = mainRegistrationQueue;
-        this.players = Arrays.asList(originalRequester, player2); // Save it for error handling.
-        this.iteratorMap = new HashMap<>(PLAYERS);
-        this.timeMap = new HashMap<>(PLAYERS);
-        this.scores = new HashMap<>(PLAYERS);
-        this.keys = new HashMap<>(PLAYERS);
+    /** The players of this challenge, in the order given to the constructor. */
+    private final List<Participant> participants;
+
+    /**
+     * @param originalRequester
+     * @param player2
+     * @param dictionary the dictionary of the challenge, null if it could not be built:
+     *                   the challenge then ends with an error as soon as it starts.
+     */
+    public ChallengeHandler(String originalRequester, String player2, Map<String, Set<String>> dictionary) {
+        // Save them for error handling.
+        this.participants = Arrays.asList(
+                new Participant(this, originalRequester),
+                new Participant(this, player2)
+        );
         this.ended = false;
-        this.error = false;
-        try {
-            selector = Selector.open();
-            // Builds a dictionary for the challenge.
-            this.dictionary = DictionaryService.getInstance().getDictionary(
-                    Config.getInstance().getWordsForChallenge()
-            );
-            for (String player : players) {
+        this.dictionary = dictionary;
+        this.error = dictionary == null;
+        if (!this.error) {
+            for (Participant participant : this.participants) {
                 // Initialise list of words for each player.
-                this.iteratorMap.put(player, this.dictionary.keySet().iterator());
-                // Initialise scores for each player.
-                this.scores.put(player, 0);
+                participant.words = this.dictionary.keySet().iterator();
             }
-        } catch (RuntimeException | IOException e) {
-            Config.getInstance().debugLogger(e.getMessage());
-            this.error = true;
-        } finally {
-            NotifierService.getInstance().clearPendingResponseEntry(originalRequester);
         }
+        // The notification of originalRequester is already answered but its entry is kept:
+        // the setup of the requester may not have read it yet. A completed entry is
+        // removed by the next request of the requester or by its logout.
+    }
+
+    /**
+     * Creates a challenge with the dictionary prefetched when it was requested,
+     * without waiting for the dictionary to be ready.
+     * @param originalRequester
+     * @param player2
+     * @return the future challenge, it never completes exceptionally.
+     */
+    public static CompletableFuture<ChallengeHandler> prepare(String originalRequester, String player2) {
+        return DictionaryPool.getInstance()
+                .takeAsync(originalRequester)
+                .handle((dictionary, e) -> {
+                    if (e != null) {
+                        Config.getInstance().debugLogger("An error occurred in challenge setup: " + e);
+                    }
+                    return new ChallengeHandler(originalRequester, player2, e == null ? dictionary : null);
+                });
     }
 
     public static String getChallengeRules() {
         return CHALLENGE_RULES;
     }
 
-    @Override
-    public void run() {
-        // If an error occurred  while initialising.
-        if (this.error) {
-            this.onError();
+    /**
+     * Asks the reactors of the players to stop reading from their connections, then runs
+     * the action: from then on only the loop reads from them.
+     * It can be called by any thread.
+     * @param then called by the last reactor which stops reading (or by the caller).
+     */
+    void leaveReactors(Runnable then) {
+        List<State> states = new ArrayList<>(PLAYERS);
+        if (!this.error) {
+            for (Participant participant : this.participants) {
+                State state = NotifierService.getInstance().getConnection(participant.nick);
+                // A player not connected is detected by start.
+                if (state != null && state.getMainKey() != null) {
+                    states.add(state);
+                }
+            }
+        }
+        if (states.isEmpty()) {
+            then.run();
             return;
         }
-        try {
-            // Read the setup packet responses to synchronize the clients before challenge start
-            // and be sure that the previous ongoing main packet has been written to both.
-            for (String player : this.players) {
-                State state = NotifierService.getInstance()
-                        .getConnection(player);
-                // Register the socket into the new selector.
-                SelectionKey selectionKey = state.getClient().register(this.selector, SelectionKey.OP_READ, state);
-                this.keys.put(player, selectionKey);
-            }
-            // Stop the challenge if either the timeout is reached or an error occurred
-            // or all users have already sent all responses.
-            this.start = System.currentTimeMillis() / 1000;
-            while (!ended && !error && userCompletionNumber < PLAYERS) {
-                // Every second maximum checks if the timer has expired.
-                selector.select(1000);
-                for (SelectionKey key : selector.selectedKeys()) {
-                    try {
-                        if (key.isReadable()) {
-                            read(key);
-                        }
-                        if (key.isWritable()) {
-                            write(key);
-                        }
-                    } catch (CancelledKeyException | IOException e) {
-                        Config.getInstance().debugLogger(e, "Challenge Thread.");
-                        error = true;
-                    }
+        AtomicInteger pending = new AtomicInteger(states.size());
+        for (State state : states) {
+            state.getAsyncRegistrations().unregisterRead(state.getMainKey(), () -> {
+                if (pending.decrementAndGet() == 0) {
+                    then.run();
                 }
-                selector.selectedKeys().clear();
-                ended = System.currentTimeMillis() / 1000 - start > Config.getInstance().getChallengeTime();
-                if (ended) {
-                    this.players.forEach(p -> this.timeMap.putIfAbsent(p, System.currentTimeMillis()));
+            });
+        }
+    }
+
+    /**
+     * Registers the players connections in the selector of the loop and starts the challenge.
+     * The key of a connection is reused if the player already played in this loop:
+     * its previous challenge left it registered without interests.
+     * @param selector
+     * @param now
+     */
+    void start(Selector selector, long now) {
+        // If an error occurred while initialising.
+        if (!this.error) {
+            try {
+                // Read the setup packet responses to synchronize the clients before challenge start
+                // and be sure that the previous ongoing main packet has been written to both.
+                for (Participant participant : this.participants) {
+                    State state = NotifierService.getInstance()
+                            .getConnection(participant.nick);
+                    if (state == null) {
+                        throw new IOException("The player " + participant.nick + " is not connected");
+                    }
+                    participant.state = state;
+                    SelectionKey selectionKey = state.getClient().keyFor(selector);
+                    if (selectionKey != null && selectionKey.isValid()) {
+                        selectionKey.attach(participant);
+                        selectionKey.interestOps(SelectionKey.OP_READ);
+                    } else {
+                        selectionKey = state.getClient().register(selector, SelectionKey.OP_READ, participant);
+                    }
+                    participant.key = selectionKey;
                 }
+                this.deadline = now + TimeUnit.SECONDS.toNanos(Config.getInstance().getChallengeTime());
+            } catch (IOException | CancelledKeyException e) {
+                Config.getInstance().debugLogger(e, "IO Exception starting the challenge!");
+                this.error = true;
             }
+        }
+        this.checkEnd(now);
+    }
 
-            if (error) {
-                this.onError();
-            } else {
-                // Count every ungiven answer as skipped.
-                this.iteratorMap.forEach((user, iterator) -> {
-                    int count = 0;
-                    while (iterator.hasNext()) {
-                        iterator.next();
-                        count++;
-                    }
-                    final int _count = count;
-                    this.scores.computeIfPresent(user, (_user, score) ->
-                            score + (_count * Config.getInstance().getWordSkipPoints())
-                    );
-                });
-                // Compute results and send results packets.
-                List<String> ranking = this.scores.entrySet().stream()
-                        .sorted((e1, e2) -> {
-                            int orderByScore = e2.getValue().compareTo(e1.getValue());
-                            if (orderByScore == 0) {
-                                return this.timeMap.get(e1.getKey()).compareTo(this.timeMap.get(e2.getKey()));
-                            } else return orderByScore;
-                        })
-                        .map(Map.Entry::getKey)
-                        .collect(Collectors.toList());
-
-                String winner = ranking.get(0);
-                this.scores.computeIfPresent(winner, (_winner, oldScore) ->
-                        oldScore + Config.getInstance().getWinnerExtraPoints()
-                );
-                // Update scores and set final message for all participants;
-                // register back to the main selector.
-                ranking.forEach(p -> {
-                    // 1. Update scores.
-                    UserStorage.getInstance().updateUserScore(
-                            p,
-                            this.scores.get(p)
-                    );
-                    // 2. Set message.
-                    WQPacket wqPacket = new WQPacket(new PacketPojo(
-                            OperationCode.STOP_CHALLENGE,
-                            ResponseCode.OK,
-                            "The winner is " + winner // info about who wins
-                            + ".\nYou got " + this.scores.get(p) + " points in this challenge."
-                    ));
-                    this.registerToMainSelector(p, wqPacket);
-                });
+    /**
+     * Reads from or writes to the connection of a player.
+     * @param key a selected key of a participant of this challenge.
+     * @param now the time at which the key has been selected.
+     */
+    void handle(SelectionKey key, long now) {
+        try {
+            if (key.isReadable()) {
+                read(key, now);
+            }
+            if (!this.error && key.isValid() && key.isWritable()) {
+                write(key);
             }
-        } catch (IOException e) {
-            Config.getInstance().debugLogger(e, "IO Exception in challenge thread!");
+        } catch (CancelledKeyException | IOException e) {
+            Config.getInstance().debugLogger(e, "Challenge loop.");
+            this.error = true;
+        }
+        this.checkEnd(now);
+    }
+
+    /**
+     * Ends the challenge: its deadline has been reached.
+     * @param now
+     */
+    void expire(long now) {
+        this.ended = true;
+        this.checkEnd(now);
+    }
+
+    /**
+     * @return the time at which the challenge ends, valid after start.
+     */
+    long getDeadline() {
+        return this.deadline;
+    }
+
+    /**
+     * @return true if the challenge is over and the players are back to their reactors.
+     */
+    boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Sends the results (or an error) to the players if the challenge is over:
+     * either the timeout is reached or an error occurred or all users
+     * have already sent all responses.
+     */
+    private void checkEnd(long now) {
+        if (this.finished) return;
+        if (this.error) {
+            this.finished = true;
             this.onError();
+        } else if (this.ended || this.userCompletionNumber >= PLAYERS) {
+            this.finished = true;
+            this.sendResults(now);
         }
     }
 
-    private void read(SelectionKey key) throws IOException {
+    private void sendResults(long now) {
+        for (Participant participant : this.participants) {
+            if (!participant.completed) {
+                participant.completionTime = now;
+            }
+            // Count every ungiven answer as skipped.
+            while (participant.words.hasNext()) {
+                participant.words.next();
+                participant.score += Config.getInstance().getWordSkipPoints();
+            }
+        }
+        // Compute results and send results packets.
+        List<Participant> ranking = this.participants.stream()
+                .sorted((p1, p2) -> {
+                    int orderByScore = Integer.compare(p2.score, p1.score);
+                    if (orderByScore == 0) {
+                        // Compares the nanoTime values by their difference.
+                        return Long.signum(p1.completionTime - p2.completionTime);
+                    } else return orderByScore;
+                })
+                .collect(Collectors.toList());
+
+        Participant winner = ranking.get(0);
+        winner.score += Config.getInstance().getWinnerExtraPoints();
+        this.participants.forEach(this::leaveLoop);
+        // The scores are saved by the storage executor, not to block the loop,
+        // then the final message is sent to all participants.
+        Runnable publishResults = () -> ranking.forEach(p -> {
+            // 1. Update scores.
+            UserStorage.getInstance().updateUserScore(
+                    p.nick,
+                    p.score
+            );
+            // 2. Set message.
+            PacketPojo packet = new PacketPojo(
+                    OperationCode.STOP_CHALLENGE,
+                    ResponseCode.OK,
+                    "The winner is " + winner.nick // info about who wins
+                    + ".\nYou got " + p.score + " points in this challenge."
+            );
+            this.registerToMainSelector(p, packet);
+        });
+        try {
+            ServerExecutors.getInstance().getStorageExecutor().execute(publishResults);
+        } catch (RejectedExecutionException e) {
+            publishResults.run();
+        }
+    }
+
+    private void read(SelectionKey key, long now) throws IOException {
         SocketChannel client = (SocketChannel) key.channel();
-        State clientConnection = (State) key.attachment();
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        int read = client.read(buffer);
+        Participant participant = (Participant) key.attachment();
+        State clientConnection = participant.state;
+        int read = client.read(clientConnection.getReadBuffer());
         if (read == -1) {
             // Register in the main thread so it will deallocate the resources.
-            this.mainRegistrationQueue.register(key, SelectionKey.OP_READ);
+            clientConnection.getAsyncRegistrations().register(clientConnection.getMainKey(), SelectionKey.OP_READ);
             // Close the connection.
             client.close();
         } else {
-            // Prepare buffer to be parsed.
-            buffer.flip();
-            // Add buffer to those that will be parsed and returns true if the packet is
-            // completely arrived.
-            boolean hasReadAllPacket = clientConnection.addChunk(buffer);
-            if (hasReadAllPacket) {
-                PacketPojo packet = clientConnection.buildWQPacketFromChucks();
-                this.processCommand(packet, key, clientConnection);
-            } else {
-                // Synchronously register read interest for the client
-                // It should finish to read the request packet.
-                key.interestOps(SelectionKey.OP_READ);
+            PacketPojo packet;
+            while (!this.error && (packet = clientConnection.nextPacket()) != null) {
+                this.processCommand(packet, participant, now);
             }
         }
     }
 
 
-    private void processCommand(PacketPojo packet,
-                                SelectionKey client,
-                                State state
-    ) {
+    private void processCommand(PacketPojo packet, Participant participant, long now) {
         if (!packet.isSuccessfullResponse()) {
             // Exit the challenge.
             this.error = true;
@@ -223,76 +351,77 @@ public class ChallengeHandler implements Runnable {
         }
         switch (packet.getOperationCode()) {
             case SETUP_CHALLENGE: {
-                Config.getInstance().debugLogger("Client " + state.getClientNick() + " has received the setup packet and is now starting the challenge!");
+                Config.getInstance().debugLogger("Client " + participant.nick + " has received the setup packet and is now starting the challenge!");
                 // Send the next one.
-                next(state, client);
+                next(participant, now);
                 break;
             }
             case ASK_WORD:
-                long delta = this.start - System.currentTimeMillis() / 1000;
-                if (delta < Config.getInstance().getChallengeTime()) {
+                if (now - this.deadline < 0) {
+                    long latency = now - participant.askedAt;
+                    answers.incrementAndGet();
+                    answersLatencyMicros.addAndGet(TimeUnit.NANOSECONDS.toMicros(latency));
+                    if (Config.getInstance().isDebug()) {
+                        Config.getInstance().debugLogger("Answer of " + participant.nick + " in " + TimeUnit.NANOSECONDS.toMillis(latency) + " ms");
+                    }
                     // Checks if the translation is correct and in time; updates the user scores.
-                    int score = this.scores.get(state.getClientNick());
                     // Checks first if the answer is skip.
-                    boolean isSkipped = packet.getTranslation().trim().isEmpty();
-                    if (isSkipped) {
-                        score += Config.getInstance().getWordSkipPoints();
+                    String answer = packet.getTranslation();
+                    if (Answers.isBlank(answer)) {
+                        participant.score += Config.getInstance().getWordSkipPoints();
                     } else {
-                        // If the user sent something then checks if i
-                        List<String> translations = this.dictionary.get(packet.getWord());
-                        // A translation is considered valid if any of the translations from the
-                        // Translation service matches the given one.
-                        boolean isRight = translations.stream()
-                                .anyMatch(t -> t.equalsIgnoreCase(packet.getTranslation().trim()));
+                        // If the user sent something then checks if it is
+                        // one of the normalized translations of the word.
+                        Set<String> accepted = this.dictionary.get(packet.getWord());
+                        boolean isRight = accepted != null && Answers.isAccepted(accepted, answer);
                         if (isRight) {
                             // Add points to the user's score.
-                            score += Config.getInstance().getWordBonus();
+                            participant.score += Config.getInstance().getWordBonus();
                         } else {
                             // Decrease user's score.
-                            score -= Config.getInstance().getWordMalus();
+                            participant.score -= Config.getInstance().getWordMalus();
                         }
                     }
-                    this.scores.put(state.getClientNick(), score);
+                    // Send the next one or wait for battle to finish.
+                    next(participant, now);
                 } else {
                     // Timeout reached do not count the translation for the scores.
                     // Do nothing just set the challenge termination.
+                    lateAnswers.incrementAndGet();
                     this.ended = true;
                 }
-                // Send the next one or wait for battle to finish.
-                next(state, client);
                 break;
             default:
-                System.out.println("Ignore other packets during challenge!");
-                client.interestOps(SelectionKey.OP_READ);
+                Config.getInstance().debugLogger("Ignore other packets during challenge!");
+                // Keeps a pending write of the next word.
+                participant.key.interestOps(participant.key.interestOps() | SelectionKey.OP_READ);
         }
     }
 
-    private void next(State state, SelectionKey client) {
-        Iterator<String> iterator = this.iteratorMap.get(state.getClientNick());
-        if (iterator.hasNext()) {
-            WQPacket wqPacket = new WQPacket(PacketPojo.buildAskWordRequest(iterator.next()));
-            state.setPacketToWrite(wqPacket);
+    private void next(Participant participant, long now) {
+        if (participant.words.hasNext()) {
+            participant.state.enqueuePacket(PacketPojo.buildAskWordRequest(participant.words.next()));
+            // The latency of the answer is measured from now.
+            participant.askedAt = now;
             // Send the next one.
-            client.interestOps(SelectionKey.OP_WRITE);
-        } else {
+            participant.key.interestOps(SelectionKey.OP_WRITE);
+        } else if (!participant.completed) {
             // Do nothing. Wait until all players have finished.
             userCompletionNumber++;
             // Sets client completion time.
-            this.timeMap.put(state.getClientNick(), System.currentTimeMillis());
+            participant.completed = true;
+            participant.completionTime = now;
         }
     }
 
     private void write(SelectionKey key) throws IOException {
         SocketChannel client = (SocketChannel) key.channel();
-        State state = (State) key.attachment();
-        ByteBuffer toSend = state.getPacketToWrite();
-        client.write(toSend);
-        if (toSend.hasRemaining()) {
+        State state = ((Participant) key.attachment()).state;
+        if (state.writePackets(client)) {
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
             // Must finish to write the response
             key.interestOps(SelectionKey.OP_WRITE);
-        } else {
-            state.setPacketToWrite(null);
-            key.interestOps(SelectionKey.OP_READ);
         }
     }
 
@@ -302,28 +431,49 @@ public class ChallengeHandler implements Runnable {
      * main server selector.
      */
     private void onError() {
-        final WQPacket wqPacket = new WQPacket(new PacketPojo(
+        final PacketPojo packet = new PacketPojo(
                 OperationCode.STOP_CHALLENGE,
                 ResponseCode.ERROR,
                 "Unexpected exception"
-        ));
-        // Use players to be sure no one is missing.
-        // Note: It is really the array of players given by the constructor.
-        for (String player : this.players) {
-            registerToMainSelector(player, wqPacket);
+        );
+        // Use all participants to be sure no one is missing,
+        // even those not registered yet.
+        for (Participant participant : this.participants) {
+            leaveLoop(participant);
+            registerToMainSelector(participant, packet);
+        }
+    }
+
+    /**
+     * Leaves the key of the loop selector registered without interests,
+     * so that it can be reused by the next challenge of the player.
+     * It must be called by the thread of the loop.
+     */
+    private void leaveLoop(Participant participant) {
+        SelectionKey key = participant.key;
+        if (key != null && key.isValid()) {
+            key.interestOps(0);
+            key.attach(null);
         }
     }
 
-    private void registerToMainSelector(String player, WQPacket wqPacket) {
-        // Cancel the challenge thread key interests if already registered.
-        SelectionKey key = this.keys.get(player);
-        if (key != null && key.isValid()) key.interestOps(0);
+    /**
+     * Sends the last packet of the challenge to a player and gives its connection
+     * back to its reactor. It can be called by any thread.
+     */
+    private void registerToMainSelector(Participant participant, PacketPojo packet) {
         // Set interests in the main key.
         State state = NotifierService.getInstance()
-                .getConnection(player);
+                .getConnection(participant.nick);
+        if (state == null) {
+            // The player is already disconnected.
+            return;
+        }
         state.setMainReadSelectable(true);
-        state.setPacketToWrite(wqPacket);
-        this.mainRegistrationQueue.register(
+        state.enqueuePacket(packet);
+        // The registration queue of the reactor owning the client: used to reinsert
+        // the client in the main flow after the challenge.
+        state.getAsyncRegistrations().register(
                 state.getMainKey(),
                 SelectionKey.OP_WRITE
         );
@@ -0,0 +1,157 @@
+package challenge;
+
+import configurations.Config;
+import connection.MpscQueue;
+import metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An event loop which runs a subset of the challenges through multiplexing
+ * via its own selector. The players connections of the challenges are registered
+ * in the selector with their ChallengeHandler.Participant as attachment, so that
+ * every selected key is dispatched to the challenge it belongs to.
+ * Other threads hand a challenge to the loop through a lock-free queue,
+ * the loop thread then registers its players.
+ * The deadlines of the challenges are kept in a queue ordered by System.nanoTime:
+ * the selector waits until the closest one and each challenge expires exactly once,
+ * the loop never wakes up when it has nothing to do.
+ */
+class ChallengeLoop implements Runnable {
+
+    /** The number of challenges ended by their deadline in all the loops. */
+    private static final AtomicLong expiredChallenges = new AtomicLong();
+    /** The maximum delay in microseconds between a deadline and its expiration. */
+    private static final AtomicLong maxExpirationDelayMicros = new AtomicLong();
+
+    static {
+        Metrics.getInstance().register("challenges.expired", expiredChallenges::get);
+        Metrics.getInstance().register("challenges.expirationDelayMicros.max", maxExpirationDelayMicros::get);
+    }
+
+    /** The selector of this event loop. */
+    private final Selector selector;
+    /** The challenges waiting to be started by the loop thread. */
+    private final MpscQueue<ChallengeHandler> pendingChallenges = new MpscQueue<>();
+    /** Set when the selector has been woken up and the pending challenges are not started yet. */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    /** The challenges running in this loop, only used by the loop thread. */
+    private final Set<ChallengeHandler> runningChallenges = new HashSet<>();
+    /**
+     * The running challenges ordered by deadline, only used by the loop thread.
+     * A challenge which ends before its deadline is removed when it reaches the head.
+     */
+    private final PriorityQueue<ChallengeHandler> deadlines = new PriorityQueue<>(
+            // Compares the nanoTime values by their difference.
+            (c1, c2) -> Long.signum(c1.getDeadline() - c2.getDeadline())
+    );
+
+    ChallengeLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a challenge to this loop: it will be started by the loop thread.
+     * @param challenge
+     */
+    void submit(ChallengeHandler challenge) {
+        this.pendingChallenges.offer(challenge);
+        if (this.wakeupPending.compareAndSet(false, true)) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * @return the number of challenges running in this loop.
+     */
+    int getRunningChallenges() {
+        return this.runningChallenges.size();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                this.startPendingChallenges(System.nanoTime());
+                long timeout = this.nextTimeoutMillis(System.nanoTime());
+                if (timeout < 0) {
+                    this.selector.select();
+                } else if (timeout == 0) {
+                    this.selector.selectNow();
+                } else {
+                    this.selector.select(timeout);
+                }
+                long now = System.nanoTime();
+                for (SelectionKey key : this.selector.selectedKeys()) {
+                    ChallengeHandler.Participant participant = (ChallengeHandler.Participant) key.attachment();
+                    // The key of a player whose challenge is over.
+                    if (participant == null) continue;
+                    ChallengeHandler challenge = participant.getChallenge();
+                    challenge.handle(key, now);
+                    if (challenge.isFinished()) {
+                        this.runningChallenges.remove(challenge);
+                    }
+                }
+                this.selector.selectedKeys().clear();
+                this.expireChallenges(now);
+            } catch (IOException | RuntimeException e) {
+                Config.getInstance().debugLogger(e, "Challenge loop.");
+            }
+        }
+    }
+
+    private void startPendingChallenges(long now) {
+        // From now on a new challenge must wake up the selector again.
+        this.wakeupPending.set(false);
+        ChallengeHandler challenge;
+        while ((challenge = this.pendingChallenges.poll()) != null) {
+            challenge.start(this.selector, now);
+            if (!challenge.isFinished()) {
+                this.runningChallenges.add(challenge);
+                this.deadlines.add(challenge);
+            }
+        }
+    }
+
+    /**
+     * @param now
+     * @return the time in ms until the closest deadline (rounded up),
+     * 0 if it is already reached, -1 if there are no deadlines.
+     */
+    private long nextTimeoutMillis(long now) {
+        ChallengeHandler next;
+        // Drops the challenges already ended.
+        while ((next = this.deadlines.peek()) != null && next.isFinished()) {
+            this.deadlines.poll();
+        }
+        if (next == null) return -1;
+        long remaining = next.getDeadline() - now;
+        if (remaining <= 0) return 0;
+        return (remaining + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Ends the challenges whose deadline is reached.
+     * @param now
+     */
+    private void expireChallenges(long now) {
+        ChallengeHandler challenge;
+        while ((challenge = this.deadlines.peek()) != null && challenge.getDeadline() - now <= 0) {
+            this.deadlines.poll();
+            if (challenge.isFinished()) continue;
+            expiredChallenges.incrementAndGet();
+            long delayMicros = TimeUnit.NANOSECONDS.toMicros(now - challenge.getDeadline());
+            maxExpirationDelayMicros.accumulateAndGet(delayMicros, Math::max);
+            challenge.expire(now);
+            this.runningChallenges.remove(challenge);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package challenge;
+
+import configurations.Config;
+import connection.MpscQueue;
+import connection.TimerWheel;
+import metrics.Metrics;
+import protocol.OperationCode;
+import protocol.WQPacket;
+import protocol.json.PacketPojo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the UDP notifications through a non-blocking DatagramChannel.
+ * Other threads hand the datagrams, already encoded, to the sender thread through
+ * a lock-free queue: the sender drains the whole queue at every wake up and, when
+ * the socket buffer is full, waits for the channel to be writable again.
+ * Every notification has a sequence number (its correlation id) and is sent again,
+ * with an exponential backoff, until the client acknowledges it (ACK_NOTIFICATION)
+ * or its time to live expires: then it is counted as lost.
+ */
+class DatagramSender implements Runnable {
+
+    /** The time in ms before the first retransmission of a notification. */
+    private static final long INITIAL_BACKOFF_MILLIS = 200;
+    /** The maximum time in ms between two retransmissions. */
+    private static final long MAX_BACKOFF_MILLIS = 1600;
+    /** The maximum number of retransmissions of a notification. */
+    private static final int MAX_RETRANSMISSIONS = 5;
+    /** The maximum size of a datagram received (i.e. an ack). */
+    private static final int MAX_DATAGRAM_SIZE = 512;
+    private static final int TIMER_WHEEL_SIZE = 256;
+    private static final long TIMER_TICK_MILLIS = 10;
+
+    /**
+     * An encoded notification, its destination and its retransmission state.
+     */
+    private static final class Datagram {
+        private final InetSocketAddress destination;
+        private final ByteBuffer buffer;
+        private final int sequence;
+        /** The time in ms after which the notification is useless. */
+        private final long expiration;
+        private long backoff = INITIAL_BACKOFF_MILLIS;
+        private int retransmissions;
+        private TimerWheel.Timeout<Datagram> timeout;
+
+        private Datagram(InetSocketAddress destination, ByteBuffer buffer, int sequence, long expiration) {
+            this.destination = destination;
+            this.buffer = buffer;
+            this.sequence = sequence;
+            this.expiration = expiration;
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    /** The datagrams waiting to be sent. */
+    private final MpscQueue<Datagram> outboundQueue = new MpscQueue<>();
+    /** Set when the selector has been woken up and the queue is not drained yet. */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    /** The sequence number of the last notification. */
+    private final AtomicInteger lastSequence = new AtomicInteger();
+    /** The notifications not acknowledged yet by sequence number, only used by the sender thread. */
+    private final Map<Integer, Datagram> unacknowledged = new HashMap<>();
+    /** The retransmissions of the unacknowledged notifications, only used by the sender thread. */
+    private final TimerWheel<Datagram> retransmissions;
+    /** The notifications to be sent again, only used by the sender thread. */
+    private final Deque<Datagram> retransmissionQueue = new ArrayDeque<>();
+    /** The datagram not sent because the socket buffer was full, only used by the sender thread. */
+    private Datagram pending;
+    /** The buffer receiving the acks. */
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+    /** The number of datagrams queued. */
+    private final AtomicLong queued = new AtomicLong();
+    /** The number of datagrams sent, retransmissions excluded. */
+    private final AtomicLong sent = new AtomicLong();
+    /** The number of datagrams discarded because of a send error. */
+    private final AtomicLong failures = new AtomicLong();
+    /** The number of notifications sent again. */
+    private final AtomicLong retransmitted = new AtomicLong();
+    /** The number of notifications acknowledged. */
+    private final AtomicLong acknowledged = new AtomicLong();
+    /** The number of notifications never acknowledged before their expiration. */
+    private final AtomicLong lost = new AtomicLong();
+
+    /**
+     * @param address the local address of the channel.
+     * @throws IOException
+     */
+    DatagramSender(InetSocketAddress address) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(address);
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.key = this.channel.register(this.selector, SelectionKey.OP_READ);
+        this.retransmissions = new TimerWheel<>(TIMER_WHEEL_SIZE, TIMER_TICK_MILLIS, nowMillis());
+        Metrics metrics = Metrics.getInstance();
+        metrics.register("notifier.queued", () -> this.queued.get() - this.sent.get() - this.failures.get());
+        metrics.register("notifier.sent", this.sent::get);
+        metrics.register("notifier.failures", this.failures::get);
+        metrics.register("notifier.retransmitted", this.retransmitted::get);
+        metrics.register("notifier.acknowledged", this.acknowledged::get);
+        metrics.register("notifier.lost", this.lost::get);
+        // The percentage of the notifications sent which had to be sent again.
+        metrics.register("notifier.retransmissionRate", () -> {
+            long sentNotifications = this.sent.get();
+            return sentNotifications > 0 ? this.retransmitted.get() * 100 / sentNotifications : 0;
+        });
+    }
+
+    /**
+     * Queues a notification, setting its sequence number as correlation id.
+     * It returns immediately and can be called by any thread.
+     * @param destination
+     * @param packet
+     * @param ttlMillis the time after which the notification is not retransmitted anymore.
+     */
+    void send(InetSocketAddress destination, PacketPojo packet, long ttlMillis) {
+        int sequence = this.lastSequence.incrementAndGet();
+        ByteBuffer buffer = ByteBuffer.wrap(new WQPacket(packet.setCorrelationId(sequence)).toBytes());
+        this.queued.incrementAndGet();
+        this.outboundQueue.offer(new Datagram(destination, buffer, sequence, nowMillis() + ttlMillis));
+        if (this.wakeupPending.compareAndSet(false, true)) {
+            this.selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // From now on a new datagram must wake up the selector again.
+                this.wakeupPending.set(false);
+                this.flush();
+                this.key.interestOps(this.pending != null
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ
+                );
+                if (this.retransmissions.size() > 0) {
+                    this.selector.select(this.retransmissions.getTickMillis());
+                } else {
+                    this.selector.select();
+                }
+                if (this.selector.selectedKeys().contains(this.key) && this.key.isReadable()) {
+                    this.receiveAcks();
+                }
+                this.selector.selectedKeys().clear();
+                this.retransmissions.advance(nowMillis(), this::retransmit);
+            } catch (IOException | RuntimeException e) {
+                Config.getInstance().debugLogger(e, "UDP notifier.");
+            }
+        }
+    }
+
+    /**
+     * Sends the datagrams to be sent again and then the queued ones,
+     * until there are no more or the socket buffer is full.
+     */
+    private void flush() {
+        while (true) {
+            Datagram datagram = this.pending;
+            if (datagram == null) {
+                datagram = this.retransmissionQueue.poll();
+            }
+            if (datagram == null) {
+                datagram = this.outboundQueue.poll();
+                if (datagram == null) return;
+                this.unacknowledged.put(datagram.sequence, datagram);
+            }
+            // Acknowledged while waiting to be sent again.
+            if (!this.unacknowledged.containsKey(datagram.sequence)) {
+                this.pending = null;
+                continue;
+            }
+            try {
+                if (this.channel.send(datagram.buffer, datagram.destination) == 0) {
+                    // The socket buffer is full: retries when the channel is writable.
+                    this.pending = datagram;
+                    return;
+                }
+                if (datagram.retransmissions == 0) {
+                    this.sent.incrementAndGet();
+                }
+                this.scheduleRetransmission(datagram);
+            } catch (IOException | RuntimeException e) {
+                this.failures.incrementAndGet();
+                this.unacknowledged.remove(datagram.sequence);
+                Config.getInstance().debugLogger(e, "Notification to " + datagram.destination + " discarded.");
+            }
+            this.pending = null;
+        }
+    }
+
+    /**
+     * Schedules the next retransmission of a datagram just sent: after its backoff,
+     * or at its expiration (to count it as lost) if it can't be sent again before it.
+     */
+    private void scheduleRetransmission(Datagram datagram) {
+        long next = nowMillis() + datagram.backoff;
+        if (datagram.retransmissions >= MAX_RETRANSMISSIONS || next >= datagram.expiration) {
+            // Waits for the ack until the expiration, without sending it again.
+            next = datagram.expiration;
+        }
+        if (datagram.timeout == null) {
+            datagram.timeout = this.retransmissions.schedule(datagram, next);
+        } else {
+            this.retransmissions.reschedule(datagram.timeout, next);
+        }
+    }
+
+    /**
+     * Queues a datagram to be sent again if it is not expired, otherwise it counts it as lost.
+     * Called by the timer wheel.
+     */
+    private void retransmit(Datagram datagram) {
+        if (datagram.retransmissions >= MAX_RETRANSMISSIONS || nowMillis() >= datagram.expiration) {
+            this.unacknowledged.remove(datagram.sequence);
+            this.lost.incrementAndGet();
+            return;
+        }
+        datagram.retransmissions++;
+        datagram.backoff = Math.min(datagram.backoff * 2, MAX_BACKOFF_MILLIS);
+        datagram.buffer.rewind();
+        this.retransmitted.incrementAndGet();
+        this.retransmissionQueue.add(datagram);
+    }
+
+    /**
+     * Reads all the datagrams received and stops the retransmission of the acknowledged notifications.
+     */
+    private void receiveAcks() throws IOException {
+        while (true) {
+            this.receiveBuffer.clear();
+            SocketAddress source = this.channel.receive(this.receiveBuffer);
+            if (source == null) return;
+            this.receiveBuffer.flip();
+            PacketPojo ack;
+            try {
+                ack = WQPacket.fromBytes(this.receiveBuffer);
+            } catch (RuntimeException e) {
+                Config.getInstance().debugLogger("Malformed datagram discarded.");
+                continue;
+            }
+            if (!OperationCode.ACK_NOTIFICATION.equals(ack.getOperationCode()) || ack.getCorrelationId() == null) {
+                continue;
+            }
+            Datagram datagram = this.unacknowledged.get(ack.getCorrelationId());
+            // Only the recipient can acknowledge a notification.
+            if (datagram != null && datagram.destination.equals(source)) {
+                this.unacknowledged.remove(ack.getCorrelationId());
+                this.acknowledged.incrementAndGet();
+                this.retransmissions.cancel(datagram.timeout);
+            }
+        }
+    }
+
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,269 @@
+package challenge;
+
+import configurations.Config;
+import metrics.Metrics;
+import protocol.OperationCode;
+import protocol.ResponseCode;
+import protocol.json.PacketPojo;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Pairs the players asking for a random opponent (MATCHMAKING) and starts their challenge
+ * directly, without the invitation round trip over UDP.
+ * The waiting players are kept ordered by score (and then by arrival): a new player
+ * is matched with the waiting one with the closest score within -matchmakingScoreBand,
+ * the oldest among those with the same score, in O(log n).
+ * If there is none the player waits until another one arrives or -matchmakingTimeout expires.
+ */
+public class Matchmaker {
+
+    /** The number of wait times kept to compute the percentiles. */
+    private static final int WAIT_SAMPLES = 1024;
+
+    /**
+     * A player waiting for an opponent.
+     */
+    public static final class Ticket {
+
+        private final String nick;
+        private final int score;
+        /** The arrival order among the tickets. */
+        private long sequence;
+        /** The time at which the player started waiting. */
+        private long enqueuedAt;
+        /** Sends the matchmaking response to the player. */
+        private final Consumer<PacketPojo> responder;
+        /** The timeout of the ticket, null if disabled. */
+        private ScheduledFuture<?> timeout;
+
+        /**
+         * @param nick
+         * @param score the current score of the player.
+         * @param responder sends the matchmaking response to the player, it can be called by any thread.
+         */
+        public Ticket(String nick, int score, Consumer<PacketPojo> responder) {
+            this.nick = nick;
+            this.score = score;
+            this.responder = responder;
+        }
+
+        private Ticket(int score, long sequence) {
+            this(null, score, null);
+            this.sequence = sequence;
+        }
+
+        public String getNick() {
+            return nick;
+        }
+    }
+
+    /** The waiting players ordered by score and then by arrival. */
+    private final TreeSet<Ticket> waiting = new TreeSet<>(
+            Comparator.<Ticket>comparingInt(ticket -> ticket.score)
+                    .thenComparingLong(ticket -> ticket.sequence)
+    );
+    /** The waiting players by nickname. */
+    private final Map<String, Ticket> waitingByNick = new HashMap<>();
+    /** The maximum score difference between two players matched, 0 if any. */
+    private final int scoreBand;
+    /** The maximum wait time in ms, 0 if disabled. */
+    private final long timeoutMillis;
+    /** Starts the challenge between two players matched. */
+    private final BiConsumer<String, String> starter;
+    /** Expires the tickets of the players waiting too long. */
+    private final ScheduledThreadPoolExecutor timer;
+    /** The number of tickets enqueued so far, used as their sequence number. */
+    private long enqueued;
+    /** The last wait times in ms of the players matched or expired, in a ring buffer. */
+    private final long[] waitSamples = new long[WAIT_SAMPLES];
+    /** The number of wait times recorded. */
+    private long waitSamplesCount;
+    /** The number of challenges started by the matchmaking. */
+    private final AtomicLong matches = new AtomicLong();
+    /** The number of players which have not found an opponent in time. */
+    private final AtomicLong expired = new AtomicLong();
+
+    private static Matchmaker instance;
+
+    /**
+     * @param scoreBand the maximum score difference between two players matched, 0 if any.
+     * @param timeoutMillis the maximum wait time in ms, 0 to disable it.
+     * @param starter starts the challenge between the waiting player and its opponent.
+     */
+    Matchmaker(int scoreBand, long timeoutMillis, BiConsumer<String, String> starter) {
+        this.scoreBand = scoreBand;
+        this.timeoutMillis = timeoutMillis;
+        this.starter = starter;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "matchmaking-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public static synchronized Matchmaker getInstance() {
+        if (instance == null) {
+            Config config = Config.getInstance();
+            instance = new Matchmaker(
+                    config.getMatchmakingScoreBand(),
+                    TimeUnit.SECONDS.toMillis(config.getMatchmakingTimeout()),
+                    // Starts the challenge once its dictionary is ready.
+                    (waitingPlayer, player) -> ChallengeHandler.prepare(waitingPlayer, player)
+                            .thenAccept(ChallengeEngine.getInstance()::start)
+            );
+            instance.registerMetrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Matches the player with a waiting one, or makes it wait.
+     * When two players are matched both receive the challenge rules and the challenge starts.
+     * @param ticket
+     * @return false if the player is already waiting.
+     */
+    public boolean enqueue(Ticket ticket) {
+        Ticket opponent;
+        synchronized (this) {
+            if (this.waitingByNick.containsKey(ticket.nick)) return false;
+            long now = System.nanoTime();
+            opponent = this.closest(ticket.score);
+            if (opponent == null) {
+                ticket.sequence = this.enqueued++;
+                ticket.enqueuedAt = now;
+                this.waiting.add(ticket);
+                this.waitingByNick.put(ticket.nick, ticket);
+                if (this.timeoutMillis > 0) {
+                    ticket.timeout = this.timer.schedule(() -> this.expire(ticket), this.timeoutMillis, TimeUnit.MILLISECONDS);
+                }
+                return true;
+            }
+            this.remove(opponent);
+            this.recordWait(TimeUnit.NANOSECONDS.toMillis(now - opponent.enqueuedAt));
+        }
+        this.matches.incrementAndGet();
+        this.start(opponent, ticket);
+        return true;
+    }
+
+    /**
+     * Removes a player from the waiting ones (i.e. it logged out), without answering it.
+     * @param nick
+     * @return true if the player was waiting.
+     */
+    public synchronized boolean cancel(String nick) {
+        Ticket ticket = this.waitingByNick.get(nick);
+        if (ticket == null) return false;
+        this.remove(ticket);
+        return true;
+    }
+
+    /**
+     * @return the number of players waiting.
+     */
+    synchronized int getWaiting() {
+        return this.waiting.size();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the percentile of the last wait times in ms, 0 if none.
+     */
+    synchronized long getWaitPercentile(int percentile) {
+        int samples = (int) Math.min(this.waitSamplesCount, WAIT_SAMPLES);
+        if (samples == 0) return 0;
+        long[] sorted = Arrays.copyOf(this.waitSamples, samples);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * samples) - 1;
+        return sorted[Math.max(0, Math.min(samples - 1, index))];
+    }
+
+    /**
+     * @return the waiting player with the closest score within the band,
+     * the oldest among those with the same score; null if none.
+     */
+    private Ticket closest(int score) {
+        // The oldest with a score not lower.
+        Ticket higher = this.waiting.ceiling(new Ticket(score, Long.MIN_VALUE));
+        // The oldest with the highest lower score.
+        Ticket lower = this.waiting.lower(new Ticket(score, Long.MIN_VALUE));
+        if (lower != null) {
+            lower = this.waiting.ceiling(new Ticket(lower.score, Long.MIN_VALUE));
+        }
+        Ticket closest;
+        if (lower == null) {
+            closest = higher;
+        } else if (higher == null) {
+            closest = lower;
+        } else {
+            long lowerDistance = (long) score - lower.score;
+            long higherDistance = (long) higher.score - score;
+            closest = lowerDistance < higherDistance
+                    || (lowerDistance == higherDistance && lower.sequence < higher.sequence)
+                    ? lower
+                    : higher;
+        }
+        if (closest != null && this.scoreBand > 0 && Math.abs((long) closest.score - score) > this.scoreBand) {
+            return null;
+        }
+        return closest;
+    }
+
+    private void remove(Ticket ticket) {
+        this.waiting.remove(ticket);
+        this.waitingByNick.remove(ticket.nick);
+        if (ticket.timeout != null) {
+            ticket.timeout.cancel(false);
+        }
+    }
+
+    private void expire(Ticket ticket) {
+        synchronized (this) {
+            if (this.waitingByNick.get(ticket.nick) != ticket) return;
+            this.remove(ticket);
+            this.recordWait(this.timeoutMillis);
+        }
+        this.expired.incrementAndGet();
+        ticket.responder.accept(new PacketPojo(OperationCode.MATCHMAKING, ResponseCode.ERROR, "No opponent found"));
+    }
+
+    private void recordWait(long waitMillis) {
+        this.waitSamples[(int) (this.waitSamplesCount++ % WAIT_SAMPLES)] = waitMillis;
+    }
+
+    /**
+     * Answers both players with the challenge rules and starts their challenge.
+     */
+    private void start(Ticket waitingPlayer, Ticket player) {
+        for (Ticket ticket : Arrays.asList(waitingPlayer, player)) {
+            ticket.responder.accept(new PacketPojo(
+                    OperationCode.MATCHMAKING,
+                    ResponseCode.OK,
+                    ChallengeHandler.getChallengeRules()
+            ));
+        }
+        this.starter.accept(waitingPlayer.nick, player.nick);
+    }
+
+    private void registerMetrics() {
+        Metrics metrics = Metrics.getInstance();
+        metrics.register("matchmaking.waiting", this::getWaiting);
+        metrics.register("matchmaking.matches", this.matches::get);
+        metrics.register("matchmaking.expired", this.expired::get);
+        metrics.register("matchmaking.waitMillis.p50", () -> this.getWaitPercentile(50));
+        metrics.register("matchmaking.waitMillis.p90", () -> this.getWaitPercentile(90));
+        metrics.register("matchmaking.waitMillis.p99", () -> this.getWaitPercentile(99));
+    }
+}
@@ -2,6 +2,7 @@ package challenge;
 
 import configurations.Config;
 import connection.State;
+import metrics.Metrics;
 import protocol.OperationCode;
 import protocol.ResponseCode;
 import protocol.WQPacket;
@@ -11,6 +12,7 @@ import java.io.IOException;
 import java.net.*;
 import java.util.NoSuchElementException;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Notifies a user over UDP. Used to forward request challenge.
@@ -27,9 +29,9 @@ public class NotifierService {
     ));
 
     /**
-     * The UDP socket used by the service to write packets to the clients.
+     * Sends the packets to the clients over UDP without blocking the callers.
      */
-    private DatagramSocket udpSocket;
+    private DatagramSender datagramSender;
     /**
      * Maps nicknames of online logged users to their connection state.
      */
@@ -38,22 +40,41 @@ public class NotifierService {
      * Stores pending responses of sent notifications.
      */
     private ConcurrentHashMap<String, CompletableFuture<WQPacket>> pendingResponses;
+    /**
+     * Completes the pending responses with ERROR_SETUP when their timeout expires.
+     * A single thread serves all the pending requests, a timeout is cancelled
+     * (and removed from the queue) as soon as its response is completed.
+     */
+    private ScheduledThreadPoolExecutor requestTimer;
+    /**
+     * The number of challenge requests expired without a response.
+     */
+    private final AtomicLong expiredRequests = new AtomicLong();
 
     private static NotifierService instance;
     private NotifierService() {
         connectionTable = new ConcurrentHashMap<>();
         pendingResponses = new ConcurrentHashMap<>();
+        requestTimer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "challenge-request-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        requestTimer.setRemoveOnCancelPolicy(true);
+        Metrics.getInstance().register("challengeRequests.pending", () -> requestTimer.getQueue().size());
+        Metrics.getInstance().register("challengeRequests.expired", expiredRequests::get);
         try {
-            udpSocket = new DatagramSocket(
-                    protocol.Config.UDP_PORT,
-                    InetAddress.getByName(protocol.Config.SERVER_NAME)
-            );
-        } catch (SocketException | UnknownHostException e) {
+            // Bound to the wildcard address: a loopback socket can't reach the remote clients.
+            datagramSender = new DatagramSender(new InetSocketAddress(protocol.Config.UDP_PORT));
+        } catch (IOException e) {
             e.printStackTrace();
             throw new IllegalStateException("UDP Connection error");
         }
+        Thread senderThread = new Thread(datagramSender, "udp-notifier");
+        senderThread.setDaemon(true);
+        senderThread.start();
     }
-    public static NotifierService getInstance() {
+    public static synchronized NotifierService getInstance() {
         if (instance == null) {
             instance = new NotifierService();
         }
@@ -74,12 +95,14 @@ public class NotifierService {
     }
 
     /**
-     * Cleans the tables for the given nickname and completes an error setup.
+     * Cleans the tables for the given nickname, completes an error setup
+     * and removes the user from the matchmaking.
      * @param nick
      */
     public void removeConnection(String nick) {
         connectionTable.remove(nick);
         this.clearPendingResponseEntry(nick);
+        Matchmaker.getInstance().cancel(nick);
     }
 
     /**
@@ -88,11 +111,10 @@ public class NotifierService {
      * @param dest
      * @param sender
      * @return false if either sender or dest are unknown or sender has a pending notification, true if a message was sent to dest.
-     * @throws IOException
      * @throws NoSuchElementException
      */
     public boolean notifyChallengeRequest(final String dest, final String sender)
-            throws IOException, NoSuchElementException
+            throws NoSuchElementException
     {
         // Only one request per sender at a time is allowed.
         CompletableFuture<WQPacket> oldNotification = this.pendingResponses.get(sender);
@@ -106,39 +128,41 @@ public class NotifierService {
         // Clear the map.
         this.pendingResponses.remove(sender);
         // builds challenge request packet
-        WQPacket wqPacket = new WQPacket(PacketPojo.buildForwardChallengeRequest(
+        PacketPojo packet = PacketPojo.buildForwardChallengeRequest(
                 sender,
                 Config.getInstance().getChallengeRequestTimeout()
-        ));
-        this.forwardMessage(dest, wqPacket);
+        );
         // If anyone will notify the sender before the timeout this future will complete
         // giving a DISCARD challenge response.
+        // The timer is set before forwarding so that an immediate response finds it.
         this.setSenderNotificationTimeout(
                 sender,
                 Config.getInstance().getChallengeRequestTimeout()
         );
+        try {
+            // Sent again until acknowledged by dest, the request is useless after its timeout.
+            this.forwardMessage(dest, packet, Config.getInstance().getChallengeRequestTimeout());
+        } catch (NoSuchElementException e) {
+            this.clearPendingResponseEntry(sender);
+            throw e;
+        }
         return true;
     }
 
     /**
-     * Writes a packet to dest over UDP.
+     * Writes a packet to dest over UDP, at the address from which dest logged in.
+     * The packet is encoded by the caller and sent by the notifier thread: it returns immediately.
+     * It is sent again until dest acknowledges it or ttlMillis ms are elapsed.
      * @param dest
-     * @param wqPacket
-     * @throws IOException
+     * @param packet
+     * @param ttlMillis
+     * @throws NoSuchElementException if dest is not logged in.
      */
-    public void forwardMessage(String dest, WQPacket wqPacket) throws IOException {
+    public void forwardMessage(String dest, PacketPojo packet, long ttlMillis) throws NoSuchElementException {
         State requesterState = this.connectionTable.get(dest);
-        if (requesterState == null)
+        if (requesterState == null || requesterState.getNotificationAddress() == null)
             throw new NoSuchElementException("The user is not logged-in");
-        InetAddress ip = InetAddress.getByName(protocol.Config.SERVER_NAME);
-        byte[] sendData = wqPacket.toBytes();
-        DatagramPacket packet = new DatagramPacket(
-                sendData,
-                sendData.length,
-                ip,
-                requesterState.getUDPPort()
-        );
-        udpSocket.send(packet);
+        this.datagramSender.send(requesterState.getNotificationAddress(), packet, ttlMillis);
     }
 
     /**
@@ -177,19 +201,15 @@ public class NotifierService {
     }
 
     /**
-     * Blocks the current thread
      * @param requester
-     * @return the packet to be written to the requester.
-     * @throws ExecutionException
-     * @throws InterruptedException
+     * @return the pending response to the notification sent for requester, it completes
+     * (without blocking any thread) when the opponent answers or the timeout expires.
+     * @throws NoSuchElementException if requester has no notification.
      */
-    public WQPacket getResponse(String requester)
-            throws ExecutionException, InterruptedException, NoSuchElementException
-    {
-        CompletableFuture<WQPacket> timer = this.pendingResponses.get(requester);
-        if (timer != null) {
-            WQPacket ret = timer.get();
-            return ret;
+    public CompletableFuture<WQPacket> getResponse(String requester) throws NoSuchElementException {
+        CompletableFuture<WQPacket> response = this.pendingResponses.get(requester);
+        if (response != null) {
+            return response;
         } else {
             throw new NoSuchElementException("An unexpected error occurred: probably some race condition occurred!");
         }
@@ -198,23 +218,23 @@ public class NotifierService {
     /**
      * Sets (and starts) a pending response timer for the given sender that will be available
      * after timeoutMillis ms if nobody fulfill it before the timeout expires.
+     * No thread waits for the timeout: it is scheduled in the shared requestTimer
+     * and cancelled when the response is completed.
      * @param sender
      * @param timeoutMillis
      */
     private void setSenderNotificationTimeout(final String sender,
                                       final int timeoutMillis
     ) {
-        // Starts the notification timer and saves a reference to it.
-        CompletableFuture<WQPacket> timer = CompletableFuture.supplyAsync(() ->
-        {
-            try {
-                Thread.sleep(timeoutMillis);
-            } catch (InterruptedException e) {
-                System.out.println("Challenge Notification timeout expired for request by " + sender);
-            }
+        CompletableFuture<WQPacket> response = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = this.requestTimer.schedule(() -> {
             // Default: if timeout is reached the notification did not have a successful answer.
-            return ERROR_SETUP;
-        });
-        this.pendingResponses.putIfAbsent(sender, timer);
+            if (response.complete(ERROR_SETUP)) {
+                this.expiredRequests.incrementAndGet();
+                Config.getInstance().debugLogger("Challenge Notification timeout expired for request by " + sender);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        response.whenComplete((packet, e) -> timeout.cancel(false));
+        this.pendingResponses.putIfAbsent(sender, response);
     }
 }
@@ -3,8 +3,10 @@ package configurations;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import executors.ExecutionMode;
 import protocol.WQPacket;
 import storage.Policy;
+import storage.StorageMode;
 
 import java.io.File;
 import java.nio.ByteBuffer;
@@ -71,8 +73,52 @@ public class Config {
      * Accepted values for this option:
      *  - IMMEDIATELY
      *  - ON_SESSION_CLOSE
+     *  - PERIODIC
      */
     private Policy storageAccessPolicy = Policy.ON_SESSION_CLOSE;
+    /**
+     * @link storageAccessPolicy: This option is considered only if storageAccessPolicy
+     * is set to PERIODIC. It indicates the maximum time in ms between two writes
+     * of the modified users.
+     * Default: 1000ms
+     */
+    private int storageFlushInterval = 1000;
+    /**
+     * @link storageAccessPolicy: This option is considered only if storageAccessPolicy
+     * is set to PERIODIC. It indicates the number of modified users which are written
+     * without waiting for the interval.
+     * Default: 64
+     */
+    private int storageFlushBatch = 64;
+    /**
+     * Configures how the online information of the users (scores and friends) is stored.
+     * Default: JSON
+     * Accepted values for this option:
+     *  - JSON
+     *  - LOG
+     *  - MAPPED
+     */
+    private StorageMode storageMode = StorageMode.JSON;
+    /**
+     * @link storageMode: This option is considered only if storageMode is set to LOG.
+     * It indicates the interval in seconds between two checks of the garbage
+     * in the log, which is compacted when it is at least half of it, 0 disables the compaction.
+     * Default: 60s
+     */
+    private int logCompactionInterval = 60;
+    /**
+     * @link storageMode: This option is considered only if storageMode is set to MAPPED.
+     * It indicates the interval in ms between two flushes of the mapped file to disk,
+     * 0 flushes after every write.
+     * Default: 1000ms
+     */
+    private int mappedFlushInterval = 1000;
+    /**
+     * The maximum number of registrations committed together with a single write
+     * of the storage files.
+     * Default: 512
+     */
+    private int registrationBatch = 512;
     /**
      * Configures the path to be used for the storage. Use relative paths.
      * Default: ${MODULE_WORKING_DIR}/internal
@@ -97,6 +143,24 @@ public class Config {
      * Default: 5s
      */
     private int challengeRequestTimeout = 5000;
+    /**
+     * Configures the maximum number of translated dictionaries prepared
+     * in background for the next challenges, 0 disables the pool.
+     * Default: 4
+     */
+    private int dictionaryPoolSize = 4;
+    /**
+     * Configures the maximum score difference between two players matched
+     * by the matchmaking, 0 matches any players.
+     * Default: 0
+     */
+    private int matchmakingScoreBand = 0;
+    /**
+     * Configures the maximum time in seconds a player waits for an opponent
+     * in the matchmaking, 0 disables it.
+     * Default: 60s
+     */
+    private int matchmakingTimeout = 60;
     /**
      * Configures the time given to a user to complete a challenge in seconds.
      * Default: 50s -> with default config (10 words): 5s per word.
@@ -119,6 +183,89 @@ public class Config {
      */
     private int winnerExtraPoints = 5;
 
+    /**
+     * Configures the number of reactor threads (selectors) among which
+     * the clients connections are distributed.
+     * Default: the number of available processors.
+     */
+    private int reactorThreads = Runtime.getRuntime().availableProcessors();
+    /**
+     * Configures the number of event loops (selectors) among which
+     * the running challenges are distributed.
+     * Default: 2
+     */
+    private int challengeThreads = 2;
+    /**
+     * Configures the size in bytes of the buffers used to read from the clients.
+     * Default: 512 bytes.
+     */
+    private int bufferSize = 512;
+    /**
+     * Configures the maximum number of free read buffers kept by the buffer pool.
+     * Default: 1024 buffers.
+     */
+    private int bufferPoolSize = 1024;
+    /**
+     * Configures the maximum number of packets waiting to be written to a client,
+     * a client exceeding it is disconnected.
+     * Default: 64 packets.
+     */
+    private int outboundQueueSize = 64;
+    /**
+     * Configures the number of packets waiting to be written to a client
+     * above which its requests are not read anymore until they are written.
+     * Default: 16 packets.
+     */
+    private int outboundHighWaterMark = 16;
+    /**
+     * Configures the time in seconds after which a client which sent nothing
+     * is disconnected (and logged out), 0 disables it.
+     * Default: 1800s
+     */
+    private int idleTimeout = 1800;
+    /**
+     * Configures the time in seconds given to a client to complete the
+     * packet it started to send, 0 disables it.
+     * Default: 30s
+     */
+    private int partialFrameTimeout = 30;
+    /**
+     * Configures the threads running the blocking work, i.e. the tasks of the storage
+     * and translation executors. The challenges always run on the challenge loops.
+     * Default: PLATFORM
+     * Accepted values for this option:
+     *  - PLATFORM (bounded pools of platform threads)
+     *  - VIRTUAL (a virtual thread per task, it requires a JVM supporting virtual threads)
+     */
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    /**
+     * Configures the number of threads executing the storage operations.
+     * Default: 4
+     */
+    private int storageThreads = 4;
+    /**
+     * Configures the maximum number of storage operations waiting for a thread,
+     * the exceeding requests are answered with a "server busy" error.
+     * Default: 256
+     */
+    private int storageQueueSize = 256;
+    /**
+     * Configures the number of threads requesting the translations.
+     * Default: 8
+     */
+    private int translationThreads = 8;
+    /**
+     * Configures the maximum number of translation requests waiting for a thread.
+     * Default: 256
+     */
+    private int translationQueueSize = 256;
+    /**
+     * Configures the interval in seconds between two metrics reports,
+     * 0 disables the reports.
+     * Default: 0
+     */
+    private int metricsInterval = 0;
+
     /**
      * Parses the command line arguments and initialise the config fields.
      * @param args an array of command line values
@@ -154,6 +301,24 @@ public class Config {
                 case "-useStoragePolicy":
                     storageAccessPolicy = Policy.valueOf(rawValue);
                     break;
+                case "-storageFlushInterval":
+                    this.storageFlushInterval = Math.max(1, Integer.parseInt(rawValue));
+                    break;
+                case "-storageFlushBatch":
+                    this.storageFlushBatch = Math.max(1, Integer.parseInt(rawValue));
+                    break;
+                case "-useStorageMode":
+                    storageMode = StorageMode.valueOf(rawValue);
+                    break;
+                case "-logCompactionInterval":
+                    this.logCompactionInterval = Math.max(0, Integer.parseInt(rawValue));
+                    break;
+                case "-mappedFlushInterval":
+                    this.mappedFlushInterval = Math.max(0, Integer.parseInt(rawValue));
+                    break;
+                case "-registrationBatch":
+                    this.registrationBatch = Math.max(1, Integer.parseInt(rawValue));
+                    break;
                 case "-useStoragePath":
                     if (!rawValue.isEmpty()) {
                         storagePath = rawValue;
@@ -168,6 +333,15 @@ public class Config {
                 case "-challengeRequestTimeout":
                     this.challengeRequestTimeout = Integer.parseInt(rawValue);
                     break;
+                case "-dictionaryPoolSize":
+                    this.dictionaryPoolSize = Math.max(0, Integer.parseInt(rawValue));
+                    break;
+                case "-matchmakingScoreBand":
+                    this.matchmakingScoreBand = Math.max(0, Integer.parseInt(rawValue));
+                    break;
+                case "-matchmakingTimeout":
+                    this.matchmakingTimeout = Math.max(0, Integer.parseInt(rawValue));
+                    break;
                 case "-challengeTime":
                     this.challengeTime = Integer.parseInt(rawValue);
                     break;
@@ -183,6 +357,48 @@ public class Config {
                 case "-setWinnerExtraPoints":
                     this.winnerExtraPoints = Integer.parseInt(rawValue);
                     break;
+                case "-reactorThreads":
+                    this.reactorThreads = Math.max(1, Integer.parseInt(rawValue));
+                    break;
+                case "-challengeThreads":
+                    this.challengeThreads = Math.max(1, Integer.parseInt(rawValue));
+                    break;
+                case "-bufferSize":
+                    this.bufferSize = Integer.parseInt(rawValue);
+                    break;
+                case "-bufferPoolSize":
+                    this.bufferPoolSize = Integer.parseInt(rawValue);
+                    break;
+                case "-outboundQueueSize":
+                    this.outboundQueueSize = Math.max(1, Integer.parseInt(rawValue));
+                    break;
+                case "-outboundHighWaterMark":
+                    this.outboundHighWaterMark = Math.max(1, Integer.parseInt(rawValue));
+                    break;
+                case "-idleTimeout":
+                    this.idleTimeout = Math.max(0, Integer.parseInt(rawValue));
+                    break;
+                case "-partialFrameTimeout":
+                    this.partialFrameTimeout = Math.max(0, Integer.parseInt(rawValue));
+                    break;
+                case "-executionMode":
+                    this.executionMode = ExecutionMode.valueOf(rawValue);
+                    break;
+                case "-storageThreads":
+                    this.storageThreads = Math.max(1, Integer.parseInt(rawValue));
+                    break;
+                case "-storageQueueSize":
+                    this.storageQueueSize = Math.max(1, Integer.parseInt(rawValue));
+                    break;
+                case "-translationThreads":
+                    this.translationThreads = Math.max(1, Integer.parseInt(rawValue));
+                    break;
+                case "-translationQueueSize":
+                    this.translationQueueSize = Math.max(1, Integer.parseInt(rawValue));
+                    break;
+                case "-metricsInterval":
+                    this.metricsInterval = Integer.parseInt(rawValue);
+                    break;
                 default:
                     System.out.println("[WARNING] Unrecognised option: " + key + "\n->this option will be ignored");
             }
@@ -209,6 +425,30 @@ public class Config {
         return storageAccessPolicy;
     }
 
+    public int getStorageFlushInterval() {
+        return storageFlushInterval;
+    }
+
+    public int getStorageFlushBatch() {
+        return storageFlushBatch;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public int getLogCompactionInterval() {
+        return logCompactionInterval;
+    }
+
+    public int getMappedFlushInterval() {
+        return mappedFlushInterval;
+    }
+
+    public int getRegistrationBatch() {
+        return registrationBatch;
+    }
+
     public String getStoragePath() {
         return storagePath;
     }
@@ -225,6 +465,18 @@ public class Config {
         return challengeRequestTimeout;
     }
 
+    public int getDictionaryPoolSize() {
+        return dictionaryPoolSize;
+    }
+
+    public int getMatchmakingScoreBand() {
+        return matchmakingScoreBand;
+    }
+
+    public int getMatchmakingTimeout() {
+        return matchmakingTimeout;
+    }
+
     public int getChallengeTime() {
         return challengeTime;
     }
@@ -245,6 +497,62 @@ public class Config {
         return winnerExtraPoints;
     }
 
+    public int getReactorThreads() {
+        return reactorThreads;
+    }
+
+    public int getChallengeThreads() {
+        return challengeThreads;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    public int getOutboundQueueSize() {
+        return outboundQueueSize;
+    }
+
+    public int getOutboundHighWaterMark() {
+        return outboundHighWaterMark;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public int getPartialFrameTimeout() {
+        return partialFrameTimeout;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public int getStorageThreads() {
+        return storageThreads;
+    }
+
+    public int getStorageQueueSize() {
+        return storageQueueSize;
+    }
+
+    public int getTranslationThreads() {
+        return translationThreads;
+    }
+
+    public int getTranslationQueueSize() {
+        return translationQueueSize;
+    }
+
+    public int getMetricsInterval() {
+        return metricsInterval;
+    }
+
     public boolean isDebug() {
         return isDebug;
     }
@@ -2,21 +2,60 @@ package connection;
 
 import challenge.NotifierService;
 import configurations.Config;
+import metrics.Metrics;
 import storage.UserStorage;
 
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
-import java.util.Queue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+/**
+ * The queue of the changes to the keys of a reactor selector requested by other threads.
+ * The commands are executed in the reactor thread, before select() is called.
+ * Producers never lock: the commands are appended to lock-free MPSC queues and the
+ * selector is woken up only by the first command after the last drain, later
+ * commands are executed by the same drain.
+ */
 public class AsyncRegistrations {
 
+    /** The maximum number of commands executed by a single callAll. */
+    private static final int DRAIN_BATCH_SIZE = 1024;
+
+    /** The number of selector wakeups requested by all the registration queues. */
+    private static final AtomicLong wakeups = new AtomicLong();
+    /** The number of registration commands issued to all the registration queues. */
+    private static final AtomicLong registrations = new AtomicLong();
+
+    static {
+        Metrics.getInstance().register("reactors.wakeups", wakeups::get);
+        Metrics.getInstance().registerRate("reactors.wakeupsPerSecond", wakeups::get);
+        Metrics.getInstance().register("reactors.registrations", registrations::get);
+    }
+
+    /** The selector whose keys are managed by this queue. */
+    private final Selector selector;
+
     /**
      * Registration queue.
      * It is needed to store a registration command and call it after
      * in the same thread were selector.select() is called.
      */
-    private final Queue<Registration> registrationQueue = new PriorityBlockingQueue<>();
+    private final MpscQueue<Registration> registrationQueue = new MpscQueue<>();
+    /**
+     * Accepted connections waiting to be registered to the selector
+     * by the thread which owns it.
+     */
+    private final MpscQueue<State> channelQueue = new MpscQueue<>();
+    /** Set when the selector has been woken up and the queues are not drained yet. */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    public AsyncRegistrations(Selector selector) {
+        this.selector = selector;
+    }
 
     /**
      * Pushes a registration operation in the asyncRegistrations and unblock selector from select.
@@ -25,7 +64,42 @@ public class AsyncRegistrations {
      */
     public void register(final SelectionKey key, final int operation) {
         this.registrationQueue.offer(new Registration(key, operation));
-        key.selector().wakeup();
+        registrations.incrementAndGet();
+        this.wakeup();
+    }
+
+    /**
+     * Pushes the removal of the read interest of a client key and unblock selector from select.
+     * The action runs in the reactor thread once the reactor no longer reads from the client,
+     * i.e. the connection can be read by another thread (a challenge loop).
+     * @param key
+     * @param then
+     */
+    public void unregisterRead(final SelectionKey key, final Runnable then) {
+        this.registrationQueue.offer(new Registration(key, then));
+        registrations.incrementAndGet();
+        this.wakeup();
+    }
+
+    /**
+     * Pushes a new client connection to be registered for reading in the selector
+     * and unblock selector from select.
+     * @param state
+     */
+    public void registerChannel(final State state) {
+        this.channelQueue.offer(state);
+        this.wakeup();
+    }
+
+    /**
+     * Wakes up the selector unless it has already been woken up since the last drain.
+     * It must be called after the command has been pushed.
+     */
+    private void wakeup() {
+        if (this.wakeupPending.compareAndSet(false, true)) {
+            wakeups.incrementAndGet();
+            this.selector.wakeup();
+        }
     }
 
     /**
@@ -36,8 +110,21 @@ public class AsyncRegistrations {
         Registration command = this.registrationQueue.poll();
         if (command != null) {
             SelectionKey key = command.getKey();
-            if (key.isValid()) {
-                key.interestOps(command.getInterestOp());
+            if (command.getThen() != null) {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                // A closed connection is detected by the next owner.
+                command.getThen().run();
+            } else if (key.isValid()) {
+                int interests = command.getInterestOp();
+                if (interests == SelectionKey.OP_WRITE && key.attachment() instanceof State
+                        && ((State) key.attachment()).getMainKey() == key
+                ) {
+                    // Keeps reading the pipelined requests of the client while writing.
+                    interests |= ((State) key.attachment()).getMainInterestOps();
+                }
+                key.interestOps(interests);
             } else {
                 try {
                     deregisterClientSocket(key);
@@ -52,14 +139,40 @@ public class AsyncRegistrations {
     }
 
     /**
-     * Executes all commands in the queue.
+     * Executes the commands in the queues, at most DRAIN_BATCH_SIZE of them.
+     * It must be called only by the thread owning the selector.
+     * @param onChannelRegistered called with every new connection registered.
      */
-    public void callAll() {
-        while (call()) { }
+    public void callAll(Consumer<State> onChannelRegistered) {
+        // From now on a new command must wake up the selector again.
+        this.wakeupPending.set(false);
+        int executed = 0;
+        State state;
+        while (executed < DRAIN_BATCH_SIZE && (state = this.channelQueue.poll()) != null) {
+            executed++;
+            try {
+                // The server will wait for client's commands
+                SelectionKey clientKey = state.getClient()
+                        .register(this.selector, SelectionKey.OP_READ, state);
+                state.setMainKey(clientKey);
+                onChannelRegistered.accept(state);
+            } catch (ClosedChannelException e) {
+                Config.getInstance().debugLogger(e);
+            }
+        }
+        while (executed < DRAIN_BATCH_SIZE && call()) {
+            executed++;
+        }
+        if (executed == DRAIN_BATCH_SIZE) {
+            // Some commands may be left: do not block in the next select.
+            this.wakeupPending.set(true);
+            this.selector.wakeup();
+        }
     }
 
     /**
      * Close a socket channel and frees all maps in the memory associated with that client.
+     * It must be called by the reactor owning the connection.
      * @param key
      * @throws IOException
      */
@@ -67,11 +180,15 @@ public class AsyncRegistrations {
         Config.getInstance().debugLogger("Cancelled key");
         if (key.attachment() != null) {
             State state = (State) key.attachment();
+            if (state.getTimeout() != null) {
+                state.getTimeout().cancel();
+            }
             String nick = state.getClientNick();
             if (nick != null) {
                 UserStorage.getInstance().logOutUser(nick);
                 NotifierService.getInstance().removeConnection(nick);
             }
+            state.release();
         }
         key.channel().close();
     }
@@ -79,12 +196,14 @@ public class AsyncRegistrations {
     /**
      * Captures a registrationAction that will performed by the invoker of selector.select().
      */
-    private static class Registration implements Comparable<Registration> {
+    private static class Registration {
 
         // The key
         private SelectionKey key;
         // The requested operation
         private int interestOp;
+        // Run after the read interest is removed, null for the other operations
+        private Runnable then;
 
         /**
          * Builds a new Registration command and checks if the interestOp is valid
@@ -104,6 +223,16 @@ public class AsyncRegistrations {
             this.interestOp = interestOp;
         }
 
+        /**
+         * Builds a new Registration command which removes the read interest of the key.
+         * @param key
+         * @param then
+         */
+        Registration(SelectionKey key, Runnable then) {
+            this.key = key;
+            this.then = then;
+        }
+
         /**
          * @return the key to register.
          */
@@ -119,13 +248,10 @@ public class AsyncRegistrations {
         }
 
         /**
-         * Used to prioritize the operation in the queue.
-         * @param registration
-         * @return
+         * @return the action to run after the read interest is removed.
          */
-        @Override
-        public int compareTo(Registration registration) {
-            return this.interestOp - registration.interestOp;
+        Runnable getThen() {
+            return then;
         }
     }
 
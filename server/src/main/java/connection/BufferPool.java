@@ -0,0 +1,117 @@
+package connection;
+
+import configurations.Config;
+import metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A slab of fixed size direct buffers shared by the reactors and the challenge threads.
+ * A connection leases a buffer to read from its socket and releases it
+ * once the packet it belongs to has been decoded, so that at steady state
+ * no buffer is allocated per read event.
+ * The pool retains at most a configured number of free buffers, the exceeding
+ * released ones are left to the garbage collector.
+ */
+public class BufferPool {
+
+    /** The capacity of every buffer of the pool. */
+    private final int bufferSize;
+    /** The maximum number of free buffers retained by the pool. */
+    private final int maxPooled;
+    /** The free buffers. */
+    private final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    /** The number of buffers in freeBuffers (ConcurrentLinkedQueue.size is O(n)). */
+    private final AtomicInteger pooled = new AtomicInteger();
+    /** Leases served by a free buffer. */
+    private final AtomicLong hits = new AtomicLong();
+    /** Leases which required a new allocation. */
+    private final AtomicLong misses = new AtomicLong();
+
+    private static volatile BufferPool instance;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled < 0)
+            throw new IllegalArgumentException("Invalid buffer pool configuration");
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public static BufferPool getInstance() {
+        if (instance == null) {
+            // It is called on every read event: lock only on initialisation.
+            synchronized (BufferPool.class) {
+                if (instance == null) {
+                    Config config = Config.getInstance();
+                    BufferPool pool = new BufferPool(config.getBufferSize(), config.getBufferPoolSize());
+                    Metrics.getInstance().register("bufferPool.hits", pool::getHits);
+                    Metrics.getInstance().register("bufferPool.misses", pool::getMisses);
+                    Metrics.getInstance().register("bufferPool.pooled", pool::getPooled);
+                    instance = pool;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return a cleared direct buffer of getBufferSize() bytes ready to be written.
+     */
+    public ByteBuffer lease() {
+        ByteBuffer buffer = this.freeBuffers.poll();
+        if (buffer != null) {
+            this.pooled.decrementAndGet();
+            this.hits.incrementAndGet();
+            return buffer;
+        }
+        this.misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(this.bufferSize);
+    }
+
+    /**
+     * Gives back a buffer to the pool. Buffers which were not leased by this
+     * pool (i.e. with a different capacity) are ignored.
+     * NOTE: the caller must not use the buffer after releasing it.
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != this.bufferSize) {
+            return;
+        }
+        if (this.pooled.incrementAndGet() <= this.maxPooled) {
+            buffer.clear();
+            this.freeBuffers.offer(buffer);
+        } else {
+            this.pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of leases served without allocating.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of leases which allocated a new buffer.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of free buffers currently in the pool.
+     */
+    public int getPooled() {
+        return pooled.get();
+    }
+}
@@ -0,0 +1,20 @@
+package connection;
+
+import protocol.json.PacketPojo;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Executes a request packet completely read by a reactor.
+ * It is called from the reactor thread that owns the key, implementations
+ * should not block and must hand off long computations to other threads.
+ */
+public interface CommandProcessor {
+
+    /**
+     * @param packet the request.
+     * @param key the selection key of the client in the reactor selector.
+     * @param state the client connection state.
+     */
+    void process(PacketPojo packet, SelectionKey key, State state);
+}
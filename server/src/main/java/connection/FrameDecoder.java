@@ -0,0 +1,124 @@
+package connection;
+
+import protocol.WQPacket;
+import protocol.json.PacketPojo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming decoder of the WQPacket frames ([length][body]) read from a connection.
+ * The socket is read directly into a single accumulation buffer, leased from the
+ * BufferPool and grown only when a frame does not fit into it.
+ * The header of a frame is parsed only once and every complete body is handed
+ * to the parser as a slice of the accumulation buffer, without intermediate copies.
+ * More frames read at once are returned one by one by next().
+ * NOTE: it is not thread-safe, it must be used by the thread owning the connection.
+ */
+class FrameDecoder {
+
+    /** Upper bound of a frame length, to refuse buffering bogus headers. */
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /** The accumulation buffer, null when no bytes are pending. */
+    private ByteBuffer buffer;
+    /** True when the buffer is flipped to be parsed. */
+    private boolean readMode;
+    /** The total length of the frame being read, -1 if its header is not yet parsed. */
+    private int frameLength = -1;
+
+    /**
+     * @return the buffer in which the next bytes of the connection should be read.
+     */
+    ByteBuffer getReadBuffer() {
+        if (this.buffer == null) {
+            this.buffer = BufferPool.getInstance().lease();
+        } else if (this.readMode) {
+            // Moves the unparsed bytes at the beginning.
+            this.buffer.compact();
+        }
+        this.readMode = false;
+        if (this.frameLength > 0) {
+            // The header is already consumed: the buffer should hold the whole body.
+            int bodyLength = this.frameLength - WQPacket.getHeaderByteNumber();
+            if (this.buffer.capacity() < bodyLength) {
+                ByteBuffer larger = ByteBuffer.allocate(bodyLength);
+                this.buffer.flip();
+                larger.put(this.buffer);
+                BufferPool.getInstance().release(this.buffer);
+                this.buffer = larger;
+            }
+        }
+        return this.buffer;
+    }
+
+    /**
+     * Parses the next complete frame among the bytes read.
+     * @return the packet, or null if no complete frame is available.
+     * @throws IOException if a malformed frame is read.
+     */
+    PacketPojo next() throws IOException {
+        if (this.buffer == null) return null;
+        if (!this.readMode) {
+            this.buffer.flip();
+            this.readMode = true;
+        }
+        if (this.frameLength < 0) {
+            if (this.buffer.remaining() < WQPacket.getHeaderByteNumber()) {
+                return this.releaseIfEmpty();
+            }
+            this.frameLength = this.buffer.getInt();
+            if (this.frameLength < WQPacket.getHeaderByteNumber()
+                    || this.frameLength > MAX_FRAME_LENGTH) {
+                throw new IOException("Malformed header: invalid packet length " + this.frameLength);
+            }
+        }
+        int bodyLength = this.frameLength - WQPacket.getHeaderByteNumber();
+        if (this.buffer.remaining() < bodyLength) {
+            return null;
+        }
+        ByteBuffer body = this.buffer.slice();
+        body.limit(bodyLength);
+        this.buffer.position(this.buffer.position() + bodyLength);
+        this.frameLength = -1;
+        PacketPojo packet;
+        try {
+            packet = WQPacket.fromBody(body);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed packet body", e);
+        }
+        this.releaseIfEmpty();
+        return packet;
+    }
+
+    /**
+     * @return true if some bytes of an incomplete frame are buffered.
+     */
+    boolean hasPartialFrame() {
+        return this.buffer != null
+                && (this.frameLength > 0 || (this.readMode ? this.buffer.hasRemaining() : this.buffer.position() > 0));
+    }
+
+    /**
+     * Discards any buffered byte.
+     */
+    void reset() {
+        if (this.buffer != null) {
+            BufferPool.getInstance().release(this.buffer);
+        }
+        this.buffer = null;
+        this.readMode = false;
+        this.frameLength = -1;
+    }
+
+    /**
+     * Gives back the buffer to the pool when all the bytes read were decoded.
+     * @return null
+     */
+    private PacketPojo releaseIfEmpty() {
+        if (this.readMode && this.frameLength < 0 && !this.buffer.hasRemaining()) {
+            this.reset();
+        }
+        return null;
+    }
+}
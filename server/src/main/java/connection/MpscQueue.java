@@ -0,0 +1,67 @@
+package connection;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded lock-free multi-producer single-consumer queue.
+ * Producers append a node with a single atomic exchange of the tail, the consumer
+ * unlinks nodes from the head without any atomic operation.
+ * NOTE: poll must be called only by the consumer thread. An element being offered
+ * can be invisible to poll for a short while: callers should not rely on poll
+ * returning null as "no producer is offering", but signal the consumer after offer.
+ */
+public class MpscQueue<E> {
+
+    private static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    /** The last node appended, shared by the producers. */
+    private final AtomicReference<Node<E>> tail;
+    /** The last node consumed (a stub at the beginning), owned by the consumer. */
+    private Node<E> head;
+
+    public MpscQueue() {
+        this.head = new Node<>(null);
+        this.tail = new AtomicReference<>(this.head);
+    }
+
+    /**
+     * Appends an element. It can be called by any thread.
+     * @param element
+     */
+    public void offer(E element) {
+        if (element == null) throw new NullPointerException();
+        Node<E> node = new Node<>(element);
+        Node<E> previous = this.tail.getAndSet(node);
+        // Links the node: from now on it is visible to the consumer.
+        previous.next = node;
+    }
+
+    /**
+     * Removes the first element. It must be called only by the consumer thread.
+     * @return the first element, null if the queue is empty.
+     */
+    public E poll() {
+        Node<E> next = this.head.next;
+        if (next == null) return null;
+        E element = next.value;
+        // The node becomes the new stub.
+        next.value = null;
+        this.head = next;
+        return element;
+    }
+
+    /**
+     * It must be called only by the consumer thread.
+     * @return true if there are no elements to poll.
+     */
+    public boolean isEmpty() {
+        return this.head.next == null;
+    }
+}
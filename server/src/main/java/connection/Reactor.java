@@ -0,0 +1,225 @@
+package connection;
+
+import configurations.Config;
+import metrics.Metrics;
+import protocol.json.PacketPojo;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An event loop which reads/writes packets to/from a subset of the clients
+ * through multiplexing via its own selector.
+ * Every client connection is handed to exactly one reactor by the acceptor,
+ * its State and SelectionKey are then only touched by this reactor thread
+ * (other threads must go through the reactor AsyncRegistrations queue).
+ * A timer wheel tracks the connections of the reactor: the clients idle for too long
+ * or which do not complete a frame in time are disconnected and logged out.
+ * The wheel is checked lazily: a read only updates the activity of the connection,
+ * its timeout is moved when it expires before the new deadline, or right away
+ * when the deadline gets closer (i.e. a frame is started).
+ */
+public class Reactor implements Runnable {
+
+    /** The duration in ms of a slot of the timer wheel. */
+    private static final long TIMER_TICK_MILLIS = 1000;
+    /** The number of slots of the timer wheel. */
+    private static final int TIMER_WHEEL_SIZE = 512;
+
+    /** The number of connections closed because idle by all the reactors. */
+    private static final AtomicLong idleReaped = new AtomicLong();
+    /** The number of connections closed because of an incomplete frame by all the reactors. */
+    private static final AtomicLong partialFrameReaped = new AtomicLong();
+
+    static {
+        Metrics.getInstance().register("reactors.reaped.idle", idleReaped::get);
+        Metrics.getInstance().register("reactors.reaped.partialFrame", partialFrameReaped::get);
+    }
+
+    /** The selector of this event loop */
+    private final Selector selector;
+    /** The registration queue executed by this reactor thread. */
+    private final AsyncRegistrations asyncRegistrations;
+    /** The executor of the complete packets read by this reactor. */
+    private final CommandProcessor commandProcessor;
+    /** The timeouts of the connections of this reactor. */
+    private final TimerWheel<State> timeouts;
+    /** The maximum time in ms without reading from a client, 0 if unlimited. */
+    private final long idleTimeout;
+    /** The maximum time in ms to read a whole frame, 0 if unlimited. */
+    private final long partialFrameTimeout;
+    /** The time in ms at the last selector wake up. */
+    private long now;
+
+    public Reactor(CommandProcessor commandProcessor) throws IOException {
+        this.selector = Selector.open();
+        this.asyncRegistrations = new AsyncRegistrations(this.selector);
+        this.commandProcessor = commandProcessor;
+        this.idleTimeout = Config.getInstance().getIdleTimeout() * 1000L;
+        this.partialFrameTimeout = Config.getInstance().getPartialFrameTimeout() * 1000L;
+        this.now = System.currentTimeMillis();
+        this.timeouts = new TimerWheel<>(TIMER_WHEEL_SIZE, TIMER_TICK_MILLIS, this.now);
+    }
+
+    /**
+     * Hands a new client connection to this reactor.
+     * The channel will be registered by the reactor thread itself.
+     * @param client
+     */
+    public void accept(SocketChannel client) {
+        this.asyncRegistrations.registerChannel(new State(client, this.asyncRegistrations));
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                this.asyncRegistrations.callAll(this::schedule);
+                if (this.timeouts.size() > 0) {
+                    selector.select(this.timeouts.getTickMillis());
+                } else {
+                    selector.select();
+                }
+                this.now = System.currentTimeMillis();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (CancelledKeyException e) {
+                        this.close(key);
+                    } catch (IOException | RuntimeException e) {
+                        // Only the failing client is dropped, the others are still served.
+                        Config.getInstance().debugLogger(e, "Reactor.");
+                        this.close(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+                this.timeouts.advance(this.now, this::expire);
+            } catch (IOException | RuntimeException e) {
+                Config.getInstance().debugLogger(e, "Reactor.");
+            }
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        State state = (State) key.attachment();
+        if (state.hasOutboundOverflow()) {
+            // The client does not read its responses.
+            Config.getInstance().debugLogger("Outbound queue overflow for client " + state.getClientNick());
+            AsyncRegistrations.deregisterClientSocket(key);
+            return;
+        }
+        Config.getInstance().debugLogger("Write for client " + state.getClientNick());
+        state.writePackets(client);
+        // Must finish to write the responses if some are still queued,
+        // rest interests in this selector if the client left it.
+        key.interestOps(state.getMainInterestOps());
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        State clientConnection = (State) key.attachment();
+        if (!clientConnection.isMainReadSelectable()) {
+            // The client is entering a challenge: its loop reads from it.
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+        int read = client.read(clientConnection.getReadBuffer());
+        if (read == -1) {
+            // The client-server direction has been closed.
+            // Close the connection too.
+            this.timeouts.cancel(clientConnection.getTimeout());
+            clientConnection.release();
+            client.close();
+            return;
+        }
+        try {
+            PacketPojo packet;
+            boolean decoded = false;
+            // More packets can arrive in one read: process all of them unless the
+            // client left this reactor (i.e. it is entering a challenge).
+            while (clientConnection.isMainReadSelectable()
+                    && (packet = clientConnection.nextPacket()) != null
+            ) {
+                decoded = true;
+                Config.getInstance().debugLogger("Received packet " + packet.getOperationCode());
+                this.commandProcessor.process(packet, key, clientConnection);
+            }
+            clientConnection.touch(this.now, decoded);
+            TimerWheel.Timeout<State> timeout = clientConnection.getTimeout();
+            long expiration = clientConnection.getExpiration(this.idleTimeout, this.partialFrameTimeout);
+            if (timeout != null && expiration < timeout.getDeadline()) {
+                this.timeouts.reschedule(timeout, expiration);
+            }
+            if (clientConnection.isOverHighWaterMark() && key.isValid()) {
+                // Backpressure: stop reading until the responses are written.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            Config.getInstance().debugLogger("Malformed packet from " + clientConnection.getClientNick());
+            AsyncRegistrations.deregisterClientSocket(key);
+        }
+    }
+
+    /**
+     * Schedules the timeout of a new connection.
+     * @param state
+     */
+    private void schedule(State state) {
+        long expiration = state.getExpiration(this.idleTimeout, this.partialFrameTimeout);
+        if (expiration != Long.MAX_VALUE) {
+            state.setTimeout(this.timeouts.schedule(state, expiration));
+        }
+    }
+
+    /**
+     * Called when the timeout of a connection expires: closes the connection
+     * if it has really expired, otherwise moves the timeout to its new deadline.
+     * @param state
+     */
+    private void expire(State state) {
+        SelectionKey key = state.getMainKey();
+        if (key == null || !key.isValid()) {
+            // Already closed.
+            return;
+        }
+        if (!state.isMainReadSelectable()) {
+            // The connection is owned by a challenge: it is active.
+            state.touch(this.now, true);
+        }
+        long expiration = state.getExpiration(this.idleTimeout, this.partialFrameTimeout);
+        if (expiration > this.now) {
+            this.timeouts.reschedule(state.getTimeout(), expiration);
+            return;
+        }
+        if (state.isPartialFrameExpired(this.now, this.partialFrameTimeout)) {
+            partialFrameReaped.incrementAndGet();
+            Config.getInstance().debugLogger("Incomplete frame timeout for client " + state.getClientNick());
+        } else {
+            idleReaped.incrementAndGet();
+            Config.getInstance().debugLogger("Idle timeout for client " + state.getClientNick());
+        }
+        this.close(key);
+    }
+
+    /**
+     * Closes a client connection, logging the errors.
+     * @param key
+     */
+    private void close(SelectionKey key) {
+        try {
+            AsyncRegistrations.deregisterClientSocket(key);
+        } catch (IOException | RuntimeException e) {
+            Config.getInstance().debugLogger(e);
+        }
+    }
+}
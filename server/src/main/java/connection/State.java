@@ -1,72 +1,263 @@
 package connection;
 
+import configurations.Config;
+import protocol.Codec;
 import protocol.WQPacket;
 import protocol.json.PacketPojo;
 
-import java.nio.Buffer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Stores and processes packets of a client session.
  */
 public class State {
 
+    /** The maximum number of packets written with a single gathering write. */
+    private static final int MAX_GATHERED_PACKETS = 16;
+
     /**
      * The user nickname using this connection.
      * When the user is not loggedIn this field is null.
+     * It is set and reset by the storage executor while the reactor reads it
+     * for the pipelined requests.
+     */
+    private volatile String clientNick;
+    /**
+     * The packets to be written over the socket serialized in byteBuffers.
+     * Filled by any thread, drained only by the thread owning the connection.
      */
-    private String clientNick;
-    /** The packet to be written over the socket serialized in a byteBuffer. */
-    private ByteBuffer packetToWrite;
-    /** The chunks of a packet that is being read. */
-    private List<ByteBuffer> packetChunks;
+    private final Queue<ByteBuffer> outboundQueue = new ConcurrentLinkedQueue<>();
+    /** The number of packets in the outboundQueue. */
+    private final AtomicInteger outboundSize = new AtomicInteger();
+    /** The maximum number of packets waiting to be written. */
+    private final int outboundCapacity;
+    /** When this number of packets is reached the client requests are not read anymore. */
+    private final int outboundHighWaterMark;
+    /** Set when a packet was discarded because the outboundQueue was full. */
+    private volatile boolean outboundOverflow;
+    /** The array used to gather the packets in a single write. */
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHERED_PACKETS];
+    /** The decoder of the packets being read. */
+    private final FrameDecoder frameDecoder;
+
+    /** The encoding of the packets written to the client, negotiated at login. */
+    private volatile Codec codec = Codec.JSON;
 
     /** The port on which the host listen for challenges forwarded requests */
     private int UDPPort;
+    /**
+     * The address to which the challenges requests are forwarded: the UDPPort
+     * at the remote address of the client connection.
+     */
+    private volatile InetSocketAddress notificationAddress;
     /** Excludes the channel associated with this from the main server selector. */
-    private boolean isMainReadSelectable;
+    private volatile boolean isMainReadSelectable;
     /** The main thread selection key. */
     private SelectionKey mainKey;
     /** client socketChannel */
     private SocketChannel client;
+    /** The registration queue of the reactor which owns the main key. */
+    private AsyncRegistrations asyncRegistrations;
+    /** The time in ms of the last bytes read from the client by its reactor. */
+    private long lastActivity;
+    /** The time in ms since the partial frame being read is pending, 0 if none. */
+    private long partialFrameSince;
+    /** The timeout of this connection in the timer wheel of its reactor. */
+    private TimerWheel.Timeout<State> timeout;
 
     /**
      * Constructor for the host writing to UDPConnection.
      */
-    public State(SocketChannel client) {
+    public State(SocketChannel client, AsyncRegistrations asyncRegistrations) {
         this.client = client;
+        this.asyncRegistrations = asyncRegistrations;
         this.isMainReadSelectable = true;
-        this.packetChunks = new ArrayList<>();
+        this.lastActivity = System.currentTimeMillis();
+        this.frameDecoder = new FrameDecoder();
+        this.outboundCapacity = Config.getInstance().getOutboundQueueSize();
+        this.outboundHighWaterMark = Math.min(
+                Config.getInstance().getOutboundHighWaterMark(),
+                this.outboundCapacity
+        );
+    }
+
+    /**
+     * @return the buffer in which the bytes read from the client should be written.
+     * The caller must call nextPacket after writing into it.
+     */
+    public ByteBuffer getReadBuffer() {
+        return this.frameDecoder.getReadBuffer();
     }
 
     /**
-     * Builds and returns a WQPacket from the chunks queue.
-     * It fails if some bytes are yet to be read.
-     * After building a packet it reset the reading fields.
-     * @return
+     * Decodes the next packet among the bytes read. Call it until it returns null
+     * since more packets can be read at once.
+     * @return the next complete packet or null if it is not yet completely arrived.
+     * @throws IOException if the client sent a malformed packet.
      */
-    public PacketPojo buildWQPacketFromChucks() {
-        // Requesting a packet means that all chunks have been read.
-        PacketPojo packetPojo = WQPacket.fromBytes(packetChunks);
-        this.resetReading();
-        return packetPojo;
+    public PacketPojo nextPacket() throws IOException {
+        return this.frameDecoder.next();
     }
 
     /**
-     * Sets a packet to be written to the socket.
-     * If wqPacket == null it allocates a 0-length byteBuffer.
+     * @return true if the client sent only a part of a packet.
+     */
+    public boolean hasPartialPacket() {
+        return this.frameDecoder.hasPartialFrame();
+    }
+
+    /**
+     * Updates the activity of the connection after its bytes have been read and decoded.
+     * It must be called only by the reactor owning the connection.
+     * @param nowMillis
+     * @param decoded true if at least a packet has been decoded.
+     */
+    void touch(long nowMillis, boolean decoded) {
+        this.lastActivity = nowMillis;
+        if (!this.hasPartialPacket()) {
+            this.partialFrameSince = 0;
+        } else if (decoded || this.partialFrameSince == 0) {
+            // A new frame has been started.
+            this.partialFrameSince = nowMillis;
+        }
+    }
+
+    /**
+     * @param idleTimeoutMillis the maximum time without reads, 0 if unlimited.
+     * @param partialFrameTimeoutMillis the maximum time to complete a frame, 0 if unlimited.
+     * @return the time in ms at which the connection expires, Long.MAX_VALUE if never.
+     */
+    long getExpiration(long idleTimeoutMillis, long partialFrameTimeoutMillis) {
+        long expiration = Long.MAX_VALUE;
+        if (idleTimeoutMillis > 0) {
+            expiration = this.lastActivity + idleTimeoutMillis;
+        }
+        if (partialFrameTimeoutMillis > 0 && this.partialFrameSince > 0) {
+            expiration = Math.min(expiration, this.partialFrameSince + partialFrameTimeoutMillis);
+        }
+        return expiration;
+    }
+
+    /**
+     * @return true if the client is sending a frame for more than partialFrameTimeoutMillis.
+     */
+    boolean isPartialFrameExpired(long nowMillis, long partialFrameTimeoutMillis) {
+        return partialFrameTimeoutMillis > 0
+                && this.partialFrameSince > 0
+                && nowMillis - this.partialFrameSince >= partialFrameTimeoutMillis;
+    }
+
+    TimerWheel.Timeout<State> getTimeout() {
+        return timeout;
+    }
+
+    void setTimeout(TimerWheel.Timeout<State> timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Appends a packet to those to be written to the socket.
+     * It can be called by any thread, after that the caller must register
+     * the write interest for the connection.
+     * If the queue is full the packet is discarded and the connection marked
+     * as overflowed: the client is not reading its responses.
      * @param wqPacket
+     * @return false if the packet was discarded.
      */
-    public void setPacketToWrite(WQPacket wqPacket) {
-        this.packetToWrite = wqPacket != null
-                ? wqPacket.toByteBuffer()
-                : ByteBuffer.allocate(0);
+    public boolean enqueuePacket(WQPacket wqPacket) {
+        if (wqPacket == null) return false;
+        if (this.outboundSize.incrementAndGet() > this.outboundCapacity) {
+            this.outboundSize.decrementAndGet();
+            this.outboundOverflow = true;
+            return false;
+        }
+        this.outboundQueue.offer(wqPacket.toByteBuffer());
+        return true;
     }
 
+    /**
+     * Encodes a packet with the codec of the connection and appends it
+     * to those to be written to the socket.
+     * @see #enqueuePacket(WQPacket)
+     * @param packet
+     * @return false if the packet was discarded.
+     */
+    public boolean enqueuePacket(PacketPojo packet) {
+        return this.enqueuePacket(new WQPacket(packet, this.codec));
+    }
+
+    /**
+     * Writes as many queued packets as possible with a single gathering write.
+     * It must be called only by the thread owning the connection; while the
+     * connection is handed to or from a challenge both the reactor and the
+     * challenge loop can write, so the writes are serialized.
+     * @param channel
+     * @return true if all queued packets have been written.
+     * @throws IOException
+     */
+    public synchronized boolean writePackets(GatheringByteChannel channel) throws IOException {
+        int gathered = 0;
+        for (ByteBuffer buffer : this.outboundQueue) {
+            if (gathered == this.gatherBuffers.length) break;
+            this.gatherBuffers[gathered++] = buffer;
+        }
+        if (gathered > 0) {
+            channel.write(this.gatherBuffers, 0, gathered);
+            // Removes the packets completely written.
+            for (int i = 0; i < gathered && !this.gatherBuffers[i].hasRemaining(); i++) {
+                this.outboundQueue.poll();
+                this.outboundSize.decrementAndGet();
+            }
+            Arrays.fill(this.gatherBuffers, 0, gathered, null);
+        }
+        return this.outboundQueue.isEmpty();
+    }
+
+    /**
+     * @return true if some packets are waiting to be written.
+     */
+    public boolean hasPacketsToWrite() {
+        return !this.outboundQueue.isEmpty();
+    }
+
+    /**
+     * @return true if the queued packets reached the high-water mark:
+     * the client should not be read until they are written.
+     */
+    public boolean isOverHighWaterMark() {
+        return this.outboundSize.get() >= this.outboundHighWaterMark;
+    }
+
+    /**
+     * The interests of the main key according to this state: the client requests
+     * are read while it is in the reactor and under the high-water mark,
+     * so that more requests can be in-flight while the responses are written.
+     * It must be called only by the thread owning the connection.
+     * @return the interest set for the main key.
+     */
+    public int getMainInterestOps() {
+        int interests = this.hasPacketsToWrite() ? SelectionKey.OP_WRITE : 0;
+        if (this.isMainReadSelectable && !this.isOverHighWaterMark()) {
+            interests |= SelectionKey.OP_READ;
+        }
+        return interests;
+    }
+
+    /**
+     * @return true if a packet was discarded because the client was not reading.
+     */
+    public boolean hasOutboundOverflow() {
+        return this.outboundOverflow;
+    }
 
 
     /**
@@ -82,7 +273,7 @@ public class State {
      * NOTE: to set a new client nickname reset method should be called first.
      * @param clientNick
      */
-    public boolean setClientNick(String clientNick) {
+    public synchronized boolean setClientNick(String clientNick) {
         if (this.clientNick == null) {
             this.clientNick = clientNick;
             return true;
@@ -90,56 +281,65 @@ public class State {
     }
 
     /**
-     * Adds a chunk to the list of read chunks.
-     * It also tries to get the packet total dimension from the chunks
-     * already arrived.
-     * @param chunk
-     * @return true if the bytes expected of the original packet are all arrived.
+     * @return true if the connection is already assigned to a login session.
      */
-    public boolean addChunk(ByteBuffer chunk) {
-        this.packetChunks.add(chunk);
-        int receivedBytes = this.packetChunks.stream()
-                .mapToInt(Buffer::remaining)
-                .sum();
-        final int packetTotalDimension = WQPacket.getPacketLengthFromHeaderBytes(this.packetChunks);
-        return packetTotalDimension > 0 && packetTotalDimension - receivedBytes == 0;
+    public boolean isAssigned() {
+        return this.clientNick != null;
     }
 
     /**
-     * @return the ongoing packet.
+     * Resets this connection so it can be reassigned to a new client.
+     * The packets already read or queued are kept: they belong to the
+     * connection, not to the logged-out user.
      */
-    public ByteBuffer getPacketToWrite() {
-        return packetToWrite;
+    public synchronized void reset() {
+        this.clientNick = null;
+        this.codec = Codec.JSON;
     }
 
     /**
-     * @return true if the connection is already assigned to a login session.
+     * Frees the resources of the connection once it has been closed:
+     * the read buffer leased from the BufferPool and the packets never written.
+     * It must be called by the thread owning the connection, the State
+     * must not be used afterwards.
      */
-    public boolean isAssigned() {
-        return this.clientNick != null;
+    public synchronized void release() {
+        this.frameDecoder.reset();
+        this.outboundQueue.clear();
+        this.outboundSize.set(0);
     }
 
-    /**
-     * Resets this connection so it can be reassigned to a new client.
-     */
-    public void reset() {
-        this.clientNick = null;
-        this.setPacketToWrite(null);
-        this.resetReading();
+    public Codec getCodec() {
+        return codec;
     }
 
-    /** Resets the reading fields of this connection */
-    private void resetReading() {
-        // Empty the queue.
-        this.packetChunks.clear();
+    /**
+     * Sets the encoding of the packets enqueued from now on.
+     * @param codec
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
     }
 
     public int getUDPPort() {
         return UDPPort;
     }
 
+    /**
+     * Sets the port on which the client listens for the challenges requests,
+     * at the (already resolved) remote address of its connection.
+     * @param UDPPort
+     */
     public void setUDPPort(int UDPPort) {
         this.UDPPort = UDPPort;
+        this.notificationAddress = new InetSocketAddress(this.client.socket().getInetAddress(), UDPPort);
+    }
+
+    /**
+     * @return the address to which the challenges requests are forwarded, null before the login.
+     */
+    public InetSocketAddress getNotificationAddress() {
+        return notificationAddress;
     }
 
     public boolean isMainReadSelectable() {
@@ -158,6 +358,14 @@ public class State {
         return mainKey;
     }
 
+    /**
+     * @return the registration queue of the reactor owning this connection,
+     * use it to change the main key interests from other threads.
+     */
+    public AsyncRegistrations getAsyncRegistrations() {
+        return asyncRegistrations;
+    }
+
     public SelectionKey setMainKey(SelectionKey key) {
         this.mainKey = key;
         return this.mainKey;
@@ -0,0 +1,180 @@
+package connection;
+
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel: a circular array of slots of tickMillis ms each, a timeout
+ * is linked in the slot of its deadline tick. Scheduling, rescheduling and cancelling
+ * a timeout are O(1), advancing the wheel visits only the slots of the elapsed ticks.
+ * Deadlines farther than a revolution stay in their slot until the right round.
+ * NOTE: it is not thread-safe, it must be used by a single thread (i.e. a reactor).
+ * @param <T> the type of the items associated to the timeouts.
+ */
+public class TimerWheel<T> {
+
+    /**
+     * A scheduled timeout, linked in the list of its slot.
+     */
+    public static final class Timeout<T> {
+
+        private final TimerWheel<T> wheel;
+        private final T item;
+        private long deadline;
+        private int slot = -1;
+        private Timeout<T> previous;
+        private Timeout<T> next;
+
+        private Timeout(TimerWheel<T> wheel, T item) {
+            this.wheel = wheel;
+            this.item = item;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * @return the deadline in ms.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * @return true if the timeout is linked in the wheel.
+         */
+        public boolean isScheduled() {
+            return this.slot >= 0;
+        }
+
+        /**
+         * Removes this timeout from its wheel, if scheduled.
+         * It must be called by the thread using the wheel.
+         */
+        public void cancel() {
+            this.wheel.cancel(this);
+        }
+    }
+
+    private final Timeout<T>[] slots;
+    private final int mask;
+    private final long tickMillis;
+    /** The last tick processed by advance. */
+    private long currentTick;
+    /** The number of scheduled timeouts. */
+    private int size;
+
+    /**
+     * @param wheelSize the number of slots, rounded up to a power of two.
+     * @param tickMillis the duration of a slot in ms.
+     * @param nowMillis the current time in ms.
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(int wheelSize, long tickMillis, long nowMillis) {
+        if (wheelSize <= 0 || tickMillis <= 0)
+            throw new IllegalArgumentException("Invalid timer wheel configuration");
+        int slotsNumber = Integer.highestOneBit(wheelSize);
+        if (slotsNumber < wheelSize) slotsNumber <<= 1;
+        this.slots = (Timeout<T>[]) new Timeout[slotsNumber];
+        this.mask = slotsNumber - 1;
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Schedules a new timeout.
+     * @param item
+     * @param deadlineMillis
+     * @return the timeout handle, used to reschedule or cancel it.
+     */
+    public Timeout<T> schedule(T item, long deadlineMillis) {
+        Timeout<T> timeout = new Timeout<>(this, item);
+        this.link(timeout, deadlineMillis);
+        return timeout;
+    }
+
+    /**
+     * Moves a timeout to a new deadline, scheduling it again if it is expired or cancelled.
+     * @param timeout
+     * @param deadlineMillis
+     */
+    public void reschedule(Timeout<T> timeout, long deadlineMillis) {
+        this.cancel(timeout);
+        this.link(timeout, deadlineMillis);
+    }
+
+    /**
+     * Removes a timeout from the wheel, if scheduled.
+     * @param timeout
+     */
+    public void cancel(Timeout<T> timeout) {
+        if (timeout == null || !timeout.isScheduled()) return;
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            this.slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        this.size--;
+    }
+
+    /**
+     * Expires the timeouts whose deadline is reached, in the slots of the ticks
+     * elapsed since the last call. The callback can reschedule the timeout.
+     * @param nowMillis the current time in ms.
+     * @param onExpired called with the item of every expired timeout.
+     */
+    public void advance(long nowMillis, Consumer<T> onExpired) {
+        long nowTick = nowMillis / this.tickMillis;
+        // A revolution visits all the slots.
+        long lastTick = Math.min(nowTick, this.currentTick + this.slots.length);
+        for (long tick = this.currentTick + 1; tick <= lastTick; ++tick) {
+            Timeout<T> timeout = this.slots[(int) (tick & this.mask)];
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.deadline <= nowMillis) {
+                    this.cancel(timeout);
+                    onExpired.accept(timeout.item);
+                }
+                timeout = next;
+            }
+        }
+        this.currentTick = Math.max(this.currentTick, nowTick);
+    }
+
+    /**
+     * @return the number of scheduled timeouts.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Links a timeout at the head of the slot of the first tick not before its deadline,
+     * so that it is expired when the slot is visited; a deadline already passed is
+     * expired by the next advance.
+     */
+    private void link(Timeout<T> timeout, long deadlineMillis) {
+        long deadlineTick = (deadlineMillis + this.tickMillis - 1) / this.tickMillis;
+        long tick = Math.max(deadlineTick, this.currentTick + 1);
+        int slot = (int) (tick & this.mask);
+        timeout.deadline = deadlineMillis;
+        timeout.slot = slot;
+        timeout.previous = null;
+        timeout.next = this.slots[slot];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        this.slots[slot] = timeout;
+        this.size++;
+    }
+}
@@ -0,0 +1,15 @@
+package executors;
+
+/**
+ * The kind of threads executing the blocking server work, i.e. the tasks of the
+ * storage and translation executors. The challenges run on the ChallengeLoops in both modes.
+ */
+public enum ExecutionMode {
+    /** Bounded pools of platform threads for the storage and translation tasks. */
+    PLATFORM,
+    /**
+     * A virtual thread per storage and translation task, if supported by the JVM
+     * (otherwise PLATFORM is used).
+     */
+    VIRTUAL
+}
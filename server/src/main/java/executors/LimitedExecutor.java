@@ -0,0 +1,56 @@
+package executors;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of tasks executed at once by an executor which never
+ * queues them (i.e. a thread per task): the exceeding tasks are rejected.
+ */
+class LimitedExecutor implements Executor {
+
+    private final String name;
+    private final Executor executor;
+    /** The maximum number of tasks executed at once. */
+    private final int limit;
+    private final Semaphore permits;
+    /** The number of tasks rejected. */
+    private final AtomicLong rejections;
+
+    LimitedExecutor(String name, Executor executor, int limit, AtomicLong rejections) {
+        this.name = name;
+        this.executor = executor;
+        this.limit = limit;
+        this.permits = new Semaphore(limit);
+        this.rejections = rejections;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!this.permits.tryAcquire()) {
+            this.rejections.incrementAndGet();
+            throw new RejectedExecutionException("The " + this.name + " executor is full");
+        }
+        try {
+            this.executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    this.permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks being executed.
+     */
+    int getRunning() {
+        return this.limit - this.permits.availablePermits();
+    }
+}
@@ -0,0 +1,187 @@
+package executors;
+
+import configurations.Config;
+import metrics.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The executors of the blocking server work, separated by kind so that a
+ * slow resource (ex. a file scan) can't starve the others (ex. translations).
+ * The storage and translation executors are bounded: a task submitted to a full
+ * executor is rejected with a RejectedExecutionException, the caller should answer
+ * to the client that the server is busy instead of queuing without limit.
+ * In VIRTUAL execution mode every task runs on its own virtual thread, the storage
+ * and translation executors then bound the number of tasks running at once
+ * (threads + queue size) instead of the number of threads.
+ */
+public class ServerExecutors {
+
+    /** The execution mode in use. */
+    private final ExecutionMode executionMode;
+    /** Executes the UserStorage operations (file scans and writes). */
+    private final Executor storageExecutor;
+    /** Executes the translation requests to the remote services. */
+    private final Executor translationExecutor;
+    /** The number of tasks rejected by the storageExecutor. */
+    private final AtomicLong storageRejections = new AtomicLong();
+    /** The number of tasks rejected by the translationExecutor. */
+    private final AtomicLong translationRejections = new AtomicLong();
+
+    private static ServerExecutors instance;
+
+    private ServerExecutors() {
+        Config config = Config.getInstance();
+        ExecutorService virtualExecutor = null;
+        if (config.getExecutionMode() == ExecutionMode.VIRTUAL) {
+            virtualExecutor = newVirtualThreadPerTaskExecutor();
+            if (virtualExecutor == null) {
+                System.out.println(
+                        "[WARNING] Virtual threads are not supported by this JVM"
+                        + "\n-> PLATFORM execution mode will be used"
+                );
+            }
+        }
+        if (virtualExecutor != null) {
+            this.executionMode = ExecutionMode.VIRTUAL;
+            LimitedExecutor storage = new LimitedExecutor(
+                    "storage",
+                    virtualExecutor,
+                    config.getStorageThreads() + config.getStorageQueueSize(),
+                    this.storageRejections
+            );
+            LimitedExecutor translation = new LimitedExecutor(
+                    "translation",
+                    virtualExecutor,
+                    config.getTranslationThreads() + config.getTranslationQueueSize(),
+                    this.translationRejections
+            );
+            registerMetrics("storage", storage, this.storageRejections);
+            registerMetrics("translation", translation, this.translationRejections);
+            this.storageExecutor = storage;
+            this.translationExecutor = translation;
+        } else {
+            this.executionMode = ExecutionMode.PLATFORM;
+            ThreadPoolExecutor storage = newBoundedExecutor(
+                    "storage",
+                    config.getStorageThreads(),
+                    config.getStorageQueueSize(),
+                    this.storageRejections
+            );
+            ThreadPoolExecutor translation = newBoundedExecutor(
+                    "translation",
+                    config.getTranslationThreads(),
+                    config.getTranslationQueueSize(),
+                    this.translationRejections
+            );
+            registerMetrics("storage", storage, this.storageRejections);
+            registerMetrics("translation", translation, this.translationRejections);
+            this.storageExecutor = storage;
+            this.translationExecutor = translation;
+        }
+    }
+
+    public static synchronized ServerExecutors getInstance() {
+        if (instance == null) {
+            instance = new ServerExecutors();
+        }
+        return instance;
+    }
+
+    /**
+     * @return the execution mode in use, PLATFORM if VIRTUAL was configured
+     * but it is not supported.
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * @return the executor of the UserStorage operations.
+     */
+    public Executor getStorageExecutor() {
+        return storageExecutor;
+    }
+
+    /**
+     * @return the executor of the translation requests.
+     */
+    public Executor getTranslationExecutor() {
+        return translationExecutor;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor is looked up by reflection
+     * since the server is compiled for Java 8.
+     * @return an executor starting a virtual thread per task,
+     * null if virtual threads are not supported by the running JVM.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds a fixed size executor of daemon threads with a bounded queue,
+     * which counts and rejects the tasks exceeding it.
+     * @param name the prefix of the threads names.
+     * @param threads
+     * @param queueSize
+     * @param rejections the counter of the rejected tasks.
+     * @return the executor.
+     */
+    private static ThreadPoolExecutor newBoundedExecutor(
+            String name,
+            int threads,
+            int queueSize,
+            AtomicLong rejections
+    ) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread thread = new Thread(r, name + "-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (r, e) -> {
+                    rejections.incrementAndGet();
+                    throw new RejectedExecutionException("The " + name + " executor is full");
+                }
+        );
+        // Frees the idle threads.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void registerMetrics(String name, ThreadPoolExecutor executor, AtomicLong rejections) {
+        Metrics metrics = Metrics.getInstance();
+        metrics.register("executors." + name + ".queued", () -> executor.getQueue().size());
+        metrics.register("executors." + name + ".active", executor::getActiveCount);
+        metrics.register("executors." + name + ".completed", executor::getCompletedTaskCount);
+        metrics.register("executors." + name + ".rejected", rejections::get);
+    }
+
+    private static void registerMetrics(String name, LimitedExecutor executor, AtomicLong rejections) {
+        Metrics metrics = Metrics.getInstance();
+        metrics.register("executors." + name + ".active", executor::getRunning);
+        metrics.register("executors." + name + ".rejected", rejections::get);
+    }
+}
@@ -0,0 +1,108 @@
+package metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of the server metrics.
+ * Every component exposes its counters and gauges under a dotted name
+ * (ex. bufferPool.hits), the registry reads them only when a snapshot is requested.
+ */
+public class Metrics {
+
+    /** The registered metrics sorted by name. */
+    private final Map<String, LongSupplier> metrics = new ConcurrentSkipListMap<>();
+    /** The reporter thread, started only if requested. */
+    private ScheduledExecutorService reporter;
+
+    private static Metrics instance;
+    private Metrics() { }
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Registers (or replaces) a metric.
+     * @param name
+     * @param metric a thread-safe supplier of the current value.
+     */
+    public void register(String name, LongSupplier metric) {
+        this.metrics.put(name, metric);
+    }
+
+    /**
+     * Registers the rate per second of a counter, measured between two
+     * consecutive reads of the metric (i.e. two reports).
+     * @param name
+     * @param counter a thread-safe supplier of a monotonic counter.
+     */
+    public void registerRate(String name, LongSupplier counter) {
+        this.metrics.put(name, new Rate(counter));
+    }
+
+    /**
+     * @return the current value of all the registered metrics ordered by name.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        this.metrics.forEach((name, metric) -> snapshot.put(name, metric.getAsLong()));
+        return snapshot;
+    }
+
+    /**
+     * Prints a snapshot of the metrics every intervalSeconds seconds.
+     * @param intervalSeconds
+     */
+    public synchronized void startReporting(long intervalSeconds) {
+        if (this.reporter != null || intervalSeconds <= 0) return;
+        this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reporter.scheduleAtFixedRate(
+                () -> System.out.println("[METRICS] " + this.snapshot()),
+                intervalSeconds,
+                intervalSeconds,
+                TimeUnit.SECONDS
+        );
+    }
+
+    /**
+     * The increment per second of a counter since the previous read.
+     */
+    private static class Rate implements LongSupplier {
+
+        private final LongSupplier counter;
+        private long lastValue;
+        private long lastNanos;
+
+        Rate(LongSupplier counter) {
+            this.counter = counter;
+            this.lastValue = counter.getAsLong();
+            this.lastNanos = System.nanoTime();
+        }
+
+        @Override
+        public synchronized long getAsLong() {
+            long value = this.counter.getAsLong();
+            long now = System.nanoTime();
+            long elapsed = now - this.lastNanos;
+            long rate = elapsed > 0
+                    ? (value - this.lastValue) * TimeUnit.SECONDS.toNanos(1) / elapsed
+                    : 0;
+            this.lastValue = value;
+            this.lastNanos = now;
+            return rate;
+        }
+    }
+}
@@ -13,5 +13,10 @@ public enum Policy {
      * Use a buffer for all the client login session, when a client logs-out
      * then write all information.
      */
-    ON_SESSION_CLOSE
+    ON_SESSION_CLOSE,
+    /**
+     * Write-behind: the modified users are written all together periodically
+     * (or as soon as enough of them are modified) and when the server shuts down.
+     */
+    PERIODIC
 }
@@ -0,0 +1,188 @@
+package storage;
+
+import configurations.Config;
+import storage.models.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Group-commits the registrations: the users are queued by the callers and a single thread
+ * writes all those waiting (at most -registrationBatch) together, then completes their futures.
+ * While a batch is written the next one gets queued, so the writes are amortized
+ * as much as the load requires without delaying a lonely registration.
+ * Doesn't check the registration contract, it is up to the caller (@link RegistrationRegistry).
+ */
+class RegistrationCommitter {
+
+    /**
+     * An user waiting to be written and the future completed when it is on disk.
+     */
+    private static class Pending {
+        private final User user;
+        private final CompletableFuture<Boolean> committed = new CompletableFuture<>();
+
+        private Pending(User user) {
+            this.user = user;
+        }
+    }
+
+    /** Queued by close after the last user: the committer writes the users before it and stops. */
+    private static final Pending POISON = new Pending(null);
+
+    /** Writes a batch of users, returns true when they are on disk. */
+    private final Predicate<List<User>> writer;
+    /** The maximum number of users written together. */
+    private final int maxBatch;
+    /** The users waiting to be written. */
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    /** Writes the batches. */
+    private final Thread committer;
+    /** Set when closed, the registrations are rejected. */
+    private boolean closed;
+    /** The number of batches written. */
+    private final AtomicLong batches = new AtomicLong();
+    /** The number of users written. */
+    private final AtomicLong users = new AtomicLong();
+    /** The number of batches failed. */
+    private final AtomicLong failures = new AtomicLong();
+    /** The number of users written by the last batch. */
+    private volatile long lastBatch;
+    /** The longest write of a batch in ms. */
+    private final AtomicLong maxCommitMillis = new AtomicLong();
+
+    /**
+     * @param writer writes a batch of users, returns true when they are on disk.
+     * @param maxBatch the maximum number of users written together.
+     */
+    RegistrationCommitter(Predicate<List<User>> writer, int maxBatch) {
+        this.writer = writer;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.committer = new Thread(this::run, "registration-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Queues an user to be written with the next batch.
+     * @param user
+     * @return a future completed with true when the user is on disk,
+     * with false if it can't be written.
+     */
+    CompletableFuture<Boolean> submit(User user) {
+        Pending pending = new Pending(user);
+        synchronized (this) {
+            if (this.closed) {
+                pending.committed.complete(false);
+            } else {
+                this.queue.add(pending);
+            }
+        }
+        return pending.committed;
+    }
+
+    /**
+     * Rejects the new registrations and waits for the users already queued to be written.
+     * The committer is not interrupted: a batch being written completes normally.
+     */
+    void close() {
+        synchronized (this) {
+            if (this.closed) return;
+            this.closed = true;
+            this.queue.add(POISON);
+        }
+        try {
+            this.committer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.committer.isAlive()) {
+            Config.getInstance().debugLogger("[REGISTRATION COMMIT] The committer did not stop in time.");
+        }
+    }
+
+    int getQueued() {
+        return this.queue.size();
+    }
+
+    long getBatches() {
+        return this.batches.get();
+    }
+
+    long getUsers() {
+        return this.users.get();
+    }
+
+    long getFailures() {
+        return this.failures.get();
+    }
+
+    long getLastBatch() {
+        return this.lastBatch;
+    }
+
+    long getMaxCommitMillis() {
+        return this.maxCommitMillis.get();
+    }
+
+    /**
+     * Waits for the first user, then takes all those queued meanwhile.
+     * It stops after writing the users queued before POISON, which is the last one.
+     */
+    private void run() {
+        List<Pending> batch = new ArrayList<>(this.maxBatch);
+        boolean closed = false;
+        while (!closed) {
+            try {
+                batch.add(this.queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            this.queue.drainTo(batch, this.maxBatch - 1);
+            closed = batch.get(batch.size() - 1) == POISON;
+            if (closed) {
+                batch.remove(batch.size() - 1);
+            }
+            if (!batch.isEmpty()) {
+                this.commit(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes a batch and releases its callers.
+     */
+    private void commit(List<Pending> batch) {
+        List<User> batchUsers = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            batchUsers.add(pending.user);
+        }
+        long start = System.nanoTime();
+        boolean committed;
+        try {
+            committed = this.writer.test(batchUsers);
+        } catch (RuntimeException e) {
+            Config.getInstance().debugLogger(e, "[REGISTRATION COMMIT]");
+            committed = false;
+        }
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (committed) {
+            this.batches.incrementAndGet();
+            this.users.addAndGet(batch.size());
+            this.lastBatch = batch.size();
+            this.maxCommitMillis.accumulateAndGet(duration, Math::max);
+        } else {
+            this.failures.incrementAndGet();
+        }
+        for (Pending pending : batch) {
+            pending.committed.complete(committed);
+        }
+    }
+}
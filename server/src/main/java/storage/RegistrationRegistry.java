@@ -2,13 +2,31 @@ package storage;
 
 import RMIRegistrationService.RegistrationRemoteService;
 import RMIRegistrationService.RegistrationResponseStatusCode;
+import configurations.Config;
+import metrics.Metrics;
+import storage.models.User;
 
 import java.rmi.RemoteException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 public class RegistrationRegistry implements RegistrationRemoteService {
 
+    /**
+     * The nicknames being registered, reserved until written or rejected.
+     */
+    private final Set<String> pendingNicks = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Writes the registrations in batches.
+     */
+    private final RegistrationCommitter committer;
+
     private static RegistrationRegistry instance;
     private RegistrationRegistry() {
+        this.committer = UserStorage.getInstance().getRegistrationCommitter();
+        this.registerMetrics();
     }
     public static RegistrationRegistry getInstance() {
         if (instance == null) {
@@ -21,30 +39,55 @@ public class RegistrationRegistry implements RegistrationRemoteService {
      * Thread safe implementation, it is required because RMI provides only
      * Client JVM synchronization. Every updates to the primary storage level
      * is maintained also in users.
+     * The nickname is reserved while the user is queued to the committer, which writes it
+     * together with the concurrent registrations: it returns OK once the user is on disk.
      * @param nickName
      * @param password
      * @return
      * @throws RemoteException
      */
     @Override
-    public synchronized RegistrationResponseStatusCode addUser(String nickName, String password) throws RemoteException {
+    public RegistrationResponseStatusCode addUser(String nickName, String password) throws RemoteException {
         if (nickName == null || nickName.equals("")) {
             return RegistrationResponseStatusCode.INVALID_NICK_ERROR;
         }
         if (password == null || password.length() < 4) {
             return RegistrationResponseStatusCode.INVALID_PASSWORD_ERROR;
         }
-        if (this.isAlreadyRegistered(nickName)) {
+        if (!this.pendingNicks.add(nickName)) {
             return RegistrationResponseStatusCode.NICK_ALREADY_REGISTERED_ERROR;
         }
-        if (UserStorage.getInstance().register(nickName, password)) {
-            return RegistrationResponseStatusCode.OK;
+        try {
+            if (UserStorage.getInstance().exists(nickName)) {
+                return RegistrationResponseStatusCode.NICK_ALREADY_REGISTERED_ERROR;
+            }
+            if (this.committer.submit(new User(nickName, password)).get()) {
+                return RegistrationResponseStatusCode.OK;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Config.getInstance().debugLogger(e, "[REGISTRATION]");
+        } finally {
+            // Written or rejected: from now on it is checked in the storage.
+            this.pendingNicks.remove(nickName);
         }
         return RegistrationResponseStatusCode.INTERNAL_ERROR;
     }
 
     @Override
-    public synchronized boolean isAlreadyRegistered(String nickName) throws RemoteException {
-        return UserStorage.getInstance().exists(nickName);
+    public boolean isAlreadyRegistered(String nickName) throws RemoteException {
+        return this.pendingNicks.contains(nickName) || UserStorage.getInstance().exists(nickName);
+    }
+
+    private void registerMetrics() {
+        Metrics metrics = Metrics.getInstance();
+        metrics.register("registration.queued", this.committer::getQueued);
+        metrics.register("registration.batches", this.committer::getBatches);
+        metrics.register("registration.users", this.committer::getUsers);
+        metrics.registerRate("registration.usersPerSecond", this.committer::getUsers);
+        metrics.register("registration.failures", this.committer::getFailures);
+        metrics.register("registration.lastBatch", this.committer::getLastBatch);
+        metrics.register("registration.maxCommitMillis", this.committer::getMaxCommitMillis);
     }
 }
@@ -0,0 +1,22 @@
+package storage;
+
+/**
+ * Type to indicate how the online information of the users (scores and friends) is stored.
+ * @link WARNING: Changes to this class are reflected in Config -useStorageMode option.
+ */
+public enum StorageMode {
+    /**
+     * A JSON array file: every update rewrites the whole file.
+     */
+    JSON,
+    /**
+     * An append-only log compacted in background: every update appends the new records.
+     * The log is created from the JSON file the first time, then it is not written anymore.
+     */
+    LOG,
+    /**
+     * A memory-mapped file of fixed-size slots: a score change is written in place.
+     * The file is created from the JSON file the first time, then it is not written anymore.
+     */
+    MAPPED
+}
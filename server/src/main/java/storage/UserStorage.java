@@ -2,8 +2,11 @@ package storage;
 
 import configurations.Config;
 import protocol.json.RankingListItem;
-import storage.iotasks.JSONMapper;
-import storage.iotasks.JSONUserAppender;
+import metrics.Metrics;
+import storage.iotasks.JSONUserStore;
+import storage.iotasks.LogUserStore;
+import storage.iotasks.MappedUserStore;
+import storage.iotasks.UserStore;
 import storage.models.User;
 import storage.models.UserViews;
 
@@ -16,6 +19,7 @@ import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -32,11 +36,26 @@ public class UserStorage {
     private String registrationPath;
     private String onlinePath;
 
+    /**
+     * The stores of the db files, to read an user without scanning them.
+     */
+    private UserStore registrationStore;
+    private UserStore onlineStore;
+
     /**
      * The file accessing policy
      */
     private Policy policy;
 
+    /**
+     * Writes the modified users with Policy.PERIODIC, null with the other policies.
+     */
+    private WriteBehindFlusher writeBehind;
+    /**
+     * Group-commits the registrations, closed before the stores on shutdown.
+     */
+    private final RegistrationCommitter registrationCommitter;
+
     /**
      * Stores logged users by nickname
      */
@@ -77,6 +96,41 @@ public class UserStorage {
                 UserViews.Registration.FILE
         );
         this.policy = config.getStorageAccessPolicy();
+        try {
+            this.registrationStore = new JSONUserStore(this.registrationPath, UserViews.Registration.class);
+            switch (config.getStorageMode()) {
+                case LOG:
+                    this.onlineStore = new LogUserStore(
+                            this.onlinePath,
+                            UserViews.Online.class,
+                            TimeUnit.SECONDS.toMillis(config.getLogCompactionInterval())
+                    );
+                    break;
+                case MAPPED:
+                    this.onlineStore = new MappedUserStore(this.onlinePath, config.getMappedFlushInterval());
+                    break;
+                default:
+                    this.onlineStore = new JSONUserStore(this.onlinePath, UserViews.Online.class);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Storage files unavailable");
+        }
+        this.registrationCommitter = new RegistrationCommitter(
+                this::register,
+                config.getRegistrationBatch()
+        );
+        if (Policy.PERIODIC.equals(this.policy)) {
+            this.writeBehind = new WriteBehindFlusher(
+                    this.onlineStore,
+                    this.writeLock,
+                    config.getStorageFlushInterval(),
+                    config.getStorageFlushBatch()
+            );
+        }
+        // Writes the pending changes when the server shuts down.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "storage-shutdown"));
+        this.registerMetrics();
     }
 
     public static UserStorage getInstance() {
@@ -96,12 +150,22 @@ public class UserStorage {
     boolean register(String nickname, String password) {
         try {
             User user = new User(nickname, password);
-            return this.append(user);
+            return this.register(Collections.singletonList(user));
         } catch (IllegalArgumentException e) {
             return false;
         }
     }
 
+    /**
+     * Registers a batch of users to WQ, writing them to each storage file with a single write.
+     * The users are on disk when it returns true.
+     * The concurrency management is delegated to the caller (@link RegistrationCommitter)
+     * @param users
+     */
+    boolean register(List<User> users) {
+        return this.append(users);
+    }
+
     /**
      * Checks if nickName is registered to WQ.
      * @param nickName
@@ -187,6 +251,9 @@ public class UserStorage {
         if (this.policy == Policy.IMMEDIATELY) {
             updates.add(recipientUser);
             updates.add(requesterUser);
+        } else if (Policy.PERIODIC.equals(this.policy)) {
+            this.writeBehind.markDirty(recipientUser);
+            this.writeBehind.markDirty(requesterUser);
         } else if (Policy.ON_SESSION_CLOSE.equals(this.policy)
                     && !this.isOnline(recipientNick)
         ) {
@@ -196,11 +263,7 @@ public class UserStorage {
         if (!updates.isEmpty()) {
             this.writeLock.lock();
             try {
-                JSONMapper.copyAndUpdate(
-                        this.onlinePath,
-                        updates,
-                        UserViews.Online.class
-                );
+                this.onlineStore.update(updates);
             } catch (IOException e) {
                 e.printStackTrace();
                 return false;
@@ -255,12 +318,18 @@ public class UserStorage {
         if (user == null) {
             throw new IllegalStateException("An user must be online to request the score ranking list");
         }
+        TreeSet<User> rankingList = new TreeSet<>();
+        this.readLock.lock();
         try {
-            TreeSet<User> rankingList = JSONMapper.findAndGet(
-                    this.onlinePath,
-                    user.getFriends(),
-                    UserViews.Online.class
-            );
+            // A read for each friend instead of scanning the file.
+            for (String friend : user.getFriends()) {
+                try {
+                    User dirty = this.writeBehind != null ? this.writeBehind.getDirty(friend) : null;
+                    rankingList.add(dirty != null ? dirty : this.onlineStore.get(friend));
+                } catch (NoSuchElementException e) {
+                    // Not in the file (yet).
+                }
+            }
             rankingList.add(user);
             List<RankingListItem> serializableList = rankingList.stream()
                     .sorted()
@@ -269,6 +338,8 @@ public class UserStorage {
             return serializableList;
         } catch (IOException e) {
             throw new RuntimeException("Internal error");
+        } finally {
+            this.readLock.unlock();
         }
     }
 
@@ -281,12 +352,22 @@ public class UserStorage {
         this.onlineUsers.computeIfPresent(user, (k, v) -> {
             User updated = v.setScore(v.getScore() + points);
             if (Policy.IMMEDIATELY.equals(this.policy)) {
-                this.safeUpdate(updated);
+                // The friends are already stored by addFriend.
+                this.safeUpdateScore(updated);
+            } else if (Policy.PERIODIC.equals(this.policy)) {
+                this.writeBehind.markDirty(updated);
             }
             return updated;
         });
     }
 
+    /**
+     * @return the committer writing the registrations (@link RegistrationRegistry).
+     */
+    RegistrationCommitter getRegistrationCommitter() {
+        return registrationCommitter;
+    }
+
     String getOnlinePath() {
         return onlinePath;
     }
@@ -313,7 +394,7 @@ public class UserStorage {
     private User loadUserRegistrationInfo(String nickname) throws NoSuchElementException {
         this.readLock.lock();
         try {
-            return this.loadUserInfo(nickname, this.registrationPath, UserViews.Registration.class);
+            return this.loadUserInfo(nickname, this.registrationStore);
         } finally {
             this.readLock.unlock();
         }
@@ -325,23 +406,25 @@ public class UserStorage {
         }
         this.readLock.lock();
         try {
-            return this.loadUserInfo(nickname, this.onlinePath, UserViews.Online.class);
+            // The changes not written yet.
+            User dirty = this.writeBehind != null ? this.writeBehind.getDirty(nickname) : null;
+            if (dirty != null) return dirty;
+            return this.loadUserInfo(nickname, this.onlineStore);
         } finally {
             readLock.unlock();
         }
     }
 
     /**
-     * Load an user from the given file searching by nickname and returns it
+     * Load an user from the given store with a single read and returns it
      * @param nickname
-     * @param filename
-     * @param view
-     * @return return the user parsed from json with the given view
+     * @param store
+     * @return return the user parsed from json with the view of the store
      * @throws NoSuchElementException
      */
-    private User loadUserInfo(String nickname, String filename, Class view) throws NoSuchElementException {
+    private User loadUserInfo(String nickname, UserStore store) throws NoSuchElementException {
         try {
-            return JSONMapper.findAndGet(filename, nickname, view);
+            return store.get(nickname);
         } catch (IOException e) {
             //e.printStackTrace();
             throw new NoSuchElementException(
@@ -353,23 +436,17 @@ public class UserStorage {
     }
 
     /**
-     * Thread-safe appends an user to all storage files,
-     * doesn't check if the user exists already
+     * Thread-safe appends the users to all storage files,
+     * doesn't check if the users exist already
      */
-    private boolean append(User user) {
+    private boolean append(List<User> users) {
         this.writeLock.lock();
         try {
             CompletableFuture<Void> registrationAppend = CompletableFuture.runAsync(
-                    new JSONUserAppender(this.registrationPath,
-                            user,
-                            UserViews.Registration.class
-                    )
+                    appendTask(this.registrationStore, users)
             );
             CompletableFuture<Void> onlineAppend = CompletableFuture.runAsync(
-                    new JSONUserAppender(this.onlinePath,
-                            user,
-                            UserViews.Online.class
-                    )
+                    appendTask(this.onlineStore, users)
             );
             try {
                 // Waits for both tasks to complete
@@ -391,11 +468,7 @@ public class UserStorage {
     private void safeUpdate(User user) {
         this.writeLock.lock();
         try {
-            JSONMapper.copyAndUpdate(
-                    this.onlinePath,
-                    user,
-                    UserViews.Online.class
-            );
+            this.onlineStore.update(Collections.singletonList(user));
         } catch (IOException e) {
             // It has some data lost
             Config.getInstance().debugLogger(e, "[USER STORAGE]");
@@ -403,4 +476,84 @@ public class UserStorage {
             this.writeLock.unlock();
         }
     }
+
+    /**
+     * Safely updates the score of an user in db.
+     * @param user
+     */
+    private void safeUpdateScore(User user) {
+        this.writeLock.lock();
+        try {
+            this.onlineStore.updateScore(user);
+        } catch (IOException e) {
+            // It has some data lost
+            Config.getInstance().debugLogger(e, "[USER STORAGE]");
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending changes and closes the storage files.
+     */
+    private void close() {
+        // The registrations being written complete before the stores are closed.
+        this.registrationCommitter.close();
+        if (this.writeBehind != null) {
+            this.writeBehind.close();
+        }
+        this.writeLock.lock();
+        try {
+            this.onlineStore.close();
+            this.registrationStore.close();
+        } catch (IOException e) {
+            Config.getInstance().debugLogger(e, "[USER STORAGE]");
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return a task appending the users to the store.
+     */
+    private static Runnable appendTask(UserStore store, List<User> users) {
+        return () -> {
+            try {
+                store.appendAll(users);
+            } catch (IOException e) {
+                throw new RuntimeException("Appending " + users.size() + " users error", e);
+            }
+        };
+    }
+
+    private void registerMetrics() {
+        Metrics metrics = Metrics.getInstance();
+        metrics.register("storage.bytesUpdated", this.onlineStore::getBytesUpdated);
+        metrics.register("storage.bytesWritten", this.onlineStore::getBytesWritten);
+        // The bytes written to disk for every 100 bytes of user records updated.
+        metrics.register("storage.writeAmplification", () -> {
+            long updated = this.onlineStore.getBytesUpdated();
+            return updated > 0 ? this.onlineStore.getBytesWritten() * 100 / updated : 0;
+        });
+        if (this.writeBehind != null) {
+            WriteBehindFlusher flusher = this.writeBehind;
+            metrics.register("storage.flush.dirty", flusher::getDirtyCount);
+            metrics.register("storage.flush.count", flusher::getFlushes);
+            metrics.register("storage.flush.users", flusher::getFlushedUsers);
+            metrics.register("storage.flush.failures", flusher::getFailures);
+            metrics.register("storage.flush.lastBatch", flusher::getLastBatch);
+            metrics.register("storage.flush.lastMillis", flusher::getLastFlushMillis);
+            metrics.register("storage.flush.maxMillis", flusher::getMaxFlushMillis);
+        }
+        if (this.onlineStore instanceof LogUserStore) {
+            LogUserStore log = (LogUserStore) this.onlineStore;
+            metrics.register("storage.log.liveBytes", log::getLiveBytes);
+            metrics.register("storage.log.bytes", log::getLogBytes);
+            metrics.register("storage.log.compactions", log::getCompactions);
+        } else if (this.onlineStore instanceof MappedUserStore) {
+            MappedUserStore mapped = (MappedUserStore) this.onlineStore;
+            metrics.register("storage.mapped.users", mapped::size);
+            metrics.register("storage.mapped.flushes", mapped::getFlushes);
+        }
+    }
 }
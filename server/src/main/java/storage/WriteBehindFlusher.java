@@ -0,0 +1,207 @@
+package storage;
+
+import configurations.Config;
+import storage.iotasks.UserStore;
+import storage.models.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Implements Policy.PERIODIC: the modified users are marked dirty and written later, all
+ * together with a single update of the store (i.e. one pass of the file), every
+ * -storageFlushInterval ms or as soon as -storageFlushBatch users are dirty.
+ * A change is written at most after an interval plus the duration of a flush.
+ * The dirty users must be read from here before the store, holding the read lock of the storage:
+ * a flush takes them and writes them holding the write lock, so a reader never misses a change.
+ */
+class WriteBehindFlusher {
+
+    /** The store written. */
+    private final UserStore store;
+    /** The write lock of the storage. */
+    private final Lock writeLock;
+    /** The number of dirty users which triggers a flush. */
+    private final int batchSize;
+    /** The users modified and not written yet by nickname. */
+    private final Map<String, User> dirtyUsers = new ConcurrentHashMap<>();
+    /** Runs the flushes. */
+    private final ScheduledThreadPoolExecutor flusher;
+    /** Set when a flush has been requested because of the batch size and not started yet. */
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    /** The number of flushes which have written some users. */
+    private final AtomicLong flushes = new AtomicLong();
+    /** The number of users written. */
+    private final AtomicLong flushedUsers = new AtomicLong();
+    /** The number of flushes failed: their users are written by the next one. */
+    private final AtomicLong failures = new AtomicLong();
+    /** The number of users written by the last flush. */
+    private volatile long lastBatch;
+    /** The duration of the last flush in ms. */
+    private volatile long lastFlushMillis;
+    /** The longest flush in ms. */
+    private final AtomicLong maxFlushMillis = new AtomicLong();
+
+    /**
+     * @param store
+     * @param writeLock the write lock of the storage, held while writing the store.
+     * @param intervalMillis the maximum time between two flushes.
+     * @param batchSize the number of dirty users which triggers a flush.
+     */
+    WriteBehindFlusher(UserStore store, Lock writeLock, long intervalMillis, int batchSize) {
+        this.store = store;
+        this.writeLock = writeLock;
+        this.batchSize = Math.max(1, batchSize);
+        this.flusher = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "storage-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush,
+                Math.max(1, intervalMillis), Math.max(1, intervalMillis), TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Marks an user as modified, replacing its previous changes not written yet.
+     * If another copy of the user is dirty (ex. loaded by a concurrent addFriend),
+     * a new user merging the two copies is marked instead, see merge.
+     * @param user
+     */
+    void markDirty(User user) {
+        this.dirtyUsers.merge(user.getNick(), user, (dirty, updated) ->
+                dirty != updated ? merge(dirty, updated) : updated
+        );
+        if (this.dirtyUsers.size() >= this.batchSize && this.flushRequested.compareAndSet(false, true)) {
+            this.flusher.execute(this::flush);
+        }
+    }
+
+    /**
+     * Must be called holding the read lock of the storage.
+     * @param nickname
+     * @return the user modified and not written yet, null if none.
+     */
+    User getDirty(String nickname) {
+        return this.dirtyUsers.get(nickname);
+    }
+
+    /**
+     * Writes all the dirty users with a single update of the store.
+     * If the update fails they are kept dirty, unless changed again meanwhile.
+     */
+    void flush() {
+        this.flushRequested.set(false);
+        if (this.dirtyUsers.isEmpty()) return;
+        long start = System.nanoTime();
+        Map<String, User> taken = new HashMap<>();
+        List<User> batch = new ArrayList<>();
+        this.writeLock.lock();
+        try {
+            for (Map.Entry<String, User> dirty : this.dirtyUsers.entrySet()) {
+                if (this.dirtyUsers.remove(dirty.getKey(), dirty.getValue())) {
+                    taken.put(dirty.getKey(), dirty.getValue());
+                    batch.add(snapshot(dirty.getValue()));
+                }
+            }
+            if (batch.isEmpty()) return;
+            this.store.update(batch);
+        } catch (IOException | RuntimeException e) {
+            this.failures.incrementAndGet();
+            taken.forEach(this.dirtyUsers::putIfAbsent);
+            Config.getInstance().debugLogger(e, "[STORAGE FLUSH]");
+            return;
+        } finally {
+            this.writeLock.unlock();
+        }
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        this.flushes.incrementAndGet();
+        this.flushedUsers.addAndGet(batch.size());
+        this.lastBatch = batch.size();
+        this.lastFlushMillis = duration;
+        this.maxFlushMillis.accumulateAndGet(duration, Math::max);
+    }
+
+    /**
+     * Stops the periodic flushes and writes the dirty users.
+     */
+    void close() {
+        this.flusher.shutdownNow();
+        try {
+            this.flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.flush();
+    }
+
+    int getDirtyCount() {
+        return this.dirtyUsers.size();
+    }
+
+    long getFlushes() {
+        return this.flushes.get();
+    }
+
+    long getFlushedUsers() {
+        return this.flushedUsers.get();
+    }
+
+    long getFailures() {
+        return this.failures.get();
+    }
+
+    long getLastBatch() {
+        return this.lastBatch;
+    }
+
+    long getLastFlushMillis() {
+        return this.lastFlushMillis;
+    }
+
+    long getMaxFlushMillis() {
+        return this.maxFlushMillis.get();
+    }
+
+    /**
+     * Merges two copies of the same user without modifying them, the callers still own them.
+     * The friends are the union of the friends of both copies. The scores are only
+     * updated on the online copy, so the score is the one of the updated copy if it
+     * changed its score, otherwise the one of the dirty copy if it did.
+     * @param dirty the copy marked before.
+     * @param updated the copy being marked.
+     * @return a new user with the changes of both copies.
+     * @throws ConcurrentModificationException if a friend is added meanwhile.
+     */
+    private static User merge(User dirty, User updated) throws ConcurrentModificationException {
+        Set<String> friends = new HashSet<>(dirty.getFriends());
+        friends.addAll(updated.getFriends());
+        User merged = new User(updated.getNick(), updated.getScore(), friends);
+        if (updated.hasScoreBeenModified()) {
+            merged.setScore(updated.getScore());
+        } else if (dirty.hasScoreBeenModified()) {
+            merged.setScore(dirty.getScore());
+        }
+        return merged;
+    }
+
+    /**
+     * @return a copy of the user: the online users keep changing while they are written.
+     * @throws ConcurrentModificationException if a friend is added meanwhile, the flush is retried.
+     */
+    private static User snapshot(User user) throws ConcurrentModificationException {
+        return new User(user.getNick(), user.getScore(), new HashSet<>(user.getFriends()));
+    }
+}
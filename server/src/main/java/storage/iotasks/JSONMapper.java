@@ -7,10 +7,12 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import storage.models.User;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -54,6 +56,20 @@ public class JSONMapper {
                 .writeValueAsString(user);
     }
 
+    /**
+     * Serializes an user to a compact (not indented) JSON record accordingly to a specified view.
+     * @param user
+     * @param view
+     * @return the user as UTF-8 JSON bytes.
+     * @throws JsonProcessingException
+     */
+    static byte[] serializeRecord(final User user, final Class view) throws JsonProcessingException {
+        return objectMapper
+                .writerWithView(view)
+                .without(SerializationFeature.INDENT_OUTPUT)
+                .writeValueAsBytes(user);
+    }
+
     /**
      * Serializes an user to JSON accordingly to a specified view.
      * @param user
@@ -177,6 +193,32 @@ public class JSONMapper {
         }
     }
 
+    /**
+     * Retrieves all the users of a JSONArray file.
+     * @param filename
+     * @param view
+     * @return the users in the order of the file, empty if the file does not exist.
+     */
+    public static List<User> getAll(final String filename,
+                                    final Class view
+    ) throws IOException {
+        List<User> users = new ArrayList<>();
+        if (!Files.exists(Paths.get(filename))) return users;
+        JsonFactory jsonFactory = JSONMapper.objectMapper.getFactory();
+        try (InputStream inputStream = Files.newInputStream(Paths.get(filename));
+             JsonParser parser = jsonFactory.createParser(inputStream)
+        ) {
+            // Check the first token
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IllegalStateException("Expected content to be an array");
+            }
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                users.add(JSONMapper.deserialize(parser, view));
+            }
+            return users;
+        }
+    }
+
     /**
      * Makes a copy of a file and if an user is found it replaces it.
      * (Actually it ignores the file instance and writes the new one at last)
@@ -206,24 +248,45 @@ public class JSONMapper {
     public static boolean copyAndUpdate(final String filename,
                                         final List<User> users,
                                         final Class view
+    ) throws IOException {
+        return copyAndUpdate(filename, users, view, null);
+    }
+
+    /**
+     * The same function as above, it also replaces the index of the file with the
+     * positions of the records written, so that the new file is not scanned again.
+     * The records are written as by JSONUserAppender.
+     * @param filename
+     * @param users
+     * @param view
+     * @param index the index of the file, null if none.
+     * @throws IOException
+     */
+    static boolean copyAndUpdate(final String filename,
+                                 final List<User> users,
+                                 final Class view,
+                                 final JSONUserIndex index
     ) throws IOException {
         String tempFilename = stripExtension(filename) + "_temp" + ".json";
         Path tempPath = Paths.get(tempFilename);
         Files.deleteIfExists(tempPath);
         Files.createFile(tempPath);
         JsonFactory jsonFactory = JSONMapper.objectMapper.getFactory();
+        List<String> nicks = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
         // Opens the file and get a parser to traverse it
         try (InputStream inputStream = Files.newInputStream(Paths.get(filename));
              JsonParser parser = jsonFactory.createParser(inputStream);
-             OutputStream outputStream = Files.newOutputStream(tempPath);
-             JsonGenerator generator = jsonFactory.createGenerator(outputStream)
+             OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tempPath))
         ) {
             // Check the first token.
             if (parser.nextToken() != JsonToken.START_ARRAY) {
                 throw new IllegalStateException("Expected content to be an array");
             }
             // Writes the Array opening token.
-            generator.writeStartArray();
+            outputStream.write('[');
+            long position = 1;
             // Iterate over the tokens until the end of the array
             while (parser.nextToken() != JsonToken.END_ARRAY) {
                 // Get an user using Jackson data-binding
@@ -231,7 +294,7 @@ public class JSONMapper {
                 // Do not copy the old user instance into the new file
                 if (!users.contains(parsedUser)) {
                     // Immediately copy only those that are not updated
-                    JSONMapper.serializeToFile(parsedUser, view, generator);
+                    position = writeRecord(parsedUser, view, outputStream, position, nicks, offsets, lengths);
                 } else {
                     // Merges the two objects
                     User update = users.get(users.indexOf(parsedUser));
@@ -240,18 +303,53 @@ public class JSONMapper {
             }
             // Writes the merged user instances
             for (User user : users) {
-                JSONMapper.serializeToFile(user, view, generator);
+                position = writeRecord(user, view, outputStream, position, nicks, offsets, lengths);
             }
             // Writes closing Array token
-            generator.writeEndArray();
+            outputStream.write(']');
         }
         // The above resources are closed when exiting the try-with.
         File storage = new File(filename);
         File current = new File(tempFilename);
-        return current.renameTo(storage);
+        boolean renamed = current.renameTo(storage);
+        if (renamed && index != null) {
+            long[] recordOffsets = new long[offsets.size()];
+            int[] recordLengths = new int[lengths.size()];
+            for (int i = 0; i < recordOffsets.length; ++i) {
+                recordOffsets[i] = offsets.get(i);
+                recordLengths[i] = lengths.get(i);
+            }
+            index.replace(nicks, recordOffsets, recordLengths);
+        }
+        return renamed;
+    }
+
+    /**
+     * Writes an user record after the previous ones of a JSON array and records its position.
+     * @param position the number of bytes written before.
+     * @return the number of bytes written after the record.
+     */
+    private static long writeRecord(final User user,
+                                    final Class view,
+                                    final OutputStream outputStream,
+                                    long position,
+                                    final List<String> nicks,
+                                    final List<Long> offsets,
+                                    final List<Integer> lengths
+    ) throws IOException {
+        byte[] record = JSONMapper.serialize(user, view).getBytes(StandardCharsets.UTF_8);
+        if (!nicks.isEmpty()) {
+            outputStream.write(',');
+            position++;
+        }
+        nicks.add(user.getNick());
+        offsets.add(position);
+        lengths.add(record.length);
+        outputStream.write(record);
+        return position + record.length;
     }
 
-    private static String stripExtension(final String s) {
+    static String stripExtension(final String s) {
         return s != null && s.lastIndexOf(".") > 0
                 ? s.substring(0, s.lastIndexOf("."))
                 : s;
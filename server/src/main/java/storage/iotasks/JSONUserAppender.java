@@ -6,44 +6,56 @@ import storage.models.User;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
- * Appends an user to the specified json file according to the given view.
+ * Appends an user (or a batch of users, with a single write) to the specified json file
+ * according to the given view. The users are on disk when it returns.
  * It implements Runnable so it can synchronously append info to more than one file.
+ * Once run, the positions of the records appended are available to update the index of the file.
  */
 public class JSONUserAppender implements Runnable {
 
     private Path filepath;
-    private User user;
+    private List<User> users;
     private Class view;
+    /** The positions in bytes of the records appended, null if not appended yet. */
+    private long[] offsets;
+    /** The lengths in bytes of the records appended. */
+    private int[] lengths;
 
     public JSONUserAppender(String filename, User user, Class view) {
+        this(filename, Collections.singletonList(user), view);
+    }
+
+    public JSONUserAppender(String filename, List<User> users, Class view) {
         this.filepath = Paths.get(filename);
-        this.user = user;
+        this.users = users;
         this.view = view;
     }
 
     @Override
     public void run() {
-        String serializedUser;
-        try {
-            serializedUser = JSONMapper.serialize(user, view);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Unable to serialize: " + this.user);
+        byte[][] serializedUsers = new byte[this.users.size()][];
+        for (int i = 0; i < serializedUsers.length; ++i) {
+            try {
+                serializedUsers[i] = JSONMapper.serialize(this.users.get(i), view).getBytes(StandardCharsets.UTF_8);
+            } catch (JsonProcessingException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Unable to serialize: " + this.users.get(i));
+            }
         }
-        StringBuilder builder = new StringBuilder();
         Set<StandardOpenOption> options = new HashSet<>();
         options.add(StandardOpenOption.WRITE);
         if (!Files.exists(filepath)) {
-            // Appends also opening parenthesis
-            builder.append("[");
             // Sets option to create
             options.add(StandardOpenOption.CREATE);
         }
@@ -51,16 +63,53 @@ public class JSONUserAppender implements Runnable {
                 filepath,
                 options
         )) {
-            if (!options.contains(StandardOpenOption.CREATE)) {
-                writeChannel.position(writeChannel.size() - 1);
-                builder.append(",");
+            long position = 0;
+            boolean first = options.contains(StandardOpenOption.CREATE);
+            if (!first) {
+                // Overwrites the closing parenthesis
+                position = writeChannel.size() - 1;
+            }
+            int size = 1;
+            for (byte[] serializedUser : serializedUsers) {
+                size += 1 + serializedUser.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            long[] recordOffsets = new long[serializedUsers.length];
+            int[] recordLengths = new int[serializedUsers.length];
+            for (int i = 0; i < serializedUsers.length; ++i) {
+                // The opening parenthesis of a new file, then the commas.
+                buffer.put((byte) (first && i == 0 ? '[' : ','));
+                recordOffsets[i] = position + buffer.position();
+                recordLengths[i] = serializedUsers[i].length;
+                buffer.put(serializedUsers[i]);
             }
-            builder.append(serializedUser);
-            builder.append("]");
-            writeChannel.write(ByteBuffer.wrap(builder.toString().getBytes()));
+            buffer.put((byte) ']');
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                writeChannel.write(buffer, position + buffer.position());
+            }
+            writeChannel.force(false);
+            this.offsets = recordOffsets;
+            this.lengths = recordLengths;
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException("File appending " + this.filepath + " error");
         }
     }
+
+    /**
+     * @param i
+     * @return the position in bytes of the i-th record appended, -1 if not appended yet.
+     */
+    public long getOffset(int i) {
+        return this.offsets != null ? this.offsets[i] : -1;
+    }
+
+    /**
+     * @param i
+     * @return the length in bytes of the i-th record appended.
+     */
+    public int getLength(int i) {
+        return this.lengths != null ? this.lengths[i] : 0;
+    }
 }
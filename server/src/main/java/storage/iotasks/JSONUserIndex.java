@@ -0,0 +1,338 @@
+package storage.iotasks;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import storage.models.User;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent index of a JSON array file of users: it maps every nickname to the
+ * position (offset and length in bytes) of its record, so that an user is read with
+ * a single positioned read instead of parsing the whole file.
+ * The index is stored next to the JSON file (same name, .idx extension):
+ * [magic: 4 bytes][JSON file length: 8 bytes][JSON file last modified time: 8 bytes]
+ * followed by the records [nickname: UTF][offset: 8 bytes][length: 4 bytes], a later record
+ * of a nickname replaces the previous ones. Appends to the JSON file add a record,
+ * rewrites of the JSON file must be followed by a replace (or a rebuild).
+ * The index is rebuilt when it is missing or stale (i.e. the JSON file length or its
+ * modification time differ from those in the header), and also when a record turns out
+ * not to be the expected user: the JSON file was changed without updating the index.
+ */
+public class JSONUserIndex {
+
+    private static final int MAGIC = 0x57514958;
+    private static final int HEADER_LENGTH = 4 + 8 + 8;
+
+    /**
+     * The position of a record in the JSON file.
+     */
+    private static final class Entry {
+        private final long offset;
+        private final int length;
+
+        private Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path dataPath;
+    private final Path indexPath;
+    /** The view used to read the records. */
+    private final Class view;
+    /** The records by nickname, replaced as a whole by a rebuild. */
+    private volatile Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /** The length of the JSON file indexed. */
+    private volatile long dataLength;
+    /** The modification time of the JSON file indexed. */
+    private volatile long dataModified;
+    /** The number of times the index has been rebuilt. */
+    private volatile long rebuilds;
+
+    /**
+     * @param filename the JSON file to be indexed.
+     * @param view the view of the users in the file.
+     */
+    public JSONUserIndex(String filename, Class view) {
+        this.dataPath = Paths.get(filename);
+        this.indexPath = Paths.get(JSONMapper.stripExtension(filename) + ".idx");
+        this.view = view;
+    }
+
+    /**
+     * Loads the index from its file, rebuilding it if it is missing or stale.
+     * @throws IOException
+     */
+    public synchronized void load() throws IOException {
+        Map<String, Entry> loaded = new ConcurrentHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.indexPath)))) {
+            if (in.readInt() == MAGIC) {
+                this.dataLength = in.readLong();
+                this.dataModified = in.readLong();
+                if (this.isFresh()) {
+                    while (true) {
+                        String nick;
+                        try {
+                            nick = in.readUTF();
+                        } catch (EOFException e) {
+                            this.entries = loaded;
+                            return;
+                        }
+                        loaded.put(nick, new Entry(in.readLong(), in.readInt()));
+                    }
+                }
+            }
+        } catch (NoSuchFileException | EOFException e) {
+            // Missing or truncated: rebuilt.
+        }
+        this.rebuild();
+    }
+
+    /**
+     * Scans the JSON file and writes the index from scratch.
+     * @throws IOException
+     */
+    public synchronized void rebuild() throws IOException {
+        this.rebuilds++;
+        Map<String, Entry> rebuilt = new ConcurrentHashMap<>();
+        long length = 0;
+        long modified = 0;
+        if (Files.exists(this.dataPath)) {
+            length = Files.size(this.dataPath);
+            modified = Files.getLastModifiedTime(this.dataPath).toMillis();
+            JsonFactory jsonFactory = JSONMapper.objectMapper.getFactory();
+            try (InputStream inputStream = Files.newInputStream(this.dataPath);
+                 JsonParser parser = jsonFactory.createParser(inputStream)
+            ) {
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IllegalStateException("Expected content to be an array");
+                }
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    long offset = parser.getTokenLocation().getByteOffset();
+                    User user = JSONMapper.deserialize(parser, this.view);
+                    long end = parser.getCurrentLocation().getByteOffset();
+                    rebuilt.put(user.getNick(), new Entry(offset, (int) (end - offset)));
+                }
+            }
+        }
+        this.write(rebuilt, length, modified);
+    }
+
+    /**
+     * Writes the index from scratch with the positions of the records of the rewritten
+     * JSON file, recorded while rewriting it, so that it is not scanned again.
+     * @param nicks
+     * @param offsets
+     * @param lengths
+     * @throws IOException
+     */
+    synchronized void replace(List<String> nicks, long[] offsets, int[] lengths) throws IOException {
+        Map<String, Entry> replaced = new ConcurrentHashMap<>();
+        for (int i = 0; i < nicks.size(); ++i) {
+            replaced.put(nicks.get(i), new Entry(offsets[i], lengths[i]));
+        }
+        this.write(replaced,
+                Files.size(this.dataPath),
+                Files.getLastModifiedTime(this.dataPath).toMillis()
+        );
+    }
+
+    /**
+     * Replaces the index file at once and then the index in memory.
+     * @param entries
+     * @param length the length of the JSON file indexed.
+     * @param modified the modification time of the JSON file indexed.
+     * @throws IOException
+     */
+    private void write(Map<String, Entry> entries, long length, long modified) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LENGTH + entries.size() * 32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeLong(length);
+            out.writeLong(modified);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+        }
+        Path tempPath = Paths.get(this.indexPath + "_temp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempPath))) {
+            bytes.writeTo(out);
+        }
+        Files.move(tempPath, this.indexPath, StandardCopyOption.REPLACE_EXISTING);
+        this.entries = entries;
+        this.dataLength = length;
+        this.dataModified = modified;
+    }
+
+    /**
+     * Records the position of an user just appended to the JSON file.
+     * If the index did not cover the whole file before the append it is rebuilt instead.
+     * @param nick
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    public void put(String nick, long offset, int length) throws IOException {
+        this.putAll(Collections.singletonList(nick), new long[]{offset}, new int[]{length});
+    }
+
+    /**
+     * Records the positions of the users just appended to the JSON file with a single write.
+     * If the index did not cover the whole file before the append it is rebuilt instead.
+     * @param nicks
+     * @param offsets
+     * @param lengths
+     * @throws IOException
+     */
+    public synchronized void putAll(List<String> nicks, long[] offsets, int[] lengths) throws IOException {
+        if (nicks.isEmpty()) return;
+        // The records start where the indexed file ended (after the '[' of a new file),
+        // one after the other.
+        boolean covered = offsets[0] == this.dataLength || (offsets[0] == 1 && this.dataLength == 0);
+        for (int i = 1; i < nicks.size() && covered; ++i) {
+            covered = offsets[i] == offsets[i - 1] + lengths[i - 1] + 1;
+        }
+        if (!covered || !Files.exists(this.indexPath)) {
+            this.rebuild();
+            return;
+        }
+        long newLength = Files.size(this.dataPath);
+        long newModified = Files.getLastModifiedTime(this.dataPath).toMillis();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * nicks.size());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (int i = 0; i < nicks.size(); ++i) {
+                Entry entry = new Entry(offsets[i], lengths[i]);
+                this.entries.put(nicks.get(i), entry);
+                writeRecord(out, nicks.get(i), entry);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(this.indexPath, StandardOpenOption.WRITE)) {
+            // The records first, then the header which validates them.
+            channel.write(ByteBuffer.wrap(bytes.toByteArray()), channel.size());
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH - 4);
+            header.putLong(newLength).putLong(newModified).flip();
+            channel.write(header, 4);
+        }
+        this.dataLength = newLength;
+        this.dataModified = newModified;
+    }
+
+    /**
+     * Reads an user with a single positioned read.
+     * @param nick
+     * @return the user, read with the view of the index.
+     * @throws IOException
+     * @throws NoSuchElementException if the user is not in the file.
+     */
+    public User get(String nick) throws IOException, NoSuchElementException {
+        User user = this.read(nick);
+        if (user == null) {
+            synchronized (this) {
+                user = this.read(nick);
+                if (user == null && !this.isFresh()) {
+                    // The file has been changed without updating the index.
+                    this.rebuild();
+                    user = this.read(nick);
+                }
+            }
+        }
+        if (user == null) {
+            throw new NoSuchElementException("User was not in the file");
+        }
+        return user;
+    }
+
+    /**
+     * @return the number of users indexed.
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the number of times the index has been rebuilt.
+     */
+    public long getRebuilds() {
+        return this.rebuilds;
+    }
+
+    /**
+     * @return the user at the position recorded for nick, null if there is none
+     * or the record is not the expected user.
+     */
+    private User read(String nick) throws IOException {
+        Entry entry = this.entries.get(nick);
+        if (entry == null) return null;
+        ByteBuffer record = ByteBuffer.allocate(entry.length);
+        try (FileChannel channel = FileChannel.open(this.dataPath, StandardOpenOption.READ)) {
+            while (record.hasRemaining()) {
+                if (channel.read(record, entry.offset + record.position()) < 0) {
+                    // Beyond the end of the file.
+                    this.invalidate();
+                    return null;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            this.invalidate();
+            return null;
+        }
+        try {
+            User user = JSONMapper.deserialize(new String(record.array(), StandardCharsets.UTF_8), this.view);
+            if (nick.equals(user.getNick())) {
+                return user;
+            }
+        } catch (IOException e) {
+            // Not a record: checked below.
+        }
+        this.invalidate();
+        return null;
+    }
+
+    /**
+     * Marks the index as stale: it is rebuilt by the next lookup of a missing user.
+     */
+    private void invalidate() {
+        this.dataLength = -1;
+    }
+
+    /**
+     * @return true if the JSON file has not changed since it was indexed.
+     */
+    private boolean isFresh() throws IOException {
+        if (!Files.exists(this.dataPath)) {
+            return this.dataLength == 0;
+        }
+        return Files.size(this.dataPath) == this.dataLength
+                && Files.getLastModifiedTime(this.dataPath).toMillis() == this.dataModified;
+    }
+
+    private static void writeRecord(DataOutputStream out, String nick, Entry entry) throws IOException {
+        out.writeUTF(nick);
+        out.writeLong(entry.offset);
+        out.writeInt(entry.length);
+    }
+}
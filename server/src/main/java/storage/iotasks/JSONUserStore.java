@@ -0,0 +1,116 @@
+package storage.iotasks;
+
+import configurations.Config;
+import storage.models.User;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores the users in a JSON array file indexed by nickname (@link JSONUserIndex).
+ * The new users are appended to the file, while an update rewrites the whole file
+ * (@link JSONMapper.copyAndUpdate): its cost grows with the number of users.
+ */
+public class JSONUserStore implements UserStore {
+
+    private final String filename;
+    private final Class view;
+    private final JSONUserIndex index;
+    /** The bytes of the user records written. */
+    private final AtomicLong bytesUpdated = new AtomicLong();
+    /** The bytes written to the file. */
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Loads the index of the file, rebuilding it if missing or stale.
+     * @param filename
+     * @param view
+     * @throws IOException
+     */
+    public JSONUserStore(String filename, Class view) throws IOException {
+        this.filename = filename;
+        this.view = view;
+        this.index = new JSONUserIndex(filename, view);
+        this.index.load();
+    }
+
+    @Override
+    public User get(String nick) throws IOException, NoSuchElementException {
+        return this.index.get(nick);
+    }
+
+    /**
+     * Appends the user to the file and to its index.
+     * If the index can't be updated it is rebuilt by the next lookup.
+     */
+    @Override
+    public void append(User user) throws IOException {
+        this.appendAll(Collections.singletonList(user));
+    }
+
+    /**
+     * Appends the users to the file and then to its index, with a single write each.
+     * If the index can't be updated it is rebuilt by the next lookup.
+     */
+    @Override
+    public void appendAll(List<User> users) throws IOException {
+        if (users.isEmpty()) return;
+        JSONUserAppender appender = new JSONUserAppender(this.filename, users, this.view);
+        try {
+            appender.run();
+        } catch (RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        // The closing parenthesis.
+        this.bytesWritten.incrementAndGet();
+        List<String> nicks = new ArrayList<>(users.size());
+        long[] offsets = new long[users.size()];
+        int[] lengths = new int[users.size()];
+        for (int i = 0; i < users.size(); ++i) {
+            nicks.add(users.get(i).getNick());
+            offsets[i] = appender.getOffset(i);
+            lengths[i] = appender.getLength(i);
+            this.bytesUpdated.addAndGet(lengths[i]);
+            // The comma before the record.
+            this.bytesWritten.addAndGet(lengths[i] + 1);
+        }
+        try {
+            this.index.putAll(nicks, offsets, lengths);
+        } catch (IOException e) {
+            // The users are stored anyway: the index is rebuilt by the next lookup.
+            Config.getInstance().debugLogger(e, "[USER INDEX]");
+        }
+    }
+
+    /**
+     * Rewrites the whole file, replacing its index with the positions of the records written.
+     */
+    @Override
+    public void update(List<User> users) throws IOException {
+        JSONMapper.copyAndUpdate(this.filename, users, this.view, this.index);
+        for (User user : users) {
+            this.bytesUpdated.addAndGet(JSONMapper.serialize(user, this.view).getBytes(StandardCharsets.UTF_8).length);
+        }
+        this.bytesWritten.addAndGet(Files.size(Paths.get(this.filename)));
+    }
+
+    @Override
+    public long getBytesUpdated() {
+        return this.bytesUpdated.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.bytesWritten.get();
+    }
+
+    @Override
+    public void close() { }
+}
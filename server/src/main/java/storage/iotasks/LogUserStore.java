@@ -0,0 +1,454 @@
+package storage.iotasks;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import configurations.Config;
+import storage.models.User;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stores the users in an append-only log: an update appends the new records of the users
+ * instead of rewriting a file, and an in-memory index points to the latest record of each user.
+ * The log is split in segments next to the JSON file (<name>.<generation>.log), every record
+ * is a compact JSON object followed by a new line, a later record of an user replaces the
+ * previous ones. If there is no segment yet, the log starts with the users of the JSON file.
+ * The replaced records are garbage: a background compactor seals the active segment and copies
+ * the live records of the sealed ones into a fresh segment, when the garbage is at least half
+ * of the log. At startup the segments are replayed in order to rebuild the index; a record
+ * torn by a crash at the end of the last segment is truncated.
+ */
+public class LogUserStore implements UserStore {
+
+    private static final String EXTENSION = ".log";
+    private static final String COMPACTION_EXTENSION = ".compact";
+    /** The minimum size in bytes of the log to be compacted. */
+    static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    /**
+     * The position of a record in the log.
+     */
+    private static final class Entry {
+        private final long generation;
+        private final long offset;
+        private final int length;
+
+        private Entry(long generation, long offset, int length) {
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return the bytes taken by the record in the log, new line included.
+         */
+        private long size() {
+            return this.length + 1;
+        }
+    }
+
+    private final Path directory;
+    /** The name of the JSON file without extension, the prefix of the segments. */
+    private final String name;
+    private final Class view;
+    /** The open segments by generation, the last one is the active segment. */
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+    /** The latest record of every user. */
+    private final Map<String, Entry> index = new HashMap<>();
+    /** The generation of the segment the records are appended to. */
+    private long activeGeneration;
+    /** The size of the active segment. */
+    private long activeSize;
+    /** The bytes of the latest records. */
+    private long liveBytes;
+    /** The bytes of all the segments. */
+    private long logBytes;
+    /** Allows one compaction at a time. */
+    private final Object compactionLock = new Object();
+    /** Runs the compactions, null if disabled. */
+    private final ScheduledThreadPoolExecutor compactor;
+    private final AtomicLong bytesUpdated = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    /** The number of compactions completed. */
+    private final AtomicLong compactions = new AtomicLong();
+
+    /**
+     * Replays the log, creating it from the JSON file if missing.
+     * @param filename the JSON file of the users.
+     * @param view
+     * @param compactionIntervalMillis the time between two checks of the garbage, 0 disables the compactor.
+     * @throws IOException
+     */
+    public LogUserStore(String filename, Class view, long compactionIntervalMillis) throws IOException {
+        Path path = Paths.get(filename).toAbsolutePath();
+        this.directory = path.getParent();
+        this.name = JSONMapper.stripExtension(path.getFileName().toString());
+        this.view = view;
+        Files.createDirectories(this.directory);
+        List<Long> generations = this.listGenerations();
+        if (generations.isEmpty()) {
+            this.openSegment(1);
+            List<User> seed = JSONMapper.getAll(filename, view);
+            if (!seed.isEmpty()) {
+                this.write(seed, false);
+            }
+        } else {
+            for (int i = 0; i < generations.size(); ++i) {
+                this.replay(generations.get(i), i == generations.size() - 1);
+            }
+        }
+        if (compactionIntervalMillis > 0) {
+            this.compactor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "user-log-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    this.compactIfNeeded();
+                } catch (IOException | RuntimeException e) {
+                    Config.getInstance().debugLogger(e, "[USER LOG COMPACTION]");
+                }
+            }, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.compactor = null;
+        }
+    }
+
+    @Override
+    public synchronized User get(String nick) throws IOException, NoSuchElementException {
+        Entry entry = this.index.get(nick);
+        if (entry == null) {
+            throw new NoSuchElementException("User was not in the log");
+        }
+        return this.read(this.segments.get(entry.generation), entry);
+    }
+
+    @Override
+    public synchronized void append(User user) throws IOException {
+        List<User> users = new ArrayList<>(1);
+        users.add(user);
+        this.write(users, true);
+    }
+
+    /**
+     * Appends the records of the users with a single write and forces it to disk.
+     */
+    @Override
+    public synchronized void appendAll(List<User> users) throws IOException {
+        if (users.isEmpty()) return;
+        this.write(users, true);
+        this.segments.get(this.activeGeneration).force(false);
+    }
+
+    /**
+     * Appends the new records of the users with a single write.
+     */
+    @Override
+    public synchronized void update(List<User> users) throws IOException {
+        for (User user : users) {
+            Entry entry = this.index.get(user.getNick());
+            if (entry != null) {
+                // Merges the two objects
+                user.addFriends(this.read(this.segments.get(entry.generation), entry).getFriends());
+            }
+        }
+        this.write(users, true);
+    }
+
+    /**
+     * Compacts the log if the garbage is at least half of it.
+     * @return true if the log has been compacted.
+     * @throws IOException
+     */
+    boolean compactIfNeeded() throws IOException {
+        synchronized (this) {
+            if (this.logBytes < MIN_COMPACTION_BYTES || this.liveBytes * 2 > this.logBytes) {
+                return false;
+            }
+        }
+        this.compact();
+        return true;
+    }
+
+    /**
+     * Seals the active segment and copies the live records of the sealed segments
+     * into a fresh one, which replaces them. The records are copied without blocking
+     * the readers and writers: those updated meanwhile are left to the active segment.
+     * @throws IOException
+     */
+    void compact() throws IOException {
+        synchronized (this.compactionLock) {
+            long sealedGeneration;
+            TreeMap<Long, FileChannel> sealed;
+            Map<String, Entry> live;
+            synchronized (this) {
+                sealedGeneration = this.activeGeneration;
+                // From now on the sealed segments are not written anymore.
+                this.openSegment(sealedGeneration + 1);
+                sealed = new TreeMap<>(this.segments.headMap(sealedGeneration, true));
+                live = new HashMap<>(this.index);
+            }
+            // The compacted segment takes the generation of the last sealed one:
+            // if the old segments are not deleted, it is still replayed after them.
+            Path compactedPath = Paths.get(this.segmentPath(sealedGeneration) + COMPACTION_EXTENSION);
+            Map<String, Entry> moved = new HashMap<>(live.size() * 2);
+            long compactedSize = 0;
+            try (FileChannel compacted = FileChannel.open(compactedPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+            )) {
+                for (Map.Entry<String, Entry> record : live.entrySet()) {
+                    Entry entry = record.getValue();
+                    ByteBuffer buffer = ByteBuffer.allocate((int) entry.size());
+                    readFully(sealed.get(entry.generation), buffer, entry.offset);
+                    buffer.flip();
+                    writeFully(compacted, buffer, compactedSize);
+                    moved.put(record.getKey(), new Entry(sealedGeneration, compactedSize, entry.length));
+                    compactedSize += entry.size();
+                }
+                compacted.force(true);
+            }
+            synchronized (this) {
+                long sealedBytes = 0;
+                for (Map.Entry<Long, FileChannel> segment : sealed.entrySet()) {
+                    sealedBytes += segment.getValue().size();
+                    segment.getValue().close();
+                    this.segments.remove(segment.getKey());
+                }
+                Files.move(compactedPath, this.segmentPath(sealedGeneration),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE
+                );
+                for (Long generation : sealed.headMap(sealedGeneration, false).keySet()) {
+                    Files.deleteIfExists(this.segmentPath(generation));
+                }
+                this.segments.put(sealedGeneration, FileChannel.open(this.segmentPath(sealedGeneration),
+                        StandardOpenOption.READ
+                ));
+                for (Map.Entry<String, Entry> record : moved.entrySet()) {
+                    // Skips the users updated during the compaction.
+                    if (this.index.get(record.getKey()) == live.get(record.getKey())) {
+                        this.index.put(record.getKey(), record.getValue());
+                    }
+                }
+                this.logBytes += compactedSize - sealedBytes;
+            }
+            this.bytesWritten.addAndGet(compactedSize);
+            this.compactions.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the bytes of the latest records of the users.
+     */
+    public synchronized long getLiveBytes() {
+        return this.liveBytes;
+    }
+
+    /**
+     * @return the bytes of all the segments of the log.
+     */
+    public synchronized long getLogBytes() {
+        return this.logBytes;
+    }
+
+    /**
+     * @return the number of compactions completed.
+     */
+    public long getCompactions() {
+        return this.compactions.get();
+    }
+
+    @Override
+    public long getBytesUpdated() {
+        return this.bytesUpdated.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.bytesWritten.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.compactor != null) {
+            this.compactor.shutdownNow();
+        }
+        synchronized (this) {
+            for (FileChannel segment : this.segments.values()) {
+                segment.close();
+            }
+            this.segments.clear();
+        }
+    }
+
+    /**
+     * Appends the records of the users to the active segment with a single write
+     * and points the index to them.
+     * @param count true to count the records as updated and written (i.e. not the initial ones).
+     */
+    private void write(List<User> users, boolean count) throws IOException {
+        List<byte[]> records = new ArrayList<>(users.size());
+        int size = 0;
+        for (User user : users) {
+            byte[] record = JSONMapper.serializeRecord(user, this.view);
+            records.add(record);
+            size += record.length + 1;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : records) {
+            buffer.put(record).put((byte) '\n');
+        }
+        buffer.flip();
+        writeFully(this.segments.get(this.activeGeneration), buffer, this.activeSize);
+        long offset = this.activeSize;
+        for (int i = 0; i < users.size(); ++i) {
+            Entry entry = new Entry(this.activeGeneration, offset, records.get(i).length);
+            this.put(users.get(i).getNick(), entry);
+            offset += entry.size();
+            if (count) {
+                this.bytesUpdated.addAndGet(entry.length);
+            }
+        }
+        this.activeSize += size;
+        this.logBytes += size;
+        if (count) {
+            this.bytesWritten.addAndGet(size);
+        }
+    }
+
+    /**
+     * Points the index to the latest record of an user.
+     */
+    private void put(String nick, Entry entry) {
+        Entry previous = this.index.put(nick, entry);
+        if (previous != null) {
+            this.liveBytes -= previous.size();
+        }
+        this.liveBytes += entry.size();
+    }
+
+    /**
+     * Rebuilds the index from a segment.
+     * @param active true if it is the last segment, which becomes the active one.
+     */
+    private void replay(long generation, boolean active) throws IOException {
+        Path path = this.segmentPath(generation);
+        long end = 0;
+        JsonFactory jsonFactory = JSONMapper.objectMapper.getFactory();
+        try (InputStream inputStream = Files.newInputStream(path);
+             JsonParser parser = jsonFactory.createParser(inputStream)
+        ) {
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                long offset = parser.getTokenLocation().getByteOffset();
+                User user = JSONMapper.deserialize(parser, this.view);
+                long recordEnd = parser.getCurrentLocation().getByteOffset();
+                Entry entry = new Entry(generation, offset, (int) (recordEnd - offset));
+                this.put(user.getNick(), entry);
+                end = offset + entry.size();
+            }
+        } catch (JsonProcessingException e) {
+            if (!active) throw e;
+            Config.getInstance().debugLogger("[USER LOG] Torn record at " + end + " of " + path + " truncated.");
+        }
+        if (active) {
+            this.openSegment(generation);
+            FileChannel segment = this.segments.get(generation);
+            if (segment.size() > end) {
+                segment.truncate(end);
+            } else if (segment.size() < end) {
+                // Only the newline of the last record is missing.
+                writeFully(segment, ByteBuffer.wrap(new byte[]{'\n'}), end - 1);
+            }
+            this.activeSize = end;
+        } else {
+            this.segments.put(generation, FileChannel.open(path, StandardOpenOption.READ));
+            end = Math.min(end, Files.size(path));
+        }
+        this.logBytes += end;
+    }
+
+    /**
+     * Opens a segment for appending and makes it the active one.
+     */
+    private void openSegment(long generation) throws IOException {
+        FileChannel segment = FileChannel.open(this.segmentPath(generation),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        );
+        FileChannel previous = this.segments.put(generation, segment);
+        if (previous != null) {
+            previous.close();
+        }
+        this.activeGeneration = generation;
+        this.activeSize = segment.size();
+    }
+
+    /**
+     * @return the generations of the existing segments in order,
+     * deleting the leftovers of an interrupted compaction.
+     */
+    private List<Long> listGenerations() throws IOException {
+        Pattern pattern = Pattern.compile(Pattern.quote(this.name) + "\\.(\\d+)" + Pattern.quote(EXTENSION)
+                + "(" + Pattern.quote(COMPACTION_EXTENSION) + ")?");
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, this.name + ".*")) {
+            for (Path file : files) {
+                Matcher matcher = pattern.matcher(file.getFileName().toString());
+                if (!matcher.matches()) continue;
+                if (matcher.group(2) != null) {
+                    Files.delete(file);
+                } else {
+                    generations.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    private Path segmentPath(long generation) {
+        return this.directory.resolve(this.name + "." + generation + EXTENSION);
+    }
+
+    private User read(FileChannel segment, Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        readFully(segment, buffer, entry.offset);
+        return JSONMapper.deserialize(new String(buffer.array(), StandardCharsets.UTF_8), this.view);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the log segment");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
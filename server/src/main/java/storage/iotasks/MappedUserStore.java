@@ -0,0 +1,485 @@
+package storage.iotasks;
+
+import configurations.Config;
+import storage.models.User;
+import storage.models.UserViews;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores the scores and the friends of the users in a memory-mapped file of fixed-size slots,
+ * so that a score change is an in-place 4 bytes write.
+ * Every user has a slot in <name>.slots: [data offset: 8 bytes][score: 4 bytes][unused: 4 bytes],
+ * the data offset (0 for the free slots) points to the variable-length record of the user
+ * in <name>.data: [length: 4 bytes][nickname: UTF][friends count: 4 bytes][friend: UTF]...
+ * The records are appended: when the friends change a new record is written and forced,
+ * only then the offset in the slot is replaced. The slots are allocated in order and found through
+ * an in-memory hash index, built scanning the slots at startup. If the slots file does not
+ * exist, it is created from the users of the JSON file.
+ * The slots file is mapped in chunks, so that it can grow beyond 2 GB. The dirty chunks
+ * are forced to disk every -mappedFlushInterval ms (after every write if 0), the records first.
+ * The kernel may still write a new slot back before its record: the slots pointing to records
+ * not written are freed at startup, losing the users stored since the last flush.
+ * An existing slot instead always points to a record on disk, the old or the new one.
+ */
+public class MappedUserStore implements UserStore {
+
+    /** The size in bytes of a slot. */
+    static final int SLOT_SIZE = 16;
+    private static final int DATA_OFFSET = 0;
+    private static final int SCORE_OFFSET = 8;
+    /** The size in bytes of a mapped chunk of the slots file, a multiple of SLOT_SIZE. */
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+    /** The header of the data file, so that no record has offset 0. */
+    private static final long DATA_MAGIC = 0x5751555345525331L;
+
+    private final FileChannel slotsChannel;
+    private final FileChannel dataChannel;
+    /** The mapped chunks of the slots file in order. */
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private final int chunkSize;
+    private final int slotsPerChunk;
+    /** The slot of every user. */
+    private final Map<String, Integer> index = new HashMap<>();
+    /** The size of the data file. */
+    private long dataSize;
+    /** The chunks written since the last flush. */
+    private final BitSet dirtyChunks = new BitSet();
+    /** True if the data file has been written since the last flush. */
+    private boolean dirtyData;
+    /** True if every write is forced to disk. */
+    private final boolean forceOnWrite;
+    /** Forces the dirty chunks to disk, null if forced on every write. */
+    private final ScheduledThreadPoolExecutor flusher;
+    /** The bytes of the records and of the scores written, without the slots. */
+    private final AtomicLong bytesUpdated = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    /** The number of flushes that forced some data to disk. */
+    private final AtomicLong flushes = new AtomicLong();
+
+    /**
+     * Opens the store, creating it from the JSON file if missing.
+     * @param filename the JSON file of the users.
+     * @param flushIntervalMillis the time between two flushes of the dirty chunks, 0 to flush every write.
+     * @throws IOException
+     */
+    public MappedUserStore(String filename, long flushIntervalMillis) throws IOException {
+        this(filename, flushIntervalMillis, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the size of a mapped chunk of the slots file, a multiple of SLOT_SIZE.
+     */
+    MappedUserStore(String filename, long flushIntervalMillis, int chunkSize) throws IOException {
+        if (chunkSize <= 0 || chunkSize % SLOT_SIZE != 0) {
+            throw new IllegalArgumentException("The chunk size must be a multiple of " + SLOT_SIZE);
+        }
+        this.chunkSize = chunkSize;
+        this.slotsPerChunk = chunkSize / SLOT_SIZE;
+        String name = JSONMapper.stripExtension(filename);
+        Path slotsPath = Paths.get(name + ".slots");
+        Path dataPath = Paths.get(name + ".data");
+        boolean exists = Files.exists(slotsPath);
+        if (!exists) {
+            // A data file without slots is useless.
+            Files.deleteIfExists(dataPath);
+        }
+        this.dataChannel = FileChannel.open(dataPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        );
+        this.slotsChannel = FileChannel.open(slotsPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        );
+        this.dataSize = this.dataChannel.size();
+        if (this.dataSize == 0) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putLong(DATA_MAGIC).flip();
+            writeFully(this.dataChannel, header, 0);
+            this.dataSize = 8;
+        }
+        long mappedChunks = (this.slotsChannel.size() + chunkSize - 1) / chunkSize;
+        for (long i = 0; i < mappedChunks; ++i) {
+            this.map();
+        }
+        this.forceOnWrite = flushIntervalMillis <= 0;
+        if (exists) {
+            this.scan();
+        } else {
+            for (User user : JSONMapper.getAll(filename, UserViews.Online.class)) {
+                this.allocate(user);
+            }
+            this.flush();
+            // The initial users are not updates.
+            this.bytesWritten.set(0);
+        }
+        if (!this.forceOnWrite) {
+            this.flusher = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "mapped-store-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.flusher.scheduleWithFixedDelay(() -> {
+                try {
+                    this.flush();
+                } catch (IOException | RuntimeException e) {
+                    Config.getInstance().debugLogger(e, "[MAPPED STORE FLUSH]");
+                }
+            }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    @Override
+    public synchronized User get(String nick) throws IOException, NoSuchElementException {
+        Integer slot = this.index.get(nick);
+        if (slot == null) {
+            throw new NoSuchElementException("User was not in the store");
+        }
+        MappedByteBuffer chunk = this.chunk(slot);
+        int position = this.position(slot);
+        Record record = this.readRecord(chunk.getLong(position + DATA_OFFSET));
+        return new User(record.nick, chunk.getInt(position + SCORE_OFFSET), record.friends);
+    }
+
+    @Override
+    public synchronized void append(User user) throws IOException {
+        long dataSize = this.dataSize;
+        this.allocate(user);
+        this.bytesUpdated.addAndGet(this.dataSize - dataSize);
+        this.afterWrite();
+    }
+
+    /**
+     * Stores the users and then forces them to disk.
+     */
+    @Override
+    public synchronized void appendAll(List<User> users) throws IOException {
+        long dataSize = this.dataSize;
+        for (User user : users) {
+            this.allocate(user);
+        }
+        this.bytesUpdated.addAndGet(this.dataSize - dataSize);
+        this.flush();
+    }
+
+    /**
+     * Writes a new record only for the users whose friends have changed,
+     * for the others only the score is written.
+     * The slots of the users are repointed to the new records once these are forced.
+     */
+    @Override
+    public synchronized void update(List<User> users) throws IOException {
+        long dataSize = this.dataSize;
+        // The slots to be repointed and their new records.
+        Map<Integer, Long> moved = new HashMap<>();
+        for (User user : users) {
+            Integer slot = this.index.get(user.getNick());
+            if (slot == null) {
+                this.allocate(user);
+            } else {
+                MappedByteBuffer chunk = this.chunk(slot);
+                int position = this.position(slot);
+                Record stored = this.readRecord(chunk.getLong(position + DATA_OFFSET));
+                // Merges the two objects
+                user.addFriends(stored.friends);
+                if (!stored.friends.equals(user.getFriends())) {
+                    moved.put(slot, this.appendRecord(user));
+                }
+                if (this.writeScore(slot, user.getScore())) {
+                    this.bytesUpdated.addAndGet(4);
+                }
+            }
+        }
+        if (!moved.isEmpty()) {
+            // Otherwise the kernel may write the slot back before the record:
+            // after a crash a slot of an user stored long ago would point past the data.
+            this.dataChannel.force(false);
+            this.dirtyData = false;
+            for (Map.Entry<Integer, Long> entry : moved.entrySet()) {
+                int slot = entry.getKey();
+                this.chunk(slot).putLong(this.position(slot) + DATA_OFFSET, entry.getValue());
+                this.dirtyChunks.set(slot / this.slotsPerChunk);
+                this.bytesWritten.addAndGet(8);
+            }
+        }
+        this.bytesUpdated.addAndGet(this.dataSize - dataSize);
+        this.afterWrite();
+    }
+
+    /**
+     * Writes the score in place, 4 bytes.
+     */
+    @Override
+    public synchronized void updateScore(User user) throws IOException {
+        Integer slot = this.index.get(user.getNick());
+        if (slot == null) {
+            this.update(Collections.singletonList(user));
+            return;
+        }
+        if (this.writeScore(slot, user.getScore())) {
+            this.bytesUpdated.addAndGet(4);
+        }
+        this.afterWrite();
+    }
+
+    /**
+     * Forces the records and then the dirty chunks to disk.
+     * It holds the monitor of the store, so that no slot pointing to a record
+     * written after the force of the data file is forced with the chunks.
+     * @throws IOException
+     */
+    synchronized void flush() throws IOException {
+        if (!this.dirtyData && this.dirtyChunks.isEmpty()) return;
+        // The records before the slots pointing to them.
+        if (this.dirtyData) {
+            this.dataChannel.force(false);
+            this.dirtyData = false;
+        }
+        for (int i = this.dirtyChunks.nextSetBit(0); i >= 0; i = this.dirtyChunks.nextSetBit(i + 1)) {
+            this.chunks.get(i).force();
+        }
+        this.dirtyChunks.clear();
+        this.flushes.incrementAndGet();
+    }
+
+    /**
+     * @return the number of users stored.
+     */
+    public synchronized int size() {
+        return this.index.size();
+    }
+
+    /**
+     * @return the number of chunks of the slots file mapped.
+     */
+    synchronized int getMappedChunks() {
+        return this.chunks.size();
+    }
+
+    /**
+     * @return the number of chunks written since the last flush.
+     */
+    synchronized int getDirtyChunks() {
+        return this.dirtyChunks.cardinality();
+    }
+
+    /**
+     * @return the number of flushes that forced some data to disk.
+     */
+    public long getFlushes() {
+        return this.flushes.get();
+    }
+
+    @Override
+    public long getBytesUpdated() {
+        return this.bytesUpdated.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.bytesWritten.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.flusher != null) {
+            this.flusher.shutdownNow();
+        }
+        this.flush();
+        synchronized (this) {
+            this.slotsChannel.close();
+            this.dataChannel.close();
+        }
+    }
+
+    /**
+     * Stores an user in the next free slot: its record first, then the slot pointing to it.
+     */
+    private void allocate(User user) throws IOException {
+        int slot = this.index.size();
+        if (slot >= (long) this.chunks.size() * this.slotsPerChunk) {
+            this.map();
+        }
+        long offset = this.appendRecord(user);
+        MappedByteBuffer chunk = this.chunk(slot);
+        int position = this.position(slot);
+        chunk.putInt(position + SCORE_OFFSET, user.getScore());
+        chunk.putLong(position + DATA_OFFSET, offset);
+        this.dirtyChunks.set(slot / this.slotsPerChunk);
+        this.bytesWritten.addAndGet(SLOT_SIZE);
+        this.index.put(user.getNick(), slot);
+    }
+
+    /**
+     * @return true if the score has changed and has been written.
+     */
+    private boolean writeScore(int slot, int score) {
+        MappedByteBuffer chunk = this.chunk(slot);
+        int position = this.position(slot) + SCORE_OFFSET;
+        if (chunk.getInt(position) == score) return false;
+        chunk.putInt(position, score);
+        this.dirtyChunks.set(slot / this.slotsPerChunk);
+        this.bytesWritten.addAndGet(4);
+        return true;
+    }
+
+    /**
+     * Appends the record of an user to the data file.
+     * @return its offset.
+     */
+    private long appendRecord(User user) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeUTF(user.getNick());
+            out.writeInt(user.getFriends().size());
+            for (String friend : user.getFriends()) {
+                out.writeUTF(friend);
+            }
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.remaining() - 4);
+        long offset = this.dataSize;
+        writeFully(this.dataChannel, record, offset);
+        this.dataSize += record.capacity();
+        this.dirtyData = true;
+        this.bytesWritten.addAndGet(record.capacity());
+        return offset;
+    }
+
+    /**
+     * A record of the data file.
+     */
+    private static final class Record {
+        private final String nick;
+        private final Set<String> friends;
+
+        private Record(String nick, Set<String> friends) {
+            this.nick = nick;
+            this.friends = friends;
+        }
+    }
+
+    private Record readRecord(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(this.dataChannel, length, offset);
+        ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+        readFully(this.dataChannel, record, offset + 4);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array()))) {
+            String nick = in.readUTF();
+            int count = in.readInt();
+            Set<String> friends = new HashSet<>(Math.max(16, count * 2));
+            for (int i = 0; i < count; ++i) {
+                friends.add(in.readUTF());
+            }
+            return new Record(nick, friends);
+        }
+    }
+
+    /**
+     * Builds the index from the slots in use, which are contiguous.
+     * The kernel may write the slots allocated since the last flush back before the records
+     * they point to, while the other slots are only repointed to records forced (@link update):
+     * after a crash the first slot pointing to a record not written is one of the slots allocated
+     * since the last flush, it ends the slots in use and it and the following ones are freed.
+     */
+    private void scan() throws IOException {
+        long capacity = (long) this.chunks.size() * this.slotsPerChunk;
+        for (int slot = 0; slot < capacity; ++slot) {
+            long offset = this.chunk(slot).getLong(this.position(slot) + DATA_OFFSET);
+            if (offset == 0) return;
+            Record record = null;
+            // After the header and before the end of the data file.
+            if (offset >= 8 && offset < this.dataSize) {
+                try {
+                    record = this.readRecord(offset);
+                } catch (IOException | RuntimeException e) {
+                    // Torn record.
+                }
+            }
+            if (record == null) {
+                Config.getInstance().debugLogger("[MAPPED STORE] Slot " + slot + " points to a record not written, freed.");
+                this.free(slot, capacity);
+                return;
+            }
+            this.index.put(record.nick, slot);
+        }
+    }
+
+    /**
+     * Frees a slot and the following ones in use.
+     */
+    private void free(int from, long capacity) {
+        for (int slot = from; slot < capacity; ++slot) {
+            MappedByteBuffer chunk = this.chunk(slot);
+            int position = this.position(slot);
+            if (chunk.getLong(position + DATA_OFFSET) == 0) return;
+            chunk.putLong(position + DATA_OFFSET, 0);
+            chunk.putInt(position + SCORE_OFFSET, 0);
+            this.dirtyChunks.set(slot / this.slotsPerChunk);
+        }
+    }
+
+    /**
+     * Maps the next chunk of the slots file, growing it.
+     */
+    private void map() throws IOException {
+        long position = (long) this.chunks.size() * this.chunkSize;
+        this.chunks.add(this.slotsChannel.map(FileChannel.MapMode.READ_WRITE, position, this.chunkSize));
+    }
+
+    private MappedByteBuffer chunk(int slot) {
+        return this.chunks.get(slot / this.slotsPerChunk);
+    }
+
+    /**
+     * @return the position of a slot in its chunk.
+     */
+    private int position(int slot) {
+        return (slot % this.slotsPerChunk) * SLOT_SIZE;
+    }
+
+    private void afterWrite() throws IOException {
+        if (this.forceOnWrite) {
+            this.flush();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the data file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
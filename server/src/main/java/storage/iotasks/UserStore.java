@@ -0,0 +1,73 @@
+package storage.iotasks;
+
+import storage.models.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The disk storage of the records of the users according to a view.
+ * The implementations are not required to be thread-safe for writes:
+ * the concurrency is managed by the caller (@link UserStorage).
+ */
+public interface UserStore extends Closeable {
+
+    /**
+     * Reads the latest record of an user.
+     * @param nick
+     * @return the user, read with the view of the store.
+     * @throws IOException
+     * @throws NoSuchElementException if the user is not stored.
+     */
+    User get(String nick) throws IOException, NoSuchElementException;
+
+    /**
+     * Stores a new user, doesn't check if the user exists already.
+     * @param user
+     * @throws IOException
+     */
+    void append(User user) throws IOException;
+
+    /**
+     * Stores the new users, possibly with a single write, doesn't check if they exist already.
+     * The users are on disk when it returns.
+     * @param users
+     * @throws IOException
+     */
+    default void appendAll(List<User> users) throws IOException {
+        for (User user : users) {
+            this.append(user);
+        }
+    }
+
+    /**
+     * Replaces the records of the users, storing those not stored yet.
+     * The friends already stored are merged into the users updated.
+     * @param users
+     * @throws IOException
+     */
+    void update(List<User> users) throws IOException;
+
+    /**
+     * Replaces the score of an user whose friends are already stored.
+     * @param user
+     * @throws IOException
+     */
+    default void updateScore(User user) throws IOException {
+        this.update(Collections.singletonList(user));
+    }
+
+    /**
+     * @return the number of bytes of the user records written by append and update.
+     */
+    long getBytesUpdated();
+
+    /**
+     * @return the number of bytes actually written to disk,
+     * the ratio with getBytesUpdated is the write amplification.
+     */
+    long getBytesWritten();
+}
@@ -39,6 +39,9 @@ public class User implements Comparable<User> {
     @JsonIgnore
     private boolean hasBeenModified = false;
 
+    @JsonIgnore
+    private boolean hasScoreBeenModified = false;
+
     public User() {}
 
     /**
@@ -66,6 +69,19 @@ public class User implements Comparable<User> {
         this.password = password;
     }
 
+    /**
+     * Constructs an user read from the storage (i.e. not modified).
+     * @param nick
+     * @param score
+     * @param friends
+     * @throws IllegalArgumentException if nick is null
+     */
+    public User(String nick, int score, Set<String> friends) throws IllegalArgumentException {
+        this(nick);
+        this.score = score;
+        this.friends = friends;
+    }
+
     public String getNick() {
         return nick;
     }
@@ -84,6 +100,7 @@ public class User implements Comparable<User> {
 
     public User setScore(Integer score) {
         this.hasBeenModified = true;
+        this.hasScoreBeenModified = true;
         this.score = score;
         return this;
     }
@@ -124,6 +141,13 @@ public class User implements Comparable<User> {
         return hasBeenModified;
     }
 
+    /**
+     * @return true if the score of the user has been updated.
+     */
+    public boolean hasScoreBeenModified() {
+        return hasScoreBeenModified;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == this) return true;
@@ -0,0 +1,109 @@
+package translation;
+
+import java.text.Normalizer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The normalization of the answers given to the challenges and of their translations,
+ * so that an answer is checked with a single lookup in the set of the accepted ones.
+ * A normalized string is case-folded, in Unicode NFC, without leading or trailing
+ * whitespace and with every run of whitespace replaced by a single space.
+ */
+public final class Answers {
+
+    private Answers() { }
+
+    /**
+     * @param translations
+     * @return the (unmodifiable) set of the normalized translations.
+     */
+    public static Set<String> of(Collection<String> translations) {
+        Set<String> answers = new HashSet<>(translations.size() * 2);
+        for (String translation : translations) {
+            if (translation != null) {
+                answers.add(normalize(translation));
+            }
+        }
+        return Collections.unmodifiableSet(answers);
+    }
+
+    /**
+     * Checks an answer: the answers already normalized (i.e. lowercase ASCII
+     * with single spaces) are looked up as they are, without allocations.
+     * @param accepted the normalized accepted answers.
+     * @param answer
+     * @return true if the answer is accepted.
+     */
+    public static boolean isAccepted(Set<String> accepted, String answer) {
+        if (answer == null) return false;
+        return accepted.contains(isNormalizedAscii(answer) ? answer : normalize(answer));
+    }
+
+    /**
+     * @param answer
+     * @return true if the answer is null or contains only whitespace (i.e. it is skipped).
+     */
+    public static boolean isBlank(String answer) {
+        if (answer == null) return true;
+        for (int i = 0; i < answer.length(); ++i) {
+            if (!isSpace(answer.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param string
+     * @return the normalized string.
+     */
+    public static String normalize(String string) {
+        // Full case folding (ex. ß -> ss) approximated by upper and then lower case.
+        String folded = string.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+        String composed = Normalizer.normalize(folded, Normalizer.Form.NFC);
+        StringBuilder normalized = new StringBuilder(composed.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < composed.length(); ++i) {
+            char c = composed.charAt(i);
+            if (isSpace(c)) {
+                pendingSpace = normalized.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    normalized.append(' ');
+                    pendingSpace = false;
+                }
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @return true if the char is a space for the answers, including the
+     * non-breaking ones (ex. NBSP) which are not whitespace for Java.
+     */
+    private static boolean isSpace(char c) {
+        return Character.isWhitespace(c) || Character.isSpaceChar(c);
+    }
+
+    /**
+     * @return true if the string is lowercase ASCII without leading, trailing or
+     * repeated spaces: such a string is already normalized.
+     */
+    static boolean isNormalizedAscii(String string) {
+        int length = string.length();
+        if (length == 0) return true;
+        if (string.charAt(0) == ' ' || string.charAt(length - 1) == ' ') return false;
+        char previous = 0;
+        for (int i = 0; i < length; ++i) {
+            char c = string.charAt(i);
+            if (c >= 0x80 || (c >= 'A' && c <= 'Z')) return false;
+            if (c < ' ' || c == 0x7F) return false;
+            if (c == ' ' && previous == ' ') return false;
+            previous = c;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,314 @@
+package translation;
+
+import configurations.Config;
+import metrics.Metrics;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of translated dictionaries ready for the next challenges.
+ * A background producer keeps it filled so that a challenge takes its dictionary
+ * in O(1) instead of waiting for the translation of its words.
+ * The number of dictionaries kept ready follows the challenge start rate:
+ * enough to serve the challenges starting while a new dictionary is built, at least one.
+ * When the pool is empty the dictionary is built by the caller.
+ * A dictionary can also be prefetched for a requester as soon as the challenge is
+ * requested: the challenge then takes it once accepted, otherwise it is recycled into the pool.
+ */
+public class DictionaryPool {
+
+    /** The weight of the last sample in the moving averages. */
+    private static final double SMOOTHING = 0.2;
+    /** The time in ms before retrying to build a dictionary after a failure. */
+    private static final long RETRY_MILLIS = 5000;
+
+    /** The dictionaries ready to be taken. */
+    private final BlockingQueue<Map<String, Set<String>>> dictionaries;
+    /** The maximum number of dictionaries in the pool. */
+    private final int capacity;
+    /** Starts building a new dictionary. */
+    private final Supplier<CompletableFuture<Map<String, Set<String>>>> builder;
+    /** The dictionaries reserved for the pending challenge requests by requester. */
+    private final Map<String, CompletableFuture<Map<String, Set<String>>>> prefetched = new ConcurrentHashMap<>();
+    /** The time of the last take, 0 if none. */
+    private long lastTakeNanos;
+    /** The moving average of the time between two takes, 0 if unknown. */
+    private double averageTakeIntervalNanos;
+    /** The moving average of the time to build a dictionary. */
+    private double averageBuildNanos;
+    /** The number of dictionaries taken from the pool. */
+    private final AtomicLong hits = new AtomicLong();
+    /** The number of dictionaries built by the caller because the pool was empty. */
+    private final AtomicLong misses = new AtomicLong();
+    /** The time spent by the callers building a dictionary because the pool was empty. */
+    private final AtomicLong emptyWaitNanos = new AtomicLong();
+    /** The time spent by the challenges waiting for a prefetched dictionary still being built. */
+    private final AtomicLong prefetchWaitNanos = new AtomicLong();
+    /** The number of dictionaries the producer failed to build. */
+    private final AtomicLong failures = new AtomicLong();
+    /** The number of dictionaries prefetched for a challenge request. */
+    private final AtomicLong prefetches = new AtomicLong();
+    /** The number of prefetched dictionaries used by a challenge. */
+    private final AtomicLong prefetchHits = new AtomicLong();
+    /** The number of prefetched dictionaries given back to the pool. */
+    private final AtomicLong recycled = new AtomicLong();
+
+    private static DictionaryPool instance;
+
+    /**
+     * @param capacity the maximum number of dictionaries kept ready, 0 to disable the producer.
+     * @param builder starts building a new dictionary, the future completes exceptionally if it can't.
+     */
+    DictionaryPool(int capacity, Supplier<CompletableFuture<Map<String, Set<String>>>> builder) {
+        this.capacity = capacity;
+        this.builder = builder;
+        this.dictionaries = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        if (capacity > 0) {
+            Thread producer = new Thread(this::produce, "dictionary-pool");
+            producer.setDaemon(true);
+            producer.start();
+        }
+    }
+
+    public static synchronized DictionaryPool getInstance() {
+        if (instance == null) {
+            instance = new DictionaryPool(
+                    Config.getInstance().getDictionaryPoolSize(),
+                    () -> DictionaryService.getInstance().getChallengeDictionaryAsync(
+                            Config.getInstance().getWordsForChallenge()
+                    )
+            );
+            instance.registerMetrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Reserves a dictionary for the challenge requested by requester: a ready one
+     * if any, otherwise it starts building it while the request is pending.
+     * It returns immediately.
+     * @param requester
+     */
+    public void prefetch(String requester) {
+        Map<String, Set<String>> ready = this.dictionaries.poll();
+        // Not a challenge start: the request may be declined.
+        this.wakeUpProducer();
+        CompletableFuture<Map<String, Set<String>>> dictionary = ready != null
+                ? CompletableFuture.completedFuture(ready)
+                : this.builder.get();
+        if (this.prefetched.putIfAbsent(requester, dictionary) == null) {
+            this.prefetches.incrementAndGet();
+        } else {
+            // A dictionary is already reserved for the requester.
+            this.recycle(dictionary);
+        }
+    }
+
+    /**
+     * Takes the dictionary prefetched for requester, or any other dictionary if none
+     * was prefetched (or its build failed), without waiting for it.
+     * @param requester
+     * @return the future dictionary of Config.getWordsForChallenge words, it completes
+     * exceptionally if the dictionary can't be built.
+     */
+    public CompletableFuture<Map<String, Set<String>>> takeAsync(String requester) {
+        long start = System.nanoTime();
+        // A challenge starts: the only arrival counted by the start rate.
+        this.onTake(start);
+        CompletableFuture<Map<String, Set<String>>> prefetchedDictionary = this.prefetched.remove(requester);
+        if (prefetchedDictionary == null) {
+            return this.takeAsync();
+        }
+        CompletableFuture<Map<String, Set<String>>> dictionary = new CompletableFuture<>();
+        // A prefetch already built is not a wait.
+        boolean waiting = !prefetchedDictionary.isDone();
+        prefetchedDictionary.whenComplete((ready, e) -> {
+            if (waiting) {
+                this.prefetchWaitNanos.addAndGet(System.nanoTime() - start);
+            }
+            if (e == null) {
+                this.prefetchHits.incrementAndGet();
+                dictionary.complete(ready);
+            } else {
+                // The prefetch failed: try with the pool.
+                forward(this.takeAsync(), dictionary);
+            }
+        });
+        return dictionary;
+    }
+
+    /**
+     * Takes a dictionary from the pool, or starts building it if the pool is empty.
+     */
+    private CompletableFuture<Map<String, Set<String>>> takeAsync() {
+        long start = System.nanoTime();
+        Map<String, Set<String>> ready = this.dictionaries.poll();
+        this.wakeUpProducer();
+        if (ready != null) {
+            this.hits.incrementAndGet();
+            return CompletableFuture.completedFuture(ready);
+        }
+        this.misses.incrementAndGet();
+        CompletableFuture<Map<String, Set<String>>> dictionary = this.builder.get();
+        dictionary.whenComplete((built, e) -> this.emptyWaitNanos.addAndGet(System.nanoTime() - start));
+        return dictionary;
+    }
+
+    /**
+     * Gives back to the pool the dictionary prefetched for requester, if any:
+     * the challenge request has been declined or has expired.
+     * @param requester
+     */
+    public void recycle(String requester) {
+        CompletableFuture<Map<String, Set<String>>> dictionary = this.prefetched.remove(requester);
+        if (dictionary != null) {
+            this.recycle(dictionary);
+        }
+    }
+
+    private void recycle(CompletableFuture<Map<String, Set<String>>> dictionary) {
+        dictionary.thenAccept(ready -> {
+            // Discarded if the pool is already full.
+            if (this.capacity > 0 && this.dictionaries.offer(ready)) {
+                this.recycled.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @return the number of dictionaries ready.
+     */
+    int getDepth() {
+        return this.dictionaries.size();
+    }
+
+    /**
+     * @return the time in ns spent waiting because the pool was empty.
+     */
+    long getEmptyWaitNanos() {
+        return this.emptyWaitNanos.get();
+    }
+
+    /**
+     * @return the time in ns spent waiting for the prefetched dictionaries still being built.
+     */
+    long getPrefetchWaitNanos() {
+        return this.prefetchWaitNanos.get();
+    }
+
+    /**
+     * The dictionaries needed to serve the challenges starting while a new one is
+     * built (Little's law): the average build time over the average time between two
+     * takes, plus one. The rate is updated at every take: after a burst of challenges
+     * the pool is refilled for the next one.
+     * @return the number of dictionaries the producer keeps ready.
+     */
+    synchronized int getTargetDepth() {
+        if (this.averageTakeIntervalNanos <= 0) return Math.min(1, this.capacity);
+        long depth = 1 + (long) Math.ceil(this.averageBuildNanos / this.averageTakeIntervalNanos);
+        return (int) Math.min(this.capacity, depth);
+    }
+
+    /**
+     * Updates the start rate and wakes up the producer.
+     * It must be called only when a challenge starts, not when a dictionary is prefetched.
+     */
+    private synchronized void onTake(long now) {
+        if (this.lastTakeNanos != 0) {
+            this.averageTakeIntervalNanos = average(this.averageTakeIntervalNanos, now - this.lastTakeNanos);
+        }
+        this.lastTakeNanos = now;
+        this.notifyAll();
+    }
+
+    /**
+     * Wakes up the producer to refill the pool, without updating the start rate.
+     */
+    private synchronized void wakeUpProducer() {
+        this.notifyAll();
+    }
+
+    private void produce() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                synchronized (this) {
+                    while (this.dictionaries.size() >= this.getTargetDepth()) {
+                        this.wait();
+                    }
+                }
+                long start = System.nanoTime();
+                Map<String, Set<String>> dictionary;
+                try {
+                    dictionary = join(this.builder.get());
+                } catch (RuntimeException e) {
+                    this.failures.incrementAndGet();
+                    Config.getInstance().debugLogger("Dictionary pool refill failed: " + e.getMessage());
+                    Thread.sleep(RETRY_MILLIS);
+                    continue;
+                }
+                synchronized (this) {
+                    this.averageBuildNanos = average(this.averageBuildNanos, System.nanoTime() - start);
+                }
+                this.dictionaries.offer(dictionary);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the built dictionary.
+     * @throws NoSuchElementException if it could not be built.
+     */
+    private static Map<String, Set<String>> join(CompletableFuture<Map<String, Set<String>>> dictionary)
+            throws NoSuchElementException
+    {
+        try {
+            return dictionary.join();
+        } catch (CompletionException | CancellationException e) {
+            if (e.getCause() instanceof NoSuchElementException) {
+                throw (NoSuchElementException) e.getCause();
+            }
+            throw new NoSuchElementException("Impossible to get the words");
+        }
+    }
+
+    private static <T> void forward(CompletableFuture<T> source, CompletableFuture<T> target) {
+        source.whenComplete((value, e) -> {
+            if (e == null) {
+                target.complete(value);
+            } else {
+                target.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static double average(double average, long sample) {
+        return average <= 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * average;
+    }
+
+    private void registerMetrics() {
+        Metrics metrics = Metrics.getInstance();
+        metrics.register("dictionaryPool.depth", this::getDepth);
+        metrics.register("dictionaryPool.target", this::getTargetDepth);
+        metrics.register("dictionaryPool.hits", this.hits::get);
+        metrics.register("dictionaryPool.misses", this.misses::get);
+        metrics.register("dictionaryPool.emptyWaitMillis", () -> TimeUnit.NANOSECONDS.toMillis(this.emptyWaitNanos.get()));
+        metrics.register("dictionaryPool.prefetchWaitMillis", () -> TimeUnit.NANOSECONDS.toMillis(this.prefetchWaitNanos.get()));
+        metrics.register("dictionaryPool.failures", this.failures::get);
+        metrics.register("dictionaryPool.prefetches", this.prefetches::get);
+        metrics.register("dictionaryPool.prefetchHits", this.prefetchHits::get);
+        metrics.register("dictionaryPool.recycled", this.recycled::get);
+    }
+}
@@ -1,6 +1,7 @@
 package translation;
 
 import configurations.Config;
+import executors.ServerExecutors;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -8,7 +9,9 @@ import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 
@@ -26,6 +29,11 @@ public class DictionaryService {
      * The words known by the server.
      */
     private List<String> words;
+    /**
+     * The accepted answers of the words translated so far, shared by the challenges.
+     * It is bounded by the number of known words.
+     */
+    private final Map<String, Set<String>> answers = new ConcurrentHashMap<>();
 
     /** The singleton instance */
     private static DictionaryService instance = getInstance();
@@ -56,6 +64,78 @@ public class DictionaryService {
      * @throws NoSuchElementException
      */
     public Map<String, List<String>> getDictionary(int n) throws NoSuchElementException {
+        return await(this.getDictionaryAsync(n));
+    }
+
+    /**
+     * Gets a dictionary from a given set of words.
+     * @param words
+     * @throws NoSuchElementException if any of the provided word is untranslatable.
+     * @return a map from word to translations.
+     */
+    public Map<String, List<String>> getDictionary(Set<String> words) throws NoSuchElementException {
+        return await(this.getDictionaryAsync(words));
+    }
+
+    /**
+     * Starts building a dictionary of n randomly chosen words, without blocking:
+     * the translations are requested on the translation executor.
+     * @param n
+     * @return the future dictionary, completed exceptionally with a NoSuchElementException
+     * if it can't be built.
+     */
+    public CompletableFuture<Map<String, List<String>>> getDictionaryAsync(int n) {
+        try {
+            return this.getDictionaryAsync(this.pickWords(n));
+        } catch (NoSuchElementException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Starts building a dictionary from a given set of words, without blocking.
+     * @param words
+     * @return the future dictionary, completed exceptionally if any of the provided
+     * word is untranslatable.
+     */
+    public CompletableFuture<Map<String, List<String>>> getDictionaryAsync(Set<String> words) {
+        return this.translateAsync(words).thenApply(translations -> {
+            Map<String, List<String>> dictionary = new HashMap<>();
+            translations.forEach(t -> dictionary.put(t.getSourceWord(), t.getTranslations()));
+            return dictionary;
+        });
+    }
+
+    /**
+     * Starts building the dictionary of a challenge: n randomly chosen words, each one
+     * mapped to its accepted answers (normalized, see Answers). The answers of a word
+     * are computed once, when it is translated for the first time, and shared by
+     * all the challenges.
+     * @param n
+     * @return the future dictionary, completed exceptionally with a NoSuchElementException
+     * if it can't be built.
+     */
+    public CompletableFuture<Map<String, Set<String>>> getChallengeDictionaryAsync(int n) {
+        try {
+            return this.translateAsync(this.pickWords(n)).thenApply(translations -> {
+                Map<String, Set<String>> dictionary = new HashMap<>();
+                translations.forEach(t -> dictionary.put(
+                        t.getSourceWord(),
+                        this.answers.computeIfAbsent(t.getSourceWord(), w -> Answers.of(t.getTranslations()))
+                ));
+                return dictionary;
+            });
+        } catch (NoSuchElementException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * @param n
+     * @return n randomly chosen words.
+     * @throws NoSuchElementException if the service knows less than n words.
+     */
+    private Set<String> pickWords(int n) throws NoSuchElementException {
         if (n > this.words.size()) {
             throw new NoSuchElementException("This requested number can't be fulfilled with the actual word list!");
         }
@@ -70,39 +150,63 @@ public class DictionaryService {
                 set.add(wordsGenerator.next());
             }
         }
-        // Gets the translations.
-        return this.getDictionary(set);
+        return set;
     }
 
-
     /**
-     * Gets a dictionary from a given set of words.
+     * Requests the translations of the words on the translation executor.
      * @param words
-     * @throws NoSuchElementException if any of the provided word is untranslatable.
-     * @return a map from word to translations.
+     * @return the future translations, completed exceptionally if any of the
+     * provided word is untranslatable.
      */
-    public Map<String, List<String>> getDictionary(Set<String> words) throws NoSuchElementException {
+    private CompletableFuture<List<Translation>> translateAsync(Set<String> words) {
         try {
             List<CompletableFuture<Translation>> promises = words.stream()
                     .filter(word -> word != null && !word.isEmpty())
-                    .map(word -> CompletableFuture.supplyAsync(new TranslationSupplier(word)))
+                    .map(word -> CompletableFuture.supplyAsync(
+                            new TranslationSupplier(word),
+                            ServerExecutors.getInstance().getTranslationExecutor()
+                    ))
                     .collect(Collectors.toList());
-            CompletableFuture<List<Translation>> translationsMapping =
-                    CompletableFuture.allOf(
-                            promises.toArray(new CompletableFuture[0])
-                    ).thenApply(v -> promises.stream()
-                            .map(CompletableFuture::join)
-                            .collect(Collectors.toList())
-                    );
-            Map<String, List<String>> dictionary = new HashMap<>();
-            translationsMapping.get().forEach(t ->
-                    dictionary.put(t.getSourceWord(), t.getTranslations())
+            return CompletableFuture.allOf(
+                    promises.toArray(new CompletableFuture[0])
+            ).thenApply(v -> promises.stream()
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList())
             );
-            return dictionary;
-        } catch (CompletionException | InterruptedException | ExecutionException e) {
+        } catch (RejectedExecutionException e) {
             configurations.Config.getInstance().debugLogger(e);
+            return failed(new NoSuchElementException("Impossible to get the words"));
+        }
+    }
+
+    /**
+     * Waits for a dictionary.
+     * @param dictionary
+     * @return the dictionary.
+     * @throws NoSuchElementException if it could not be built.
+     */
+    private static <T> T await(CompletableFuture<T> dictionary)
+            throws NoSuchElementException
+    {
+        try {
+            return dictionary.get();
+        } catch (CompletionException
+                | InterruptedException
+                | ExecutionException e
+        ) {
+            configurations.Config.getInstance().debugLogger(e);
+            if (e.getCause() instanceof NoSuchElementException) {
+                throw (NoSuchElementException) e.getCause();
+            }
             throw new NoSuchElementException("Impossible to get the words");
         }
     }
 
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
 }
@@ -0,0 +1,90 @@
+package challenge;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import protocol.OperationCode;
+import protocol.json.PacketPojo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class MatchmakerTest {
+
+    /** The challenges started, as [waiting player, player]. */
+    private final List<List<String>> started = new ArrayList<>();
+    /** The responses received by player. */
+    private final Map<String, PacketPojo> responses = new ConcurrentHashMap<>();
+
+    private Matchmaker.Ticket ticket(String nick, int score) {
+        return new Matchmaker.Ticket(nick, score, response -> this.responses.put(nick, response));
+    }
+
+    private Matchmaker matchmaker(int scoreBand, long timeoutMillis) {
+        return new Matchmaker(scoreBand, timeoutMillis, (waitingPlayer, player) ->
+                this.started.add(Arrays.asList(waitingPlayer, player))
+        );
+    }
+
+    @Test
+    void testAnyOpponent() {
+        Matchmaker matchmaker = this.matchmaker(0, 0);
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("a", 10)));
+        Assertions.assertEquals(1, matchmaker.getWaiting());
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("b", 1000)));
+        Assertions.assertEquals(Arrays.asList("a", "b"), this.started.get(0));
+        Assertions.assertTrue(this.responses.get("a").isSuccessfullResponse());
+        Assertions.assertEquals(OperationCode.MATCHMAKING, this.responses.get("b").getOperationCode());
+        Assertions.assertEquals(0, matchmaker.getWaiting());
+    }
+
+    @Test
+    void testClosestScoreMatch() {
+        Matchmaker matchmaker = this.matchmaker(10, 0);
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("a", 10)));
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("b", 30)));
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("c", 50)));
+        Assertions.assertEquals(3, matchmaker.getWaiting());
+        // Closer to c than to b.
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("d", 42)));
+        Assertions.assertEquals(Arrays.asList("c", "d"), this.started.get(0));
+        // As close to a as to b: the oldest.
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("e", 20)));
+        Assertions.assertEquals(Arrays.asList("a", "e"), this.started.get(1));
+        Assertions.assertEquals(1, matchmaker.getWaiting());
+        Assertions.assertNull(this.responses.get("b"));
+    }
+
+    @Test
+    void testScoreBand() {
+        Matchmaker matchmaker = this.matchmaker(5, 0);
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("a", 10)));
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("b", 20)));
+        Assertions.assertTrue(this.started.isEmpty());
+        // Already waiting.
+        Assertions.assertFalse(matchmaker.enqueue(this.ticket("a", 10)));
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("c", 16)));
+        Assertions.assertEquals(Arrays.asList("b", "c"), this.started.get(0));
+        Assertions.assertTrue(matchmaker.cancel("a"));
+        Assertions.assertFalse(matchmaker.cancel("a"));
+        Assertions.assertEquals(0, matchmaker.getWaiting());
+    }
+
+    @Test
+    void testTimeout() throws InterruptedException {
+        Matchmaker matchmaker = this.matchmaker(0, 50);
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("a", 10)));
+        for (int i = 0; i < 200 && this.responses.get("a") == null; ++i) {
+            Thread.sleep(10);
+        }
+        Assertions.assertTrue(this.responses.get("a").isErrorResponse());
+        Assertions.assertEquals(0, matchmaker.getWaiting());
+        Assertions.assertEquals(50, matchmaker.getWaitPercentile(99));
+        // The expired player can wait again.
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("a", 10)));
+        Assertions.assertTrue(matchmaker.enqueue(this.ticket("b", 100)));
+        Assertions.assertEquals(Arrays.asList("a", "b"), this.started.get(0));
+    }
+}
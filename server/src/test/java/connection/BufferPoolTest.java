@@ -0,0 +1,41 @@
+package connection;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+class BufferPoolTest {
+
+    @Test
+    void testReleasedBufferIsReused() {
+        BufferPool pool = new BufferPool(64, 1);
+        ByteBuffer first = pool.lease();
+        Assertions.assertTrue(first.isDirect());
+        Assertions.assertEquals(64, first.capacity());
+        Assertions.assertEquals(0, pool.getHits());
+        Assertions.assertEquals(1, pool.getMisses());
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer second = pool.lease();
+        Assertions.assertSame(first, second);
+        // A leased buffer is always cleared.
+        Assertions.assertEquals(0, second.position());
+        Assertions.assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    void testPoolRetainsAtMostMaxPooledBuffers() {
+        BufferPool pool = new BufferPool(64, 1);
+        ByteBuffer first = pool.lease();
+        ByteBuffer second = pool.lease();
+        pool.release(first);
+        pool.release(second);
+        Assertions.assertEquals(1, pool.getPooled());
+        // Foreign buffers are ignored.
+        pool.lease();
+        pool.release(ByteBuffer.allocate(64));
+        pool.release(ByteBuffer.allocateDirect(32));
+        Assertions.assertEquals(0, pool.getPooled());
+    }
+}
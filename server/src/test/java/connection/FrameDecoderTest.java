@@ -0,0 +1,71 @@
+package connection;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import protocol.OperationCode;
+import protocol.WQPacket;
+import protocol.json.PacketPojo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+class FrameDecoderTest {
+
+    @Test
+    void testMoreFramesInOneRead() throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] first = new WQPacket(new PacketPojo(OperationCode.GET_SCORE)).toBytes();
+        byte[] second = new WQPacket(PacketPojo.buildAddFriendRequest("friend")).toBytes();
+        ByteBuffer readBuffer = decoder.getReadBuffer();
+        readBuffer.put(first);
+        readBuffer.put(second);
+        Assertions.assertEquals(OperationCode.GET_SCORE, decoder.next().getOperationCode());
+        PacketPojo packet = decoder.next();
+        Assertions.assertEquals(OperationCode.ADD_FRIEND, packet.getOperationCode());
+        Assertions.assertEquals("friend", packet.getFriend());
+        Assertions.assertNull(decoder.next());
+        Assertions.assertFalse(decoder.hasPartialFrame());
+    }
+
+    @Test
+    void testFrameSplitInTheHeader() throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] frame = new WQPacket(new PacketPojo(OperationCode.GET_FRIENDS)).toBytes();
+        decoder.getReadBuffer().put(frame, 0, 2);
+        Assertions.assertNull(decoder.next());
+        Assertions.assertTrue(decoder.hasPartialFrame());
+        decoder.getReadBuffer().put(frame, 2, frame.length - 2);
+        Assertions.assertEquals(OperationCode.GET_FRIENDS, decoder.next().getOperationCode());
+        Assertions.assertFalse(decoder.hasPartialFrame());
+    }
+
+    @Test
+    void testFrameLargerThanTheReadBuffer() throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        char[] name = new char[BufferPool.getInstance().getBufferSize() * 3];
+        Arrays.fill(name, 'a');
+        byte[] frame = new WQPacket(PacketPojo.buildGetFriendsResponse(
+                Collections.singleton(new String(name))
+        )).toBytes();
+        int written = 0;
+        PacketPojo packet = null;
+        while (written < frame.length) {
+            ByteBuffer readBuffer = decoder.getReadBuffer();
+            int length = Math.min(readBuffer.remaining(), frame.length - written);
+            readBuffer.put(frame, written, length);
+            written += length;
+            packet = decoder.next();
+        }
+        Assertions.assertNotNull(packet);
+        Assertions.assertEquals(new String(name), packet.getFriends().iterator().next());
+    }
+
+    @Test
+    void testMalformedHeader() {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.getReadBuffer().putInt(-1);
+        Assertions.assertThrows(IOException.class, decoder::next);
+    }
+}
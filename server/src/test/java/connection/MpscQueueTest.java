@@ -0,0 +1,57 @@
+package connection;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class MpscQueueTest {
+
+    @Test
+    void testFifoOrder() {
+        MpscQueue<Integer> queue = new MpscQueue<>();
+        Assertions.assertTrue(queue.isEmpty());
+        Assertions.assertNull(queue.poll());
+        queue.offer(1);
+        queue.offer(2);
+        Assertions.assertFalse(queue.isEmpty());
+        Assertions.assertEquals(Integer.valueOf(1), queue.poll());
+        queue.offer(3);
+        Assertions.assertEquals(Integer.valueOf(2), queue.poll());
+        Assertions.assertEquals(Integer.valueOf(3), queue.poll());
+        Assertions.assertNull(queue.poll());
+        Assertions.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void testConcurrentProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 100000;
+        MpscQueue<long[]> queue = new MpscQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; ++i) {
+                    queue.offer(new long[] { producer, i });
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        // Every producer elements are received in order.
+        long[] expected = new long[producers];
+        int received = 0;
+        long deadline = System.currentTimeMillis() + 30000;
+        while (received < producers * perProducer && System.currentTimeMillis() < deadline) {
+            long[] element = queue.poll();
+            if (element == null) continue;
+            Assertions.assertEquals(expected[(int) element[0]]++, element[1]);
+            received++;
+        }
+        for (Thread thread : threads) thread.join();
+        Assertions.assertEquals(producers * perProducer, received);
+        Assertions.assertNull(queue.poll());
+    }
+}
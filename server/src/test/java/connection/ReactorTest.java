@@ -0,0 +1,141 @@
+package connection;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import protocol.OperationCode;
+import protocol.WQPacket;
+import protocol.json.PacketPojo;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+class ReactorTest {
+
+    @Test
+    void testClosingMidFrameReleasesTheReadBuffer() throws IOException, InterruptedException {
+        BufferPool pool = BufferPool.getInstance();
+        Reactor reactor = new Reactor((packet, key, state) -> Assertions.fail("No complete packet was sent"));
+        Thread reactorThread = new Thread(reactor);
+        reactorThread.setDaemon(true);
+        reactorThread.start();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel client = SocketChannel.open(server.getLocalAddress());
+            SocketChannel accepted = server.accept();
+            accepted.configureBlocking(false);
+            reactor.accept(accepted);
+            long leases = pool.getHits() + pool.getMisses();
+            byte[] frame = new WQPacket(new PacketPojo(OperationCode.GET_FRIENDS)).toBytes();
+            client.write(ByteBuffer.wrap(frame, 0, frame.length - 1));
+            // The reactor leases a buffer to hold the partial frame.
+            waitFor(() -> pool.getHits() + pool.getMisses() > leases);
+            int pooled = pool.getPooled();
+            client.close();
+            waitFor(() -> pool.getPooled() == pooled + 1);
+            Assertions.assertEquals(pooled + 1, pool.getPooled());
+        } finally {
+            reactorThread.interrupt();
+            reactorThread.join(1000);
+        }
+    }
+
+    @Test
+    void testFailingCommandDropsOnlyItsClient() throws IOException, InterruptedException {
+        AtomicInteger processed = new AtomicInteger();
+        Reactor reactor = new Reactor((packet, key, state) -> {
+            if (processed.incrementAndGet() == 1) {
+                throw new IllegalStateException("Failing command");
+            }
+        });
+        Thread reactorThread = new Thread(reactor);
+        reactorThread.setDaemon(true);
+        reactorThread.start();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            byte[] frame = new WQPacket(new PacketPojo(OperationCode.GET_FRIENDS)).toBytes();
+            SocketChannel failing = SocketChannel.open(server.getLocalAddress());
+            SocketChannel accepted = server.accept();
+            accepted.configureBlocking(false);
+            reactor.accept(accepted);
+            failing.write(ByteBuffer.wrap(frame));
+            // The connection of the failing command is closed.
+            Assertions.assertEquals(-1, failing.read(ByteBuffer.allocate(1)));
+            SocketChannel client = SocketChannel.open(server.getLocalAddress());
+            accepted = server.accept();
+            accepted.configureBlocking(false);
+            reactor.accept(accepted);
+            client.write(ByteBuffer.wrap(frame));
+            waitFor(() -> processed.get() == 2);
+            Assertions.assertEquals(2, processed.get());
+            Assertions.assertTrue(reactorThread.isAlive());
+            failing.close();
+            client.close();
+        } finally {
+            reactorThread.interrupt();
+            reactorThread.join(1000);
+        }
+    }
+
+    @Test
+    void testHandOffStopsReading() throws IOException, InterruptedException {
+        AtomicInteger processed = new AtomicInteger();
+        AtomicReference<State> connection = new AtomicReference<>();
+        Reactor reactor = new Reactor((packet, key, state) -> {
+            processed.incrementAndGet();
+            connection.set(state);
+        });
+        Thread reactorThread = new Thread(reactor);
+        reactorThread.setDaemon(true);
+        reactorThread.start();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            byte[] frame = new WQPacket(new PacketPojo(OperationCode.GET_FRIENDS)).toBytes();
+            SocketChannel client = SocketChannel.open(server.getLocalAddress());
+            SocketChannel accepted = server.accept();
+            accepted.configureBlocking(false);
+            reactor.accept(accepted);
+            client.write(ByteBuffer.wrap(frame));
+            waitFor(() -> processed.get() == 1);
+            // The client enters a challenge.
+            State state = connection.get();
+            state.setMainReadSelectable(false);
+            AtomicBoolean handedOff = new AtomicBoolean();
+            state.getAsyncRegistrations().unregisterRead(state.getMainKey(), () -> handedOff.set(true));
+            waitFor(handedOff::get);
+            Assertions.assertTrue(handedOff.get());
+            Assertions.assertEquals(0, state.getMainKey().interestOps() & SelectionKey.OP_READ);
+            // The next packet is left to the new owner of the connection.
+            client.write(ByteBuffer.wrap(frame));
+            ByteBuffer read = ByteBuffer.allocate(frame.length);
+            waitFor(() -> {
+                try {
+                    accepted.read(read);
+                } catch (IOException e) {
+                    Assertions.fail(e);
+                }
+                return !read.hasRemaining();
+            });
+            Assertions.assertFalse(read.hasRemaining());
+            Assertions.assertEquals(1, processed.get());
+            client.close();
+        } finally {
+            reactorThread.interrupt();
+            reactorThread.join(1000);
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+    }
+}
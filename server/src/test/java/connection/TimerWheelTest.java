@@ -0,0 +1,68 @@
+package connection;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class TimerWheelTest {
+
+    @Test
+    void testExpiresOnlyReachedDeadlines() {
+        TimerWheel<String> wheel = new TimerWheel<>(8, 10, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 55);
+        List<String> expired = new ArrayList<>();
+        wheel.advance(20, expired::add);
+        Assertions.assertTrue(expired.isEmpty());
+        wheel.advance(30, expired::add);
+        Assertions.assertEquals(1, expired.size());
+        Assertions.assertEquals("a", expired.get(0));
+        wheel.advance(60, expired::add);
+        Assertions.assertEquals(2, expired.size());
+        Assertions.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void testDeadlinesBeyondARevolution() {
+        // A revolution is 80ms.
+        TimerWheel<String> wheel = new TimerWheel<>(8, 10, 0);
+        wheel.schedule("far", 250);
+        List<String> expired = new ArrayList<>();
+        for (long now = 10; now < 250; now += 10) {
+            wheel.advance(now, expired::add);
+        }
+        Assertions.assertTrue(expired.isEmpty());
+        wheel.advance(250, expired::add);
+        Assertions.assertEquals(1, expired.size());
+        // A late advance expires everything in one call.
+        wheel.schedule("late", 300);
+        wheel.advance(10000, expired::add);
+        Assertions.assertEquals(2, expired.size());
+    }
+
+    @Test
+    void testRescheduleAndCancel() {
+        TimerWheel<String> wheel = new TimerWheel<>(8, 10, 0);
+        TimerWheel.Timeout<String> moved = wheel.schedule("moved", 20);
+        TimerWheel.Timeout<String> cancelled = wheel.schedule("cancelled", 20);
+        wheel.reschedule(moved, 45);
+        cancelled.cancel();
+        Assertions.assertFalse(cancelled.isScheduled());
+        Assertions.assertEquals(1, wheel.size());
+        List<String> expired = new ArrayList<>();
+        wheel.advance(30, expired::add);
+        Assertions.assertTrue(expired.isEmpty());
+        // The callback can schedule again the expired timeout.
+        wheel.advance(50, item -> {
+            expired.add(item);
+            wheel.reschedule(moved, 70);
+        });
+        Assertions.assertEquals(1, expired.size());
+        Assertions.assertTrue(moved.isScheduled());
+        wheel.advance(70, expired::add);
+        Assertions.assertEquals(2, expired.size());
+        Assertions.assertEquals(0, wheel.size());
+    }
+}
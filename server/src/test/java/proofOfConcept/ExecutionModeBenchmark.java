@@ -0,0 +1,72 @@
+package proofOfConcept;
+
+import configurations.Config;
+import executors.ServerExecutors;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures what the execution mode selects: the storage and translation executors
+ * of ServerExecutors, on bursts of blocking tasks (as a file scan or a request
+ * to a translation service) submitted by a single thread as by a reactor.
+ * It reports for each executor the elapsed time, the tasks rejected because the
+ * executor was full and the peak number of platform threads.
+ * The mode is read once by ServerExecutors: run it once with -executionMode=PLATFORM
+ * and once with -executionMode=VIRTUAL (which requires a JVM supporting virtual threads).
+ * Usage: ExecutionModeBenchmark [tasks] [waitMillis] [server options]
+ */
+public class ExecutionModeBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long waitMillis = args.length > 1 ? Long.parseLong(args[1]) : 200;
+        String[] options = args.length > 2
+                ? Arrays.copyOfRange(args, 2, args.length)
+                : new String[0];
+        Config.getInstance().parseCommandLineArguments(options);
+        ServerExecutors executors = ServerExecutors.getInstance();
+        System.out.println("Execution mode " + executors.getExecutionMode());
+        run("storage", executors.getStorageExecutor(), tasks, waitMillis);
+        run("translation", executors.getTranslationExecutor(), tasks, waitMillis);
+    }
+
+    private static void run(String name, Executor executor, int tasks, long waitMillis) throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+        CountDownLatch done = new CountDownLatch(tasks);
+        AtomicInteger rejected = new AtomicInteger();
+        for (int i = 0; i < tasks; ++i) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        Thread.sleep(waitMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                });
+            } catch (RejectedExecutionException e) {
+                // The server would answer that it is busy.
+                rejected.incrementAndGet();
+                done.countDown();
+            }
+        }
+        long submitted = System.nanoTime();
+        done.await(10, TimeUnit.MINUTES);
+        long end = System.nanoTime();
+        System.out.println(name
+                + ": submit " + TimeUnit.NANOSECONDS.toMillis(submitted - start) + " ms"
+                + ", total " + TimeUnit.NANOSECONDS.toMillis(end - start) + " ms"
+                + ", rejected " + rejected.get() + "/" + tasks
+                + ", peak platform threads " + threads.getPeakThreadCount()
+        );
+    }
+}
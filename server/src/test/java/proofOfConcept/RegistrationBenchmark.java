@@ -0,0 +1,105 @@
+package proofOfConcept;
+
+import RMIRegistrationService.RegistrationResponseStatusCode;
+import configurations.Config;
+import metrics.Metrics;
+import storage.RegistrationRegistry;
+import storage.models.UserViews;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the sign-ups per minute of RegistrationRegistry, called concurrently
+ * as by the RMI threads, on a clean storage directory (internal/benchmark by default).
+ * Every sign-up returns once the user is on disk in both the storage files.
+ * Run it with -registrationBatch=1 to compare with a write for every sign-up.
+ * Usage: RegistrationBenchmark [signUps] [clients] [server options]
+ */
+public class RegistrationBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int signUps = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        String[] options = args.length > 2
+                ? Arrays.copyOfRange(args, 2, args.length)
+                : new String[0];
+        Config config = Config.getInstance();
+        config.parseCommandLineArguments(new String[]{"-useStoragePath=internal/benchmark"});
+        config.parseCommandLineArguments(options);
+        cleanup(config.getStoragePath());
+
+        RegistrationRegistry registry = RegistrationRegistry.getInstance();
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        CountDownLatch done = new CountDownLatch(signUps);
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < signUps; ++i) {
+            String nick = "user" + i;
+            executor.execute(() -> {
+                try {
+                    if (registry.addUser(nick, "password") != RegistrationResponseStatusCode.OK) {
+                        failed.incrementAndGet();
+                    }
+                } catch (RemoteException e) {
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        executor.shutdown();
+
+        Map<String, Long> metrics = Metrics.getInstance().snapshot();
+        long batches = metrics.getOrDefault("registration.batches", 0L);
+        System.out.println("sign-ups: " + signUps
+                + ", clients: " + clients
+                + ", batch: " + config.getRegistrationBatch()
+                + ", mode: " + config.getStorageMode()
+        );
+        System.out.println("elapsed: " + elapsedMillis + "ms"
+                + ", sign-ups per minute: " + (signUps - failed.get()) * 60000L / elapsedMillis
+                + ", failed: " + failed.get()
+        );
+        System.out.println("batches: " + batches
+                + ", average batch: " + (batches > 0 ? metrics.get("registration.users") / batches : 0)
+                + ", max commit: " + metrics.get("registration.maxCommitMillis") + "ms"
+        );
+        System.exit(failed.get() == 0 ? 0 : 1);
+    }
+
+    private static void cleanup(String storagePath) throws IOException {
+        Path path = Paths.get(storagePath);
+        Files.createDirectories(path);
+        // The JSON files, their indexes, the log segments and the mapped files.
+        String onlineStem = stem(UserViews.Online.FILE);
+        String registrationStem = stem(UserViews.Registration.FILE);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(onlineStem) || name.startsWith(registrationStem)) {
+                    Files.delete(file);
+                }
+            }
+        }
+        System.out.println("storage: " + path.toAbsolutePath() + File.separator);
+    }
+
+    private static String stem(String filename) {
+        return filename.substring(0, filename.lastIndexOf('.') + 1);
+    }
+}
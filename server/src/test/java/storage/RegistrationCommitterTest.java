@@ -0,0 +1,94 @@
+package storage;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import storage.models.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class RegistrationCommitterTest {
+
+    @Test
+    void testGroupCommit() throws InterruptedException, ExecutionException, TimeoutException {
+        List<List<User>> batches = new CopyOnWriteArrayList<>();
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RegistrationCommitter committer = new RegistrationCommitter(users -> {
+            batches.add(new ArrayList<>(users));
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return true;
+        }, 3);
+        CompletableFuture<Boolean> first = committer.submit(new User("u0"));
+        Assertions.assertTrue(writing.await(5, TimeUnit.SECONDS));
+        // Queued while the first batch is written.
+        List<CompletableFuture<Boolean>> next = new ArrayList<>();
+        for (int i = 1; i <= 5; ++i) {
+            next.add(committer.submit(new User("u" + i)));
+        }
+        Assertions.assertFalse(first.isDone());
+        release.countDown();
+        Assertions.assertTrue(first.get(5, TimeUnit.SECONDS));
+        for (CompletableFuture<Boolean> committed : next) {
+            Assertions.assertTrue(committed.get(5, TimeUnit.SECONDS));
+        }
+        // The queued users are written together, at most 3 at a time.
+        Assertions.assertEquals(3, batches.size());
+        Assertions.assertEquals(1, batches.get(0).size());
+        Assertions.assertEquals(3, batches.get(1).size());
+        Assertions.assertEquals(2, batches.get(2).size());
+        Assertions.assertEquals(6, committer.getUsers());
+        committer.close();
+    }
+
+    @Test
+    void testFailure() throws InterruptedException, ExecutionException, TimeoutException {
+        RegistrationCommitter committer = new RegistrationCommitter(users -> {
+            if (users.get(0).getNick().equals("b")) {
+                throw new IllegalStateException("Disk full");
+            }
+            return !users.get(0).getNick().equals("a");
+        }, 10);
+        Assertions.assertFalse(committer.submit(new User("a")).get(5, TimeUnit.SECONDS));
+        Assertions.assertFalse(committer.submit(new User("b")).get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(committer.submit(new User("c")).get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(2, committer.getFailures());
+        Assertions.assertEquals(1, committer.getBatches());
+        committer.close();
+        // Rejected once closed.
+        Assertions.assertFalse(committer.submit(new User("d")).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testCloseWaitsForTheBatchBeingWritten() throws InterruptedException, ExecutionException, TimeoutException {
+        CountDownLatch writing = new CountDownLatch(1);
+        RegistrationCommitter committer = new RegistrationCommitter(users -> {
+            writing.countDown();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return true;
+        }, 10);
+        CompletableFuture<Boolean> first = committer.submit(new User("a"));
+        Assertions.assertTrue(writing.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> queued = committer.submit(new User("b"));
+        committer.close();
+        // Neither the batch being written nor the queued one is interrupted.
+        Assertions.assertTrue(first.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(queued.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(2, committer.getUsers());
+    }
+}
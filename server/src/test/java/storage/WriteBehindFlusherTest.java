@@ -0,0 +1,163 @@
+package storage;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import storage.iotasks.UserStore;
+import storage.models.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+
+public class WriteBehindFlusherTest {
+
+    /**
+     * Records the batches written, it fails the first failures updates.
+     */
+    private static class RecordingStore implements UserStore {
+        private final List<List<User>> batches = new CopyOnWriteArrayList<>();
+        private int failures;
+
+        private RecordingStore(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public User get(String nick) throws NoSuchElementException {
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void append(User user) { }
+
+        @Override
+        public synchronized void update(List<User> users) throws IOException {
+            if (this.failures > 0) {
+                this.failures--;
+                throw new IOException("Disk full");
+            }
+            this.batches.add(new ArrayList<>(users));
+        }
+
+        @Override
+        public long getBytesUpdated() {
+            return 0;
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return 0;
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    @Test
+    void testCoalescing() {
+        RecordingStore store = new RecordingStore(0);
+        WriteBehindFlusher flusher = new WriteBehindFlusher(store, new ReentrantReadWriteLock().writeLock(), 60000, 100);
+        User user = new User("a");
+        for (int i = 0; i < 10; ++i) {
+            flusher.markDirty(user.setScore(i));
+        }
+        flusher.markDirty(new User("b"));
+        Assertions.assertEquals(9, (int) flusher.getDirty("a").getScore());
+        flusher.flush();
+        // One batch with the last version of every user.
+        Assertions.assertEquals(1, store.batches.size());
+        Assertions.assertEquals(2, store.batches.get(0).size());
+        Assertions.assertEquals(2, flusher.getLastBatch());
+        Assertions.assertNull(flusher.getDirty("a"));
+        flusher.flush();
+        Assertions.assertEquals(1, flusher.getFlushes());
+        flusher.close();
+    }
+
+    @Test
+    void testMergeCopies() {
+        RecordingStore store = new RecordingStore(0);
+        WriteBehindFlusher flusher = new WriteBehindFlusher(store, new ReentrantReadWriteLock().writeLock(), 60000, 100);
+        // Two copies of the same offline user, each with a new friend.
+        User first = new User("a");
+        first.addFriend("b");
+        User second = new User("a");
+        second.addFriend("c");
+        flusher.markDirty(first);
+        flusher.markDirty(second);
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("b", "c")), flusher.getDirty("a").getFriends());
+        flusher.close();
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("b", "c")), store.batches.get(0).get(0).getFriends());
+    }
+
+    @Test
+    void testMergeScoreAndFriendCopies() {
+        RecordingStore store = new RecordingStore(0);
+        WriteBehindFlusher flusher = new WriteBehindFlusher(store, new ReentrantReadWriteLock().writeLock(), 60000, 100);
+        // The online copy gets points, a copy loaded by addFriend gets a friend.
+        User online = new User("a", 10, new HashSet<>());
+        User loaded = new User("a", 10, new HashSet<>());
+        flusher.markDirty(online.setScore(15));
+        loaded.addFriend("b");
+        flusher.markDirty(loaded);
+        User dirty = flusher.getDirty("a");
+        Assertions.assertEquals(15, (int) dirty.getScore());
+        Assertions.assertEquals(Collections.singleton("b"), dirty.getFriends());
+        // The copies of the callers are left untouched.
+        Assertions.assertNotSame(online, dirty);
+        Assertions.assertNotSame(loaded, dirty);
+        Assertions.assertTrue(online.getFriends().isEmpty());
+        Assertions.assertEquals(10, (int) loaded.getScore());
+        // A later score change of the online copy keeps the merged friend.
+        flusher.markDirty(online.setScore(20));
+        flusher.close();
+        User written = store.batches.get(0).get(0);
+        Assertions.assertEquals(20, (int) written.getScore());
+        Assertions.assertEquals(Collections.singleton("b"), written.getFriends());
+    }
+
+    @Test
+    void testBatchSizeAndInterval() throws InterruptedException {
+        RecordingStore store = new RecordingStore(0);
+        WriteBehindFlusher flusher = new WriteBehindFlusher(store, new ReentrantReadWriteLock().writeLock(), 60000, 3);
+        for (int i = 0; i < 3; ++i) {
+            flusher.markDirty(new User("u" + i));
+        }
+        waitFor(() -> flusher.getFlushedUsers() == 3);
+        flusher.close();
+        // Bounded staleness: written within the interval even below the batch size.
+        WriteBehindFlusher periodic = new WriteBehindFlusher(store, new ReentrantReadWriteLock().writeLock(), 20, 100);
+        periodic.markDirty(new User("a"));
+        waitFor(() -> periodic.getFlushedUsers() == 1);
+        periodic.close();
+    }
+
+    @Test
+    void testRetryAndClose() {
+        RecordingStore store = new RecordingStore(1);
+        WriteBehindFlusher flusher = new WriteBehindFlusher(store, new ReentrantReadWriteLock().writeLock(), 60000, 100);
+        flusher.markDirty(new User("a"));
+        flusher.flush();
+        Assertions.assertEquals(1, flusher.getFailures());
+        Assertions.assertNotNull(flusher.getDirty("a"));
+        // Written on close.
+        flusher.close();
+        Assertions.assertEquals(1, store.batches.size());
+        Assertions.assertEquals(0, flusher.getDirtyCount());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assertions.assertTrue(condition.getAsBoolean());
+    }
+}
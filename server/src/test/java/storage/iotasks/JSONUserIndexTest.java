@@ -0,0 +1,96 @@
+package storage.iotasks;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import storage.models.User;
+import storage.models.UserViews;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+
+public class JSONUserIndexTest {
+
+    @TempDir
+    Path directory;
+    private String testFile;
+
+    @BeforeEach
+    void setup() {
+        this.testFile = this.directory.resolve("user_index.json").toString();
+    }
+
+    @Test
+    void testAppendAndGet() throws IOException {
+        JSONUserIndex index = new JSONUserIndex(this.testFile, UserViews.Registration.class);
+        index.load();
+        for (String nick : Arrays.asList("a", "b", "città")) {
+            JSONUserAppender appender = new JSONUserAppender(this.testFile, new User(nick, "!"), UserViews.Registration.class);
+            appender.run();
+            index.put(nick, appender.getOffset(0), appender.getLength(0));
+        }
+        Assertions.assertEquals("città", index.get("città").getNick());
+        Assertions.assertEquals("!", index.get("a").getPassword());
+        Assertions.assertThrows(NoSuchElementException.class, () -> index.get("c"));
+        // Only the initial build.
+        Assertions.assertEquals(1, index.getRebuilds());
+        // Reloaded from the index file.
+        JSONUserIndex reloaded = new JSONUserIndex(this.testFile, UserViews.Registration.class);
+        reloaded.load();
+        Assertions.assertEquals(0, reloaded.getRebuilds());
+        Assertions.assertEquals(3, reloaded.size());
+        Assertions.assertEquals("b", reloaded.get("b").getNick());
+    }
+
+    @Test
+    void testRewrite() throws IOException {
+        JSONUserIndex index = new JSONUserIndex(this.testFile, UserViews.Online.class);
+        for (String nick : Arrays.asList("a", "b", "c")) {
+            new JSONUserAppender(this.testFile, new User(nick, "!"), UserViews.Online.class).run();
+        }
+        // Built from the existing file.
+        index.load();
+        Assertions.assertEquals(3, index.size());
+        User updated = new User("a", "!").setScore(10);
+        JSONMapper.copyAndUpdate(this.testFile, updated, UserViews.Online.class);
+        // The records have moved: the stale index is detected and rebuilt.
+        Assertions.assertEquals(10, index.get("a").getScore());
+        Assertions.assertEquals("b", index.get("b").getNick());
+        Assertions.assertTrue(index.getRebuilds() > 1);
+    }
+
+    @Test
+    void testRewriteReplacesTheIndex() throws IOException {
+        JSONUserIndex index = new JSONUserIndex(this.testFile, UserViews.Online.class);
+        for (String nick : Arrays.asList("a", "b", "città")) {
+            new JSONUserAppender(this.testFile, new User(nick, "!"), UserViews.Online.class).run();
+        }
+        index.load();
+        User updated = new User("città", "!").setScore(10);
+        JSONMapper.copyAndUpdate(this.testFile, Collections.singletonList(updated), UserViews.Online.class, index);
+        // The positions are recorded while copying: the file is not scanned again.
+        Assertions.assertEquals(10, index.get("città").getScore());
+        Assertions.assertEquals("b", index.get("b").getNick());
+        Assertions.assertEquals(1, index.getRebuilds());
+        JSONUserIndex reloaded = new JSONUserIndex(this.testFile, UserViews.Online.class);
+        reloaded.load();
+        Assertions.assertEquals(0, reloaded.getRebuilds());
+        Assertions.assertEquals("a", reloaded.get("a").getNick());
+    }
+
+    @Test
+    void testStaleIndexFile() throws IOException {
+        JSONUserIndex index = new JSONUserIndex(this.testFile, UserViews.Registration.class);
+        index.load();
+        // Appended without updating the index.
+        new JSONUserAppender(this.testFile, new User("a", "!"), UserViews.Registration.class).run();
+        JSONUserIndex reloaded = new JSONUserIndex(this.testFile, UserViews.Registration.class);
+        reloaded.load();
+        Assertions.assertEquals(1, reloaded.getRebuilds());
+        Assertions.assertEquals("a", reloaded.get("a").getNick());
+    }
+}
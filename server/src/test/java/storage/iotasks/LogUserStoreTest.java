@@ -0,0 +1,134 @@
+package storage.iotasks;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import storage.models.User;
+import storage.models.UserViews;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+
+public class LogUserStoreTest {
+
+    @TempDir
+    Path directory;
+    /** The JSON file: the log segments are written next to it. */
+    private String testFile;
+
+    @BeforeEach
+    void setup() {
+        this.testFile = this.directory.resolve("user_log.json").toString();
+    }
+
+    @Test
+    void testUpdateAndReplay() throws IOException {
+        // The log starts from the JSON file.
+        new JSONUserAppender(this.testFile, new User("a"), UserViews.Online.class).run();
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            Assertions.assertEquals("a", store.get("a").getNick());
+            store.append(new User("b"));
+            User a = new User("a").setScore(5);
+            a.addFriend("b");
+            store.update(Collections.singletonList(a));
+            User b = new User("b");
+            b.addFriend("a");
+            store.update(Collections.singletonList(b));
+            Assertions.assertEquals(5, store.get("a").getScore());
+            Assertions.assertThrows(NoSuchElementException.class, () -> store.get("c"));
+        }
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            Assertions.assertEquals(5, store.get("a").getScore());
+            Assertions.assertEquals(new HashSet<>(Collections.singletonList("a")), store.get("b").getFriends());
+        }
+    }
+
+    @Test
+    void testMergeFriends() throws IOException {
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            User a = new User("a");
+            a.addFriend("b");
+            store.append(a);
+            User update = new User("a");
+            update.addFriend("c");
+            store.update(Collections.singletonList(update));
+            Assertions.assertEquals(new HashSet<>(Arrays.asList("b", "c")), store.get("a").getFriends());
+        }
+    }
+
+    @Test
+    void testCompaction() throws IOException {
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            for (int i = 0; i < 10; ++i) {
+                store.append(new User("u" + i));
+            }
+            // Enough garbage to be compacted.
+            int updates = 0;
+            while (store.getLogBytes() < LogUserStore.MIN_COMPACTION_BYTES) {
+                store.update(Collections.singletonList(new User("u" + (updates % 10)).setScore(updates)));
+                updates++;
+            }
+            long liveBytes = store.getLiveBytes();
+            Assertions.assertTrue(store.compactIfNeeded());
+            Assertions.assertEquals(1, store.getCompactions());
+            Assertions.assertEquals(liveBytes, store.getLogBytes());
+            Assertions.assertFalse(store.compactIfNeeded());
+            Assertions.assertEquals(updates - 1, (int) store.get("u" + ((updates - 1) % 10)).getScore());
+            // The written bytes include the compaction.
+            Assertions.assertTrue(store.getBytesWritten() > store.getBytesUpdated());
+        }
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            Assertions.assertEquals(store.getLiveBytes(), store.getLogBytes());
+            Assertions.assertEquals("u9", store.get("u9").getNick());
+        }
+    }
+
+    @Test
+    void testTornRecord() throws IOException {
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            store.append(new User("a"));
+        }
+        // A crash while appending.
+        Files.write(this.directory.resolve("user_log.1.log"),
+                "{\"n\":\"b\",\"s\"".getBytes(),
+                StandardOpenOption.APPEND
+        );
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            Assertions.assertEquals("a", store.get("a").getNick());
+            Assertions.assertThrows(NoSuchElementException.class, () -> store.get("b"));
+            store.append(new User("b"));
+        }
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            Assertions.assertEquals("b", store.get("b").getNick());
+        }
+    }
+
+    @Test
+    void testTornNewline() throws IOException {
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            store.append(new User("a"));
+        }
+        // A crash before the newline of the last record.
+        Path segment = this.directory.resolve("user_log.1.log");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            Assertions.assertEquals("a", store.get("a").getNick());
+            store.append(new User("b"));
+        }
+        Assertions.assertFalse(new String(Files.readAllBytes(segment)).contains("\u0000"));
+        try (LogUserStore store = new LogUserStore(this.testFile, UserViews.Online.class, 0)) {
+            Assertions.assertEquals("a", store.get("a").getNick());
+            Assertions.assertEquals("b", store.get("b").getNick());
+        }
+    }
+}
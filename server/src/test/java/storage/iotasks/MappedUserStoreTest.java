@@ -0,0 +1,146 @@
+package storage.iotasks;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import storage.models.User;
+import storage.models.UserViews;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+
+public class MappedUserStoreTest {
+
+    /** Four slots for every chunk. */
+    private final static int CHUNK_SIZE = MappedUserStore.SLOT_SIZE * 4;
+
+    @TempDir
+    Path directory;
+    private String testFile;
+
+    @BeforeEach
+    void setup() {
+        this.testFile = this.directory.resolve("user_mapped.json").toString();
+    }
+
+    @Test
+    void testChunksAndReopen() throws IOException {
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 0, CHUNK_SIZE)) {
+            for (int i = 0; i < 10; ++i) {
+                store.append(new User("u" + i));
+            }
+            Assertions.assertEquals(3, store.getMappedChunks());
+            Assertions.assertThrows(NoSuchElementException.class, () -> store.get("u10"));
+        }
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 0, CHUNK_SIZE)) {
+            Assertions.assertEquals(10, store.size());
+            Assertions.assertEquals("u9", store.get("u9").getNick());
+            Assertions.assertFalse(store.get("u9").hasBeenModified());
+        }
+    }
+
+    @Test
+    void testScoreInPlace() throws IOException {
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 0, CHUNK_SIZE)) {
+            store.append(new User("a"));
+            long written = store.getBytesWritten();
+            store.updateScore(new User("a").setScore(42));
+            Assertions.assertEquals(written + 4, store.getBytesWritten());
+            // Same friends: only the score is written.
+            store.update(Collections.singletonList(new User("a").setScore(43)));
+            Assertions.assertEquals(written + 8, store.getBytesWritten());
+            Assertions.assertEquals(43, (int) store.get("a").getScore());
+        }
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 0, CHUNK_SIZE)) {
+            Assertions.assertEquals(43, (int) store.get("a").getScore());
+        }
+    }
+
+    @Test
+    void testFriends() throws IOException {
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 0, CHUNK_SIZE)) {
+            User a = new User("a");
+            a.addFriend("b");
+            store.append(a);
+            User update = new User("a");
+            update.addFriend("c");
+            store.update(Collections.singletonList(update));
+            Assertions.assertEquals(new HashSet<>(Arrays.asList("b", "c")), store.get("a").getFriends());
+        }
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 0, CHUNK_SIZE)) {
+            Assertions.assertEquals(new HashSet<>(Arrays.asList("b", "c")), store.get("a").getFriends());
+        }
+    }
+
+    @Test
+    void testFriendsOnlyUpdateDirtiesTheSlot() throws IOException {
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 60000, CHUNK_SIZE)) {
+            store.append(new User("a"));
+            store.flush();
+            Assertions.assertEquals(0, store.getDirtyChunks());
+            // Same score: the slot changes only for the new record.
+            User update = new User("a");
+            update.addFriend("b");
+            store.update(Collections.singletonList(update));
+            Assertions.assertEquals(1, store.getDirtyChunks());
+            long flushes = store.getFlushes();
+            store.flush();
+            Assertions.assertEquals(flushes + 1, store.getFlushes());
+            Assertions.assertEquals(0, store.getDirtyChunks());
+        }
+    }
+
+    @Test
+    void testSeedAndFlush() throws IOException, InterruptedException {
+        new JSONUserAppender(this.testFile, new User("a").setScore(7), UserViews.Online.class).run();
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 10, CHUNK_SIZE)) {
+            Assertions.assertEquals(7, (int) store.get("a").getScore());
+            long flushes = store.getFlushes();
+            store.updateScore(new User("a").setScore(8));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (store.getFlushes() == flushes && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(flushes + 1, store.getFlushes());
+        }
+    }
+
+    @Test
+    void testSlotPastEndOfData() throws IOException {
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 0, CHUNK_SIZE)) {
+            store.append(new User("a"));
+            store.append(new User("b"));
+            store.append(new User("c"));
+        }
+        // A crash after the slots were written back, but not the last record:
+        // [length][UTF "c"][friends count], 11 bytes.
+        Path data = this.directory.resolve("user_mapped.data");
+        try (FileChannel channel = FileChannel.open(data, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 11);
+        }
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 0, CHUNK_SIZE)) {
+            Assertions.assertEquals(2, store.size());
+            Assertions.assertEquals("b", store.get("b").getNick());
+            Assertions.assertThrows(NoSuchElementException.class, () -> store.get("c"));
+            store.append(new User("c"));
+        }
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 0, CHUNK_SIZE)) {
+            Assertions.assertEquals(3, store.size());
+            Assertions.assertEquals("c", store.get("c").getNick());
+        }
+        // A torn record.
+        try (FileChannel channel = FileChannel.open(data, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        try (MappedUserStore store = new MappedUserStore(this.testFile, 0, CHUNK_SIZE)) {
+            Assertions.assertEquals(2, store.size());
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package translation;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Set;
+
+class AnswersTest {
+
+    @Test
+    void testNormalize() {
+        Assertions.assertEquals("hello world", Answers.normalize("  Hello \t  WORLD\n"));
+        // Case folding: ß -> ss.
+        Assertions.assertEquals("strasse", Answers.normalize("STRAßE"));
+        // NFC: e + combining acute accent -> é.
+        Assertions.assertEquals("caf\u00e9", Answers.normalize("CAFE\u0301"));
+        Assertions.assertEquals("", Answers.normalize("   "));
+    }
+
+    @Test
+    void testIsNormalizedAscii() {
+        Assertions.assertTrue(Answers.isNormalizedAscii("the house"));
+        Assertions.assertFalse(Answers.isNormalizedAscii("The house"));
+        Assertions.assertFalse(Answers.isNormalizedAscii("the  house"));
+        Assertions.assertFalse(Answers.isNormalizedAscii(" house"));
+        Assertions.assertFalse(Answers.isNormalizedAscii("house\t"));
+        Assertions.assertFalse(Answers.isNormalizedAscii("café"));
+    }
+
+    @Test
+    void testIsAccepted() {
+        Set<String> accepted = Answers.of(Arrays.asList("House", "home ", "Café"));
+        Assertions.assertTrue(Answers.isAccepted(accepted, "house"));
+        Assertions.assertTrue(Answers.isAccepted(accepted, " HOME"));
+        Assertions.assertTrue(Answers.isAccepted(accepted, "café"));
+        Assertions.assertFalse(Answers.isAccepted(accepted, "hous"));
+        Assertions.assertFalse(Answers.isAccepted(accepted, null));
+        Assertions.assertTrue(Answers.isBlank(" \t"));
+        Assertions.assertTrue(Answers.isBlank(null));
+        // Only non-breaking spaces: skipped, as it normalizes to "".
+        Assertions.assertTrue(Answers.isBlank("\u00A0\u2007\u202F"));
+        Assertions.assertFalse(Answers.isBlank(" a "));
+    }
+}
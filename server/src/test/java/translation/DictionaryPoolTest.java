@@ -0,0 +1,146 @@
+package translation;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class DictionaryPoolTest {
+
+    private static Map<String, Set<String>> dictionary(int n) {
+        return Collections.singletonMap("parola" + n, Collections.singleton("word" + n));
+    }
+
+    private static CompletableFuture<Map<String, Set<String>>> built(int n) {
+        return CompletableFuture.completedFuture(dictionary(n));
+    }
+
+    /**
+     * Takes a dictionary for a challenge without prefetch.
+     */
+    private static Map<String, Set<String>> take(DictionaryPool pool) {
+        return pool.takeAsync("anyone").join();
+    }
+
+    private static void awaitDepth(DictionaryPool pool, int depth) throws InterruptedException {
+        for (int i = 0; i < 200 && pool.getDepth() < depth; ++i) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(depth, pool.getDepth());
+    }
+
+    @Test
+    void testTakePrebuiltDictionary() throws InterruptedException {
+        AtomicInteger built = new AtomicInteger();
+        DictionaryPool pool = new DictionaryPool(3, () -> built(built.incrementAndGet()));
+        // Without challenges only one dictionary is kept ready.
+        awaitDepth(pool, 1);
+        Assertions.assertEquals(1, pool.getTargetDepth());
+        Assertions.assertEquals(dictionary(1), take(pool));
+        // Refilled in background.
+        awaitDepth(pool, 1);
+        Assertions.assertEquals(2, built.get());
+    }
+
+    @Test
+    void testTargetFollowsStartRate() throws InterruptedException {
+        // Slow builds in background, immediate builds by the callers on an empty pool.
+        DictionaryPool pool = new DictionaryPool(4, () -> {
+            try {
+                if (Thread.currentThread().getName().equals("dictionary-pool")) Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return built(0);
+        });
+        awaitDepth(pool, 1);
+        // Challenges starting faster than a dictionary is built.
+        take(pool);
+        take(pool);
+        take(pool);
+        Assertions.assertEquals(4, pool.getTargetDepth());
+        awaitDepth(pool, 4);
+    }
+
+    @Test
+    void testPrefetchesDoNotRaiseTheTarget() throws InterruptedException {
+        DictionaryPool pool = new DictionaryPool(4, () -> {
+            try {
+                if (Thread.currentThread().getName().equals("dictionary-pool")) Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return built(0);
+        });
+        awaitDepth(pool, 1);
+        // Many requests, all declined: no challenge starts.
+        for (int i = 0; i < 5; ++i) {
+            pool.prefetch("user" + i);
+            pool.recycle("user" + i);
+        }
+        Assertions.assertEquals(1, pool.getTargetDepth());
+    }
+
+    @Test
+    void testEmptyPoolBuildsOnCaller() {
+        AtomicInteger built = new AtomicInteger();
+        DictionaryPool pool = new DictionaryPool(0, () -> built(built.incrementAndGet()));
+        Assertions.assertEquals(dictionary(1), take(pool));
+        Assertions.assertEquals(0, pool.getDepth());
+        DictionaryPool failingPool = new DictionaryPool(0, () -> {
+            CompletableFuture<Map<String, Set<String>>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new NoSuchElementException("Impossible to get the words"));
+            return failed;
+        });
+        CompletionException e = Assertions.assertThrows(CompletionException.class, () -> take(failingPool));
+        Assertions.assertTrue(e.getCause() instanceof NoSuchElementException);
+    }
+
+    @Test
+    void testPrefetchAndRecycle() throws InterruptedException {
+        AtomicInteger built = new AtomicInteger();
+        DictionaryPool pool = new DictionaryPool(2, () -> built(built.incrementAndGet()));
+        awaitDepth(pool, 1);
+        // The ready dictionary is reserved for the request, the pool is refilled.
+        pool.prefetch("user1");
+        awaitDepth(pool, 1);
+        // Declined: the reserved dictionary goes back to the pool.
+        pool.recycle("user1");
+        Assertions.assertEquals(2, pool.getDepth());
+        Assertions.assertEquals(dictionary(2), pool.takeAsync("user1").join());
+        Assertions.assertEquals(dictionary(1), take(pool));
+
+        // Accepted while the dictionary is still being built.
+        CompletableFuture<Map<String, Set<String>>> prefetched = new CompletableFuture<>();
+        DictionaryPool prefetchPool = new DictionaryPool(0, () -> prefetched);
+        prefetchPool.prefetch("user1");
+        prefetched.complete(dictionary(3));
+        Assertions.assertEquals(dictionary(3), prefetchPool.takeAsync("user1").join());
+    }
+
+    @Test
+    void testPrefetchWaitIsNotAnEmptyPoolWait() throws InterruptedException {
+        DictionaryPool pool = new DictionaryPool(0, () -> built(1));
+        // Already built: no wait at all.
+        pool.prefetch("user1");
+        pool.takeAsync("user1").join();
+        Assertions.assertEquals(0, pool.getPrefetchWaitNanos());
+        Assertions.assertEquals(0, pool.getEmptyWaitNanos());
+
+        CompletableFuture<Map<String, Set<String>>> prefetched = new CompletableFuture<>();
+        DictionaryPool prefetchPool = new DictionaryPool(0, () -> prefetched);
+        prefetchPool.prefetch("user1");
+        CompletableFuture<Map<String, Set<String>>> taken = prefetchPool.takeAsync("user1");
+        Thread.sleep(10);
+        prefetched.complete(dictionary(2));
+        Assertions.assertEquals(dictionary(2), taken.join());
+        Assertions.assertTrue(prefetchPool.getPrefetchWaitNanos() > 0);
+        Assertions.assertEquals(0, prefetchPool.getEmptyWaitNanos());
+    }
+}